@@ -0,0 +1,135 @@
+package org.sral.keycloak.mappers.benchmarks;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Synthetic Keycloak models for the benchmarks.
+ * <p>
+ * The models are plain dynamic proxies answering a handful of getters from fixed values, so that the benchmarks
+ * measure the mappers and not a mocking framework or a storage layer.
+ */
+public final class Fixtures {
+
+    /**
+     * Number of shared ancestors above every group in a deep hierarchy (a membership is 8 levels deep).
+     */
+    static final int DEEP_HIERARCHY_DEPTH = 7;
+
+    private Fixtures() {
+    }
+
+    public enum Hierarchy {
+        FLAT,
+        DEEP
+    }
+
+    /**
+     * Creates a user session whose user is a member of {@code groupCount} groups named {@code group-<n>}.
+     * In a {@link Hierarchy#DEEP deep} hierarchy the groups are spread over 16 chains of shared ancestors below
+     * {@code /compartments}.
+     */
+    public static UserSessionModel userSession(final int groupCount, final Hierarchy hierarchy) {
+        final Map<Integer, GroupModel> chains = new HashMap<>();
+        final Set<GroupModel> groups = new LinkedHashSet<>();
+        for (int i = 0; i < groupCount; i++) {
+            GroupModel parent = null;
+            if (hierarchy == Hierarchy.DEEP) {
+                parent = chains.computeIfAbsent(i % 16, Fixtures::ancestorChain);
+            }
+            groups.add(group("g" + i, "group-" + i, parent));
+        }
+        final UserModel user = user("user-1", groups);
+        final RealmModel realm = realm("benchmark-realm");
+        return proxy(UserSessionModel.class, handler(Map.of(
+                "getId", args -> "session-1",
+                "getRealm", args -> realm,
+                "getUser", args -> user)));
+    }
+
+    public static RealmModel realm(final String id) {
+        return proxy(RealmModel.class, handler(Map.of(
+                "getId", args -> id,
+                "getName", args -> id)));
+    }
+
+    public static UserModel user(final String id, final Set<GroupModel> groups) {
+        final Set<GroupModel> unmodifiableGroups = Collections.unmodifiableSet(groups);
+        return proxy(UserModel.class, handler(Map.of(
+                "getId", args -> id,
+                "getUsername", args -> id,
+                "getGroups", args -> unmodifiableGroups)));
+    }
+
+    public static GroupModel group(final String id, final String name, final GroupModel parent) {
+        final String parentId = parent == null ? null : parent.getId();
+        final Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getId", args -> id);
+        answers.put("getName", args -> name);
+        answers.put("getParent", args -> parent);
+        answers.put("getParentId", args -> parentId);
+        answers.put("getSubGroups", args -> Collections.emptySet());
+        answers.put("getAttributes", args -> Collections.emptyMap());
+        answers.put("getFirstAttribute", args -> null);
+        return proxy(GroupModel.class, handler(answers));
+    }
+
+    public static ProtocolMapperModel mapper(final String id, final String providerId, final Map<String, String> config) {
+        final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+        mapperModel.setId(id);
+        mapperModel.setName(id);
+        mapperModel.setProtocol("openid-connect");
+        mapperModel.setProtocolMapper(providerId);
+        mapperModel.setConfig(new HashMap<>(config));
+        return mapperModel;
+    }
+
+    private static GroupModel ancestorChain(final int chain) {
+        GroupModel parent = group("compartments", "compartments", null);
+        for (int level = 1; level < DEEP_HIERARCHY_DEPTH; level++) {
+            parent = group("c" + chain + "-l" + level, "level-" + level, parent);
+        }
+        return parent;
+    }
+
+    private static InvocationHandler handler(final Map<String, Function<Object[], Object>> answers) {
+        final Map<String, Function<Object[], Object>> methods = new ConcurrentHashMap<>(answers);
+        return new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                final Function<Object[], Object> answer = methods.get(method.getName());
+                if (answer != null) {
+                    return answer.apply(args);
+                }
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                    default:
+                        throw new UnsupportedOperationException(method.toString());
+                }
+            }
+        };
+    }
+
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(Fixtures.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+}
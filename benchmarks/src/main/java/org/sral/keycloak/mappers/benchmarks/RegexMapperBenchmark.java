@@ -0,0 +1,136 @@
+package org.sral.keycloak.mappers.benchmarks;
+
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.representations.AccessToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sral.keycloak.mappers.RegexMapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link RegexMapper} per access token, across membership sizes, hierarchy shapes and pattern shapes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegexMapperBenchmark {
+
+    public enum PatternShape {
+        /**
+         * The common shape: a literal prefix and a single capture.
+         */
+        SIMPLE("/compartments/(.*)", "(.*)"),
+        /**
+         * Several competing greedy quantifiers, forcing the backtracking engine to try many splits per group.
+         */
+        PATHOLOGICAL("^(.*)/(.*)-(\\d+)\\w*$", "^(.*)-(.*)(\\d+)\\w*$");
+
+        private final String fullPathPattern;
+        private final String namePattern;
+
+        PatternShape(final String fullPathPattern, final String namePattern) {
+            this.fullPathPattern = fullPathPattern;
+            this.namePattern = namePattern;
+        }
+    }
+
+    public enum Cache {
+        /**
+         * The same mapper for every token, so after warm-up each group is a hit in the group match table.
+         */
+        WARM,
+        /**
+         * A mapper with a new id for every token, so each token compiles the plan and matches every group.
+         */
+        COLD
+    }
+
+    @Param({"1", "100", "10000"})
+    public int groups;
+
+    @Param({"FLAT", "DEEP"})
+    public Fixtures.Hierarchy hierarchy;
+
+    @Param({"SIMPLE", "PATHOLOGICAL"})
+    public PatternShape pattern;
+
+    @Param({"false", "true"})
+    public boolean multiValued;
+
+    /**
+     * Merges into an existing claim of 10 values, half of which are also produced by the mapper on a flat hierarchy.
+     */
+    @Param({"false", "true"})
+    public boolean mergeClaims;
+
+    @Param({"WARM", "COLD"})
+    public Cache cache;
+
+    private final RegexMapper mapper = new RegexMapper();
+    private Map<String, String> config;
+    private ProtocolMapperModel mapperModel;
+    private UserSessionModel userSession;
+    private List<String> existingClaim;
+    private long mapperIds;
+
+    @Setup
+    public void setUp() {
+        userSession = Fixtures.userSession(groups, hierarchy);
+
+        final boolean fullPath = hierarchy == Fixtures.Hierarchy.DEEP;
+        config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        config.put(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME, "azc");
+        config.put(RegexMapper.FULL_PATH_PROPERTY, Boolean.toString(fullPath));
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, fullPath ? pattern.fullPathPattern : pattern.namePattern);
+        config.put(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY, "1");
+        config.put(RegexMapper.MULTI_VALUE_PROPERTY, Boolean.toString(multiValued));
+        config.put(RegexMapper.MERGE_CLAIMS_PROPERTY, Boolean.toString(mergeClaims));
+        final List<String> existing = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            existing.add("group-" + i);
+            existing.add("external-" + i);
+        }
+        existingClaim = Collections.unmodifiableList(existing);
+
+        mapperModel = Fixtures.mapper("regex-mapper-benchmark", RegexMapper.PROVIDER_ID, config);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        if (cache == Cache.COLD) {
+            // Plans and group matches are cached by mapper id; a new id has neither.
+            mapperModel = Fixtures.mapper("regex-mapper-benchmark-" + mapperIds++, RegexMapper.PROVIDER_ID, config);
+        }
+    }
+
+    @Benchmark
+    public AccessToken transformAccessToken() {
+        final AccessToken token = new AccessToken();
+        if (mergeClaims) {
+            token.getOtherClaims().put("azc", existingClaim);
+        }
+        return mapper.transformAccessToken(token, mapperModel, null, userSession, null);
+    }
+}
@@ -0,0 +1,76 @@
+package org.sral.keycloak.mappers.benchmarks;
+
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.representations.AccessToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sral.keycloak.mappers.RegexReplaceMapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link RegexReplaceMapper} per access token, across the number of replacement rules and claim values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegexReplaceMapperBenchmark {
+
+    @Param({"1", "10", "200"})
+    public int rules;
+
+    @Param({"1", "100", "10000"})
+    public int values;
+
+    @Param({"false", "true"})
+    public boolean multiValued;
+
+    private final RegexReplaceMapper mapper = new RegexReplaceMapper();
+    private ProtocolMapperModel mapperModel;
+    private List<String> claimValues;
+
+    @Setup
+    public void setUp() {
+        claimValues = new ArrayList<>(values);
+        for (int i = 0; i < values; i++) {
+            claimValues.add("/compartments/level-1/group-" + i);
+        }
+
+        // Only the last rule matches, so every value is run through every rule.
+        final StringBuilder replacements = new StringBuilder("[");
+        for (int i = 1; i < rules; i++) {
+            replacements.append("{\"key\":\"^/tenants-").append(i).append("/(.*)\",\"value\":\"$1\"},");
+        }
+        replacements.append("{\"key\":\"^/compartments/(.*)\",\"value\":\"$1\"}]");
+
+        final Map<String, String> config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN, "true");
+        config.put(RegexReplaceMapper.TARGET_CLAIMS_PROPERTY, "azc");
+        config.put(RegexReplaceMapper.REPLACEMENT_MAP_PROPERTY, replacements.toString());
+        mapperModel = Fixtures.mapper("regex-replace-mapper-benchmark", RegexReplaceMapper.PROVIDER_ID, config);
+    }
+
+    @Benchmark
+    public AccessToken transformAccessToken() {
+        final AccessToken token = new AccessToken();
+        token.getOtherClaims().put("azc", multiValued ? new ArrayList<>(claimValues) : claimValues.get(0));
+        return mapper.transformAccessToken(token, mapperModel, null, null, null);
+    }
+}
@@ -0,0 +1,125 @@
+package org.sral.keycloak.mappers.datasetup.scale;
+
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.representations.idm.PartialImportRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+/**
+ * Loads a {@link ScaleRealm} into a running Keycloak through the admin API.
+ * <p>
+ * The realm and its client are created first, then every top level group with its subtree and finally the users in
+ * batches of {@code batchSize}, each group tree and user batch as one partial import. Up to {@code threads} imports
+ * run at the same time; batches are only built when a thread is free to send them, so memory use does not grow with
+ * the number of users. Existing groups and users are skipped, so an interrupted load can simply be run again.
+ */
+public class ConcurrentRealmLoader {
+
+    private final Keycloak keycloak;
+    private final ScaleRealm realm;
+    private final int threads;
+    private final int batchSize;
+
+    public ConcurrentRealmLoader(Keycloak keycloak, ScaleRealm realm, int threads, int batchSize) {
+        if (threads < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("threads and batch size must be positive");
+        }
+        this.keycloak = keycloak;
+        this.realm = realm;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    public void execute() throws InterruptedException {
+        if (keycloak.realms().findAll().stream().noneMatch(existing -> realm.getName().equals(existing.getRealm()))) {
+            keycloak.realms().create(realm.realmRepresentation());
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            importAll(executor, "group trees", realm.groupsAtLevel(1), this::groupTree);
+            importAll(executor, "user batches", (realm.getUsers() + batchSize - 1) / batchSize, this::userBatch);
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private PartialImportRepresentation groupTree(int index) {
+        PartialImportRepresentation partialImport = new PartialImportRepresentation();
+        partialImport.setGroups(Collections.singletonList(realm.groupTree(1, index)));
+        return partialImport;
+    }
+
+    private PartialImportRepresentation userBatch(int batch) {
+        final int from = batch * batchSize;
+        final int to = Math.min(realm.getUsers(), from + batchSize);
+        final List<UserRepresentation> users = new ArrayList<>(to - from);
+        for (int user = from; user < to; user++) {
+            users.add(realm.user(user));
+        }
+        PartialImportRepresentation partialImport = new PartialImportRepresentation();
+        partialImport.setUsers(users);
+        return partialImport;
+    }
+
+    /**
+     * Builds and sends the batches on the executor, and waits until all of them are imported.
+     *
+     * @throws IllegalStateException if one of the imports failed; no further batches are sent after a failure.
+     */
+    private void importAll(ExecutorService executor,
+                           String what,
+                           int batches,
+                           IntFunction<PartialImportRepresentation> batch) throws InterruptedException {
+        final Semaphore running = new Semaphore(threads);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        final AtomicInteger imported = new AtomicInteger();
+        final int reportEvery = Math.max(1, batches / 20);
+        final long start = System.nanoTime();
+        for (int i = 0; i < batches && failure.get() == null; i++) {
+            running.acquire();
+            final int index = i;
+            executor.execute(() -> {
+                try {
+                    send(batch.apply(index));
+                    final int done = imported.incrementAndGet();
+                    if (done % reportEvery == 0 || done == batches) {
+                        System.out.printf("Imported %d of %d %s in %d s%n",
+                                done, batches, what, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+                    }
+                } catch (RuntimeException ex) {
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    running.release();
+                }
+            });
+        }
+        // All permits are back once the last batch is done.
+        running.acquire(threads);
+        running.release(threads);
+        if (failure.get() != null) {
+            throw new IllegalStateException("Importing " + what + " failed", failure.get());
+        }
+    }
+
+    private void send(PartialImportRepresentation partialImport) {
+        partialImport.setIfResourceExists(PartialImportRepresentation.Policy.SKIP.name());
+        try (Response response = keycloak.realm(realm.getName()).partialImport(partialImport)) {
+            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                throw new IllegalStateException("Partial import returned " + response.getStatus() + ": "
+                        + response.readEntity(String.class));
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.sral.keycloak.mappers.datasetup.scale;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a {@link ScaleRealm} as realm import files for Keycloak's {@code dir} migration provider:
+ * {@code <realm>-realm.json} with the realm, client and groups, and the users in {@code <realm>-users-<n>.json} files
+ * of {@code usersPerFile} users each, or in the realm file if {@code usersPerFile} is 0.
+ * <p>
+ * Groups and users are written one by one with the Jackson streaming API, so memory use does not grow with the size of
+ * the realm. Import the files with
+ * {@code -Dkeycloak.migration.action=import -Dkeycloak.migration.provider=dir -Dkeycloak.migration.dir=<directory>}.
+ */
+public class RealmImportGenerator {
+
+    private final ScaleRealm realm;
+    private final int usersPerFile;
+
+    public RealmImportGenerator(ScaleRealm realm, int usersPerFile) {
+        this.realm = realm;
+        this.usersPerFile = usersPerFile;
+    }
+
+    public void execute(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        try (JsonGenerator generator = createGenerator(directory.resolve(realm.getName() + "-realm.json"))) {
+            generator.writeStartObject();
+            final ObjectNode realmRepresentation = JsonSerialization.mapper.valueToTree(realm.realmRepresentation());
+            final Iterator<Map.Entry<String, JsonNode>> fields = realmRepresentation.fields();
+            while (fields.hasNext()) {
+                final Map.Entry<String, JsonNode> field = fields.next();
+                generator.writeFieldName(field.getKey());
+                generator.writeTree(field.getValue());
+            }
+            generator.writeArrayFieldStart("groups");
+            for (int index = 0; index < realm.groupsAtLevel(1); index++) {
+                writeGroup(generator, 1, index);
+            }
+            generator.writeEndArray();
+            if (usersPerFile == 0) {
+                writeUsers(generator, 0, realm.getUsers());
+            }
+            generator.writeEndObject();
+        }
+        if (usersPerFile > 0) {
+            for (int from = 0, file = 0; from < realm.getUsers(); from += usersPerFile, file++) {
+                final Path usersFile = directory.resolve(realm.getName() + "-users-" + file + ".json");
+                try (JsonGenerator generator = createGenerator(usersFile)) {
+                    generator.writeStartObject();
+                    generator.writeStringField("realm", realm.getName());
+                    writeUsers(generator, from, Math.min(realm.getUsers(), from + usersPerFile));
+                    generator.writeEndObject();
+                }
+            }
+        }
+    }
+
+    private static JsonGenerator createGenerator(Path file) throws IOException {
+        return JsonSerialization.mapper.getFactory().createGenerator(Files.newOutputStream(file), JsonEncoding.UTF8);
+    }
+
+    private void writeGroup(JsonGenerator generator, int level, int index) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("name", realm.groupName(level, index));
+        generator.writeStringField("path", realm.groupPath(level, index));
+        if (level < realm.getGroupDepth()) {
+            generator.writeArrayFieldStart("subGroups");
+            final int fanOut = realm.getGroupFanOut();
+            for (int child = index * fanOut; child < (index + 1) * fanOut; child++) {
+                writeGroup(generator, level + 1, child);
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+    }
+
+    private void writeUsers(JsonGenerator generator, int from, int to) throws IOException {
+        final List<CredentialRepresentation> credentials = Collections.singletonList(realm.password());
+        generator.writeArrayFieldStart("users");
+        for (int user = from; user < to; user++) {
+            generator.writeStartObject();
+            generator.writeStringField("username", realm.username(user));
+            generator.writeBooleanField("enabled", true);
+            generator.writeObjectField("credentials", credentials);
+            generator.writeArrayFieldStart("groups");
+            for (String path : realm.memberships(user)) {
+                generator.writeString(path);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+}
@@ -0,0 +1,251 @@
+package org.sral.keycloak.mappers.datasetup.scale;
+
+import org.keycloak.credential.hash.Pbkdf2PasswordHashProvider;
+import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.CredentialRepresentation;
+import org.keycloak.representations.idm.GroupRepresentation;
+import org.keycloak.representations.idm.ProtocolMapperRepresentation;
+import org.keycloak.representations.idm.RealmRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.sral.keycloak.mappers.RegexMapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * A generated realm of configurable size, shared by {@link RealmImportGenerator} and {@link ConcurrentRealmLoader} so
+ * that both produce exactly the same data.
+ * <p>
+ * The groups form a tree of {@code groupDepth} levels below {@code groupFanOut} top level groups, every group having
+ * {@code groupFanOut} children. The group at level {@code l} (starting at 1) with index {@code i} within its level is
+ * named {@code g<l>-<i>}; its parent is the group with index {@code i / groupFanOut} one level up. Every user is a
+ * member of {@code membershipsPerUser} leaf groups, picked by a random generator seeded with the seed and the user
+ * number, so any user can be rebuilt on its own. Nothing but the profile is kept in memory.
+ * <p>
+ * All users share the password of {@link #PASSWORD}, hashed once up front, so that importing a million users does not
+ * mean hashing a million passwords.
+ */
+public class ScaleRealm {
+
+    public static final String CLIENT = "scale-realm-client";
+    public static final String PASSWORD = "Passw0rd!";
+
+    private static final String PROTOCOL = "openid-connect";
+    private static final int HASH_ITERATIONS = 27500;
+
+    private final String name;
+    private final int users;
+    private final int groupDepth;
+    private final int groupFanOut;
+    private final int membershipsPerUser;
+    private final int mappers;
+    private final long seed;
+    private final int[] groupsAtLevel;
+
+    private CredentialRepresentation password;
+
+    public ScaleRealm(String name, int users, int groupDepth, int groupFanOut, int membershipsPerUser, int mappers, long seed) {
+        if (users < 0 || groupDepth < 1 || groupFanOut < 1 || membershipsPerUser < 0 || mappers < 0) {
+            throw new IllegalArgumentException("Counts must not be negative and the group tree must have at least one level");
+        }
+        this.name = name;
+        this.users = users;
+        this.groupDepth = groupDepth;
+        this.groupFanOut = groupFanOut;
+        this.membershipsPerUser = membershipsPerUser;
+        this.mappers = mappers;
+        this.seed = seed;
+        this.groupsAtLevel = new int[groupDepth + 1];
+        long groups = 1;
+        long total = 0;
+        for (int level = 1; level <= groupDepth; level++) {
+            groups *= groupFanOut;
+            total += groups;
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many groups: " + groupFanOut + "^" + groupDepth);
+            }
+            groupsAtLevel[level] = (int) groups;
+        }
+    }
+
+    /**
+     * Reads the profile from the system properties {@code realm}, {@code users}, {@code group.depth},
+     * {@code group.fanout}, {@code memberships}, {@code mappers} and {@code seed}.
+     */
+    public static ScaleRealm fromSystemProperties() {
+        return new ScaleRealm(
+                System.getProperty("realm", "scale-realm"),
+                Integer.getInteger("users", 1_000),
+                Integer.getInteger("group.depth", 3),
+                Integer.getInteger("group.fanout", 10),
+                Integer.getInteger("memberships", 20),
+                Integer.getInteger("mappers", 1),
+                Long.getLong("seed", 42L));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public int getGroupDepth() {
+        return groupDepth;
+    }
+
+    public int getGroupFanOut() {
+        return groupFanOut;
+    }
+
+    public int getGroupCount() {
+        int count = 0;
+        for (int level = 1; level <= groupDepth; level++) {
+            count += groupsAtLevel[level];
+        }
+        return count;
+    }
+
+    /**
+     * @return the realm with its client and mappers, but without groups and users.
+     */
+    public RealmRepresentation realmRepresentation() {
+        RealmRepresentation realmRepresentation = new RealmRepresentation();
+        realmRepresentation.setId(name);
+        realmRepresentation.setRealm(name);
+        realmRepresentation.setDisplayName(name);
+        realmRepresentation.setEnabled(true);
+        realmRepresentation.setClients(Collections.singletonList(client()));
+        return realmRepresentation;
+    }
+
+    private ClientRepresentation client() {
+        ClientRepresentation client = new ClientRepresentation();
+        client.setEnabled(true);
+        client.setDirectAccessGrantsEnabled(true);
+        client.setId(CLIENT);
+        client.setClientId(CLIENT);
+        client.setName(CLIENT);
+        client.setPublicClient(Boolean.TRUE);
+        client.setProtocolMappers(protocolMappers());
+        return client;
+    }
+
+    /**
+     * Mapper {@code i} puts the leaf groups below the top level groups whose index ends in {@code i % 10} into the
+     * claim {@code azc<i>}, so that every mapper matches roughly a tenth of the memberships.
+     */
+    private List<ProtocolMapperRepresentation> protocolMappers() {
+        final List<ProtocolMapperRepresentation> protocolMappers = new ArrayList<>(mappers);
+        for (int i = 0; i < mappers; i++) {
+            ProtocolMapperRepresentation protocolMapperRepresentation = new ProtocolMapperRepresentation();
+            protocolMapperRepresentation.setProtocolMapper(RegexMapper.PROVIDER_ID);
+            protocolMapperRepresentation.setProtocol(PROTOCOL);
+            protocolMapperRepresentation.setName("Authorized compartments " + i);
+            Map<String, String> config = new HashMap<>();
+            config.put("access.token.claim", "true");
+            config.put(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME, "azc" + i);
+            config.put(RegexMapper.FULL_PATH_PROPERTY, "true");
+            config.put(RegexMapper.REGEX_PATTERN_PROPERTY, groupDepth == 1
+                    ? "^/(g1-\\d*" + (i % 10) + ")$"
+                    : "^/g1-\\d*" + (i % 10) + "(?:/[^/]+)*/(g" + groupDepth + "-\\d+)$");
+            config.put(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY, "1");
+            protocolMapperRepresentation.setConfig(config);
+            protocolMappers.add(protocolMapperRepresentation);
+        }
+        return protocolMappers;
+    }
+
+    /**
+     * @return the number of groups on the level, starting at 1 for the top level.
+     */
+    public int groupsAtLevel(int level) {
+        return groupsAtLevel[level];
+    }
+
+    public String groupName(int level, int index) {
+        return "g" + level + "-" + index;
+    }
+
+    public String groupPath(int level, int index) {
+        final StringBuilder path = new StringBuilder();
+        appendPath(path, level, index);
+        return path.toString();
+    }
+
+    private void appendPath(StringBuilder path, int level, int index) {
+        if (level > 1) {
+            appendPath(path, level - 1, index / groupFanOut);
+        }
+        path.append('/').append(groupName(level, index));
+    }
+
+    /**
+     * @return the group with all groups below it.
+     */
+    public GroupRepresentation groupTree(int level, int index) {
+        GroupRepresentation group = new GroupRepresentation();
+        group.setName(groupName(level, index));
+        if (level < groupDepth) {
+            final List<GroupRepresentation> subGroups = new ArrayList<>(groupFanOut);
+            for (int child = index * groupFanOut; child < (index + 1) * groupFanOut; child++) {
+                subGroups.add(groupTree(level + 1, child));
+            }
+            group.setSubGroups(subGroups);
+        }
+        return group;
+    }
+
+    public String username(int user) {
+        return "user-" + user;
+    }
+
+    /**
+     * @return the paths of the groups the user is a member of.
+     */
+    public List<String> memberships(int user) {
+        final int leaves = groupsAtLevel[groupDepth];
+        final int count = Math.min(membershipsPerUser, leaves);
+        final SplittableRandom random = new SplittableRandom(seed * 31 + user);
+        final Set<Integer> picked = new LinkedHashSet<>();
+        while (picked.size() < count) {
+            picked.add(random.nextInt(leaves));
+        }
+        final List<String> paths = new ArrayList<>(count);
+        for (int leaf : picked) {
+            paths.add(groupPath(groupDepth, leaf));
+        }
+        return paths;
+    }
+
+    public UserRepresentation user(int user) {
+        UserRepresentation userRepresentation = new UserRepresentation();
+        userRepresentation.setUsername(username(user));
+        userRepresentation.setEnabled(true);
+        userRepresentation.setCredentials(Collections.singletonList(password()));
+        userRepresentation.setGroups(memberships(user));
+        return userRepresentation;
+    }
+
+    /**
+     * @return the hashed password credential of all users.
+     */
+    public synchronized CredentialRepresentation password() {
+        if (password == null) {
+            final Pbkdf2PasswordHashProvider hashProvider =
+                    new Pbkdf2PasswordHashProvider("pbkdf2-sha256", "PBKDF2WithHmacSHA256", HASH_ITERATIONS);
+            password = ModelToRepresentation.toRepresentation(hashProvider.encodedCredential(PASSWORD, HASH_ITERATIONS));
+            password.setId(null);
+        }
+        return password;
+    }
+}
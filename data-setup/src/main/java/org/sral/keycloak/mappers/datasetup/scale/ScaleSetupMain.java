@@ -0,0 +1,57 @@
+package org.sral.keycloak.mappers.datasetup.scale;
+
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.admin.client.KeycloakBuilder;
+
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates a large realm for scale testing, see {@link ScaleRealm} for its shape.
+ * <p>
+ * {@code generate [directory]} writes realm import files with {@link RealmImportGenerator}, {@code load} loads the
+ * realm into the Keycloak at {@code keycloak.url} with {@link ConcurrentRealmLoader}. A realm with a million users in
+ * fifty thousand groups, for example:
+ * <pre>
+ * -Dusers=1000000 -Dgroup.depth=3 -Dgroup.fanout=37 -Dmemberships=20 -Dmappers=4
+ * </pre>
+ * The loader takes {@code threads} (default 8) and {@code batch.size} (default 500), the generator
+ * {@code users.per.file} (default 50000).
+ */
+public class ScaleSetupMain {
+
+    public static void main(String[] args) throws Exception {
+        final String command = args.length > 0 ? args[0] : "load";
+        final ScaleRealm realm = ScaleRealm.fromSystemProperties();
+        final long start = System.nanoTime();
+        switch (command) {
+            case "generate":
+                final String directory = args.length > 1 ? args[1] : "target/" + realm.getName();
+                new RealmImportGenerator(realm, Integer.getInteger("users.per.file", 50_000)).execute(Paths.get(directory));
+                System.out.println("The realm import has been written to " + directory + ".");
+                break;
+            case "load":
+                final int threads = Integer.getInteger("threads", 8);
+                new ConcurrentRealmLoader(createKeycloakClient(threads), realm, threads, Integer.getInteger("batch.size", 500)).execute();
+                System.out.println("The realm has been loaded.");
+                break;
+            default:
+                System.err.println("Usage: ScaleSetupMain generate [directory] | load");
+                System.exit(1);
+        }
+        System.out.printf("%s: %d users, %d groups in %d s%n", realm.getName(), realm.getUsers(), realm.getGroupCount(),
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+    }
+
+    private static Keycloak createKeycloakClient(int threads) {
+        return KeycloakBuilder.builder()
+                .serverUrl(System.getProperty("keycloak.url", "http://localhost:11080/auth"))
+                .realm("master")
+                .username("admin")
+                .password("password")
+                .clientId("admin-cli")
+                .resteasyClient(((ResteasyClientBuilder) ResteasyClientBuilder.newBuilder()).connectionPoolSize(threads).build())
+                .build();
+    }
+}
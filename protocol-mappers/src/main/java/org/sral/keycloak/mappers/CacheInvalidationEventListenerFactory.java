@@ -0,0 +1,132 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.Config;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.provider.ProviderEvent;
+
+/**
+ * Keeps the mapper caches in line with the group tree and the composite roles.
+ * <p>
+ * Deleted groups, roles, clients and realms are picked up from the provider events Keycloak always publishes.
+ * Keycloak does not publish provider events for renamed or moved groups or for changed composites, so those are
+ * taken from admin events: add the {@value #PROVIDER_ID} event listener to the realm (Realm Settings &gt; Events &gt;
+ * Event Listeners) to have changes to ancestor groups and composite roles reflected immediately, and changed mappers
+ * {@link MapperWarmUp warmed up} before their next token.
+ */
+public class CacheInvalidationEventListenerFactory implements EventListenerProviderFactory {
+
+    public static final String PROVIDER_ID = "regex-mapper-cache";
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return new AdminEventListener(session.getKeycloakSessionFactory());
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        GroupPathCache.getInstance().setMaxEntriesPerRealm(
+                config.getInt("maxGroupPathsPerRealm", GroupPathCache.DEFAULT_MAX_ENTRIES_PER_REALM));
+        GroupMatchTable.setMaxEntries(config.getInt("maxGroupMatches", GroupMatchTable.DEFAULT_MAX_ENTRIES));
+        RoleExpansionCache.getInstance().setMaxEntriesPerRealm(
+                config.getInt("maxRoleExpansionsPerRealm", RoleExpansionCache.DEFAULT_MAX_ENTRIES_PER_REALM));
+        RoleExpansionCache.getInstance().setTtlSeconds(
+                config.getInt("roleExpansionTtlSeconds", RoleExpansionCache.DEFAULT_TTL_SECONDS));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        factory.register(CacheInvalidationEventListenerFactory::onProviderEvent);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    static void onProviderEvent(final ProviderEvent event) {
+        if (event instanceof GroupModel.GroupRemovedEvent) {
+            final var removed = (GroupModel.GroupRemovedEvent) event;
+            invalidateGroup(removed.getRealm().getId(), removed.getGroup().getId());
+        } else if (event instanceof RoleContainerModel.RoleRemovedEvent) {
+            final var role = ((RoleContainerModel.RoleRemovedEvent) event).getRole();
+            RoleExpansionCache.getInstance().invalidateRole(role.getId());
+        } else if (event instanceof RealmModel.ClientRemovedEvent) {
+            final var client = ((RealmModel.ClientRemovedEvent) event).getClient();
+            RoleExpansionCache.getInstance().invalidateRealm(client.getRealm().getId());
+        } else if (event instanceof RealmModel.RealmRemovedEvent) {
+            invalidateRealm(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+        }
+    }
+
+    static void onAdminEvent(final AdminEvent event) {
+        if (event.getResourceType() == ResourceType.REALM_ROLE || event.getResourceType() == ResourceType.CLIENT_ROLE) {
+            // Role resource paths carry names rather than ids, and a changed composite affects every role above it.
+            RoleExpansionCache.getInstance().invalidateRealm(event.getRealmId());
+            return;
+        }
+        if (event.getResourceType() != ResourceType.GROUP || event.getResourcePath() == null) {
+            return;
+        }
+        // Resource paths look like groups/{id} for updates and deletes, and groups/{parentId}/children/{id} when a
+        // group is moved below another one. In both cases the last id is the group whose path changed.
+        final var segments = event.getResourcePath().split("/");
+        for (int i = segments.length - 1; i >= 0; i--) {
+            final var segment = segments[i];
+            if (!segment.isEmpty() && !"groups".equals(segment) && !"children".equals(segment)) {
+                invalidateGroup(event.getRealmId(), segment);
+                return;
+            }
+        }
+    }
+
+    private static void invalidateGroup(final String realmId, final String groupId) {
+        GroupPathCache.getInstance().invalidate(realmId, groupId);
+        GroupMatchTable.invalidateGroup(realmId, groupId);
+        // Subtrees are cheap to rebuild and group changes are rare, so any of them drops all subtrees of the realm.
+        GroupSubtreeCache.getInstance().invalidateRealm(realmId);
+    }
+
+    private static void invalidateRealm(final String realmId) {
+        GroupPathCache.getInstance().invalidateRealm(realmId);
+        GroupMatchTable.invalidateRealm(realmId);
+        GroupSubtreeCache.getInstance().invalidateRealm(realmId);
+        RoleExpansionCache.getInstance().invalidateRealm(realmId);
+        ClaimDictionary.invalidateRealm(realmId);
+    }
+
+    private static class AdminEventListener implements EventListenerProvider {
+
+        private final KeycloakSessionFactory factory;
+
+        private AdminEventListener(final KeycloakSessionFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public void onEvent(Event event) {
+        }
+
+        @Override
+        public void onEvent(AdminEvent event, boolean includeRepresentation) {
+            onAdminEvent(event);
+            MapperWarmUp.onAdminEvent(factory, event);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.RealmModel;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Realm published list of claim values that {@link ClaimEncoder.Encoding#BITSET bitset} encoded claims refer to by
+ * position.
+ * <p>
+ * A dictionary is kept in the realm attribute {@value #ATTRIBUTE_PREFIX}{@code <name>}, one value per line, and
+ * served to resource servers by {@link RegexMappersResource#getDictionary(String)}. Its version is derived from the
+ * values, so it changes exactly when a position may have changed. Values should only ever be appended, so that tokens
+ * issued before a change still decode to the same values with the new dictionary.
+ * <p>
+ * The compiled dictionaries are cached per realm and name, and rebuilt when the attribute changes.
+ */
+final class ClaimDictionary {
+
+    static final String ATTRIBUTE_PREFIX = "regex-mappers.dictionary.";
+
+    private static final ConcurrentMap<String, ClaimDictionary> CACHE = new ConcurrentHashMap<>();
+
+    private final String source;
+    private final List<String> values;
+    private final Map<String, Integer> positions;
+    private final String version;
+
+    private ClaimDictionary(final String source, final List<String> values, final Map<String, Integer> positions, final String version) {
+        this.source = source;
+        this.values = values;
+        this.positions = positions;
+        this.version = version;
+    }
+
+    /**
+     * @return the dictionary with the name, or null if the realm has none.
+     */
+    static ClaimDictionary get(final RealmModel realm, final String name) {
+        if (realm == null) {
+            return null;
+        }
+        final var source = realm.getAttribute(ATTRIBUTE_PREFIX + name);
+        final var key = realm.getId() + '/' + name;
+        if (source == null) {
+            CACHE.remove(key);
+            return null;
+        }
+        final var cached = CACHE.get(key);
+        if (cached != null && cached.source.equals(source)) {
+            return cached;
+        }
+        final var dictionary = parse(source);
+        CACHE.put(key, dictionary);
+        return dictionary;
+    }
+
+    static void invalidateRealm(final String realmId) {
+        CACHE.keySet().removeIf(key -> key.startsWith(realmId + '/'));
+    }
+
+    static ClaimDictionary parse(final String source) {
+        final List<String> values = new ArrayList<>();
+        final Map<String, Integer> positions = new HashMap<>();
+        for (String line : source.split("\n")) {
+            final var value = line.trim();
+            if (!value.isEmpty() && !positions.containsKey(value)) {
+                positions.put(value, values.size());
+                values.add(value);
+            }
+        }
+        return new ClaimDictionary(source, Collections.unmodifiableList(values), positions, version(values));
+    }
+
+    private static String version(final List<String> values) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        for (String value : values) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        final var hash = digest.digest();
+        final var version = new StringBuilder(16);
+        for (int i = 0; i < 8; i++) {
+            version.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return version.toString();
+    }
+
+    /**
+     * @return the position of the value, or -1 if it is not in the dictionary.
+     */
+    int positionOf(final String value) {
+        final var position = positions.get(value);
+        return position == null ? -1 : position;
+    }
+
+    List<String> getValues() {
+        return values;
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    String getVersion() {
+        return version;
+    }
+}
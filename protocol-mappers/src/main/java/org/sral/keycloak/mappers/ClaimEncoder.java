@@ -0,0 +1,336 @@
+package org.sral.keycloak.mappers;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.representations.IDToken;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * How the values of a {@link RegexMapper} are written into the token, and what happens when they do not fit.
+ * <p>
+ * Users with thousands of matching groups easily push a token past the header limits of proxies, so besides the
+ * plain list a claim can be written as a sorted {@link Encoding#PREFIX prefix compressed} list or as a
+ * {@link Encoding#BITSET bitset} over a {@link ClaimDictionary}. Independently of the encoding, the encoded claim can
+ * be capped at a number of bytes; see {@link Overflow} for what happens to a claim above the cap.
+ */
+final class ClaimEncoder {
+
+    private static final Logger LOG = Logger.getLogger(ClaimEncoder.class);
+
+    static final String ENCODING_PROPERTY = "claim.encoding";
+    static final String DICTIONARY_PROPERTY = "claim.dictionary";
+    static final String MAX_BYTES_PROPERTY = "claim.max.bytes";
+    static final String OVERFLOW_PROPERTY = "claim.overflow";
+
+    /**
+     * Appended to the claim name for the claim holding the dictionary version of a bitset.
+     */
+    static final String VERSION_CLAIM_SUFFIX = "_dict";
+
+    static final ClaimEncoder PLAIN = new ClaimEncoder(Encoding.LIST, null, 0, Overflow.TRUNCATE);
+
+    enum Encoding {
+        /**
+         * The values as they are, in the order they were found.
+         */
+        LIST("list"),
+        /**
+         * The values sorted, each written as the length of the prefix it shares with the previous value, a colon and
+         * the rest of it: {@code ["0:/compartments/a", "14:b"]}.
+         */
+        PREFIX("prefix"),
+        /**
+         * A base64url string whose bit {@code i}, counted from the lowest bit of the first byte, is set if the value
+         * at position {@code i} of the dictionary is one of the values. The dictionary version is added as a claim of
+         * its own. If a value is not in the dictionary, the claim is written as a plain list without version.
+         */
+        BITSET("bitset");
+
+        private final String configValue;
+
+        Encoding(final String configValue) {
+            this.configValue = configValue;
+        }
+
+        String getConfigValue() {
+            return configValue;
+        }
+    }
+
+    enum Overflow {
+        /**
+         * Keep as many values as fit, dropping them from the end of the list. A bitset cannot be cut short and is
+         * left out.
+         */
+        TRUNCATE("truncate"),
+        /**
+         * Leave the claim out.
+         */
+        OMIT("omit"),
+        /**
+         * Emit the fallback value of the mapper instead, or leave the claim out if there is none.
+         */
+        FALLBACK("fallback");
+
+        private final String configValue;
+
+        Overflow(final String configValue) {
+            this.configValue = configValue;
+        }
+
+        String getConfigValue() {
+            return configValue;
+        }
+    }
+
+    private final Encoding encoding;
+    private final String dictionaryName;
+    private final int maxBytes;
+    private final Overflow overflow;
+
+    ClaimEncoder(final Encoding encoding, final String dictionaryName, final int maxBytes, final Overflow overflow) {
+        this.encoding = encoding;
+        this.dictionaryName = dictionaryName;
+        this.maxBytes = maxBytes;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Adds the encoding and size cap settings to the configuration properties of a mapper.
+     */
+    static void addConfigProperties(final List<ProviderConfigProperty> configProperties) {
+        configProperties.addAll(
+                ProviderConfigurationBuilder.create()
+                .property()
+                .name(ENCODING_PROPERTY)
+                .label("Claim encoding")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .helpText("list: the values as they are. prefix: sorted, each value as the length of the prefix shared with the previous one, ':' and the rest. bitset: a base64url bitset over the values of the claim dictionary, with its version in the claim <claim name>" + VERSION_CLAIM_SUFFIX)
+                .options(Arrays.asList(Encoding.LIST.getConfigValue(), Encoding.PREFIX.getConfigValue(), Encoding.BITSET.getConfigValue()))
+                .defaultValue(Encoding.LIST.getConfigValue())
+                .add()
+
+                .property()
+                .name(DICTIONARY_PROPERTY)
+                .label("Claim dictionary")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("bitset only: name of the dictionary, kept in the realm attribute " + ClaimDictionary.ATTRIBUTE_PREFIX + "<name> with one value per line and published at /realms/<realm>/regex-mappers/dictionaries/<name>. Only append values, so that issued tokens keep their meaning")
+                .add()
+
+                .property()
+                .name(MAX_BYTES_PROPERTY)
+                .label("Maximum claim size (bytes)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Maximum size of the encoded claim in the token payload. 0 for no limit")
+                .defaultValue("0")
+                .add()
+
+                .property()
+                .name(OVERFLOW_PROPERTY)
+                .label("Claim size overflow")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .helpText("What happens to a claim above the maximum size. truncate: keep as many values as fit; a bitset is left out. omit: leave the claim out. fallback: emit the fallback value instead")
+                .options(Arrays.asList(Overflow.TRUNCATE.getConfigValue(), Overflow.OMIT.getConfigValue(), Overflow.FALLBACK.getConfigValue()))
+                .defaultValue(Overflow.TRUNCATE.getConfigValue())
+                .add()
+
+                .build());
+    }
+
+    /**
+     * @throws IllegalArgumentException if one of the settings is invalid.
+     */
+    static ClaimEncoder fromConfig(final Map<String, String> config) {
+        final var encoding = parse(Encoding.values(), Encoding::getConfigValue, config.get(ENCODING_PROPERTY), Encoding.LIST);
+        final var overflow = parse(Overflow.values(), Overflow::getConfigValue, config.get(OVERFLOW_PROPERTY), Overflow.TRUNCATE);
+
+        final var maxBytesValue = config.get(MAX_BYTES_PROPERTY);
+        int maxBytes = 0;
+        if (maxBytesValue != null && !maxBytesValue.trim().isEmpty()) {
+            try {
+                maxBytes = Integer.parseInt(maxBytesValue.trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(MAX_BYTES_PROPERTY + " is not a number: " + maxBytesValue, ex);
+            }
+            if (maxBytes < 0) {
+                throw new IllegalArgumentException(MAX_BYTES_PROPERTY + " must not be negative: " + maxBytesValue);
+            }
+        }
+
+        var dictionaryName = config.get(DICTIONARY_PROPERTY);
+        dictionaryName = dictionaryName == null || dictionaryName.trim().isEmpty() ? null : dictionaryName.trim();
+        if (encoding == Encoding.BITSET && dictionaryName == null) {
+            throw new IllegalArgumentException("The bitset encoding needs a claim dictionary");
+        }
+
+        if (encoding == Encoding.LIST && maxBytes == 0) {
+            return PLAIN;
+        }
+        return new ClaimEncoder(encoding, dictionaryName, maxBytes, overflow);
+    }
+
+    private static <T> T parse(final T[] values,
+                               final Function<T, String> configValue,
+                               final String value,
+                               final T defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        for (T candidate : values) {
+            if (configValue.apply(candidate).equals(value)) {
+                return candidate;
+            }
+        }
+        throw new IllegalArgumentException("Unknown option: " + value);
+    }
+
+    Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Puts the values into the token under the claim name, encoded and capped as configured.
+     *
+     * @return the number of values in the claim.
+     */
+    int put(final IDToken token,
+            final String claimName,
+            final List<String> values,
+            final RealmModel realm,
+            final String fallbackValue) {
+        if (this == PLAIN) {
+            token.getOtherClaims().put(claimName, values);
+            return values.size();
+        }
+
+        if (encoding == Encoding.BITSET) {
+            final var dictionary = ClaimDictionary.get(realm, dictionaryName);
+            final var bits = dictionary == null ? null : bitset(dictionary, values);
+            if (bits != null) {
+                final var encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(bits);
+                if (maxBytes > 0 && encoded.length() + 2 > maxBytes) {
+                    return overflow(token, claimName, null, fallbackValue);
+                }
+                token.getOtherClaims().put(claimName, encoded);
+                token.getOtherClaims().put(claimName + VERSION_CLAIM_SUFFIX, dictionary.getVersion());
+                return values.size();
+            }
+            LOG.debugf("Values of claim %s are not all in dictionary %s, writing a list", claimName, dictionaryName);
+        }
+
+        final var entries = encoding == Encoding.PREFIX ? prefixCompressed(values) : values;
+        if (maxBytes > 0 && jsonSize(entries) > maxBytes) {
+            return overflow(token, claimName, entries, fallbackValue);
+        }
+        token.getOtherClaims().put(claimName, entries);
+        return entries.size();
+    }
+
+    private int overflow(final IDToken token, final String claimName, final List<String> entries, final String fallbackValue) {
+        LOG.debugf("Claim %s exceeds %d bytes", claimName, maxBytes);
+        if (overflow == Overflow.TRUNCATE && entries != null) {
+            final var truncated = truncate(entries, maxBytes);
+            token.getOtherClaims().put(claimName, truncated);
+            return truncated.size();
+        }
+        if (overflow == Overflow.FALLBACK && fallbackValue != null) {
+            final List<String> fallback = new ArrayList<>();
+            fallback.add(fallbackValue);
+            token.getOtherClaims().put(claimName, fallback);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the bitset of the values, or null if one of them is not in the dictionary.
+     */
+    static byte[] bitset(final ClaimDictionary dictionary, final List<String> values) {
+        final var bits = new byte[(dictionary.size() + 7) / 8];
+        for (int i = 0; i < values.size(); i++) {
+            final int position = dictionary.positionOf(values.get(i));
+            if (position < 0) {
+                return null;
+            }
+            bits[position >> 3] |= 1 << (position & 7);
+        }
+        return bits;
+    }
+
+    static List<String> prefixCompressed(final List<String> values) {
+        final List<String> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        final List<String> entries = new ArrayList<>(sorted.size());
+        String previous = "";
+        for (String value : sorted) {
+            int shared = 0;
+            final int max = Math.min(previous.length(), value.length());
+            while (shared < max && previous.charAt(shared) == value.charAt(shared)) {
+                shared++;
+            }
+            if (shared > 0 && Character.isHighSurrogate(value.charAt(shared - 1))) {
+                // Never split a surrogate pair.
+                shared--;
+            }
+            entries.add(shared + ":" + value.substring(shared));
+            previous = value;
+        }
+        return entries;
+    }
+
+    private static List<String> truncate(final List<String> entries, final int maxBytes) {
+        final List<String> truncated = new ArrayList<>();
+        int size = 2;
+        for (String entry : entries) {
+            size += jsonSize(entry) + (truncated.isEmpty() ? 0 : 1);
+            if (size > maxBytes) {
+                break;
+            }
+            truncated.add(entry);
+        }
+        return truncated;
+    }
+
+    /**
+     * @return the number of bytes of the list as a JSON array of strings.
+     */
+    static int jsonSize(final List<String> values) {
+        int size = 2 + Math.max(0, values.size() - 1);
+        for (int i = 0; i < values.size(); i++) {
+            size += jsonSize(values.get(i));
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of UTF-8 bytes of the value as a quoted and escaped JSON string.
+     */
+    static int jsonSize(final String value) {
+        int size = 2;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < 0x20) {
+                size += 6;
+            } else if (c == '"' || c == '\\') {
+                size += 2;
+            } else if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                // A surrogate pair takes four bytes, two for each half.
+                size += 2;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+}
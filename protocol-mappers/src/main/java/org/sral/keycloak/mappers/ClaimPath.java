@@ -0,0 +1,226 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Compiled form of a {@link RegexReplaceMapper} target claim, e.g. {@code azc}, {@code resource_access.account.roles}
+ * or {@code ext.tenants[*].name}.
+ * <p>
+ * Segments are separated by dots; a literal dot in a claim name is escaped as {@code \.}, as for the claim names of
+ * Keycloak's own mappers. {@code name[*]} continues with every element of a list, and a segment of just {@code *}
+ * with every entry of an object. {@code realm_access} and {@code resource_access} address the typed role fields of
+ * the access token; everything else is looked up in its other claims.
+ * <p>
+ * A path navigates straight from the token to the strings it targets, so claims that are not targeted are never
+ * visited. The new values are not written right away but returned as {@link Write writes}, so that a caller can
+ * drop all of them when it runs out of time half way.
+ */
+final class ClaimPath {
+
+    static final String REALM_ACCESS = "realm_access";
+    static final String RESOURCE_ACCESS = "resource_access";
+
+    private final String path;
+    private final Segment[] segments;
+
+    private ClaimPath(final String path, final Segment[] segments) {
+        this.path = path;
+        this.segments = segments;
+    }
+
+    static ClaimPath compile(final String path) {
+        final List<Segment> segments = new ArrayList<>();
+        final StringBuilder name = new StringBuilder();
+        for (int i = 0; i <= path.length(); i++) {
+            final char c = i < path.length() ? path.charAt(i) : '.';
+            if (c == '\\' && i + 1 < path.length() && path.charAt(i + 1) == '.') {
+                name.append('.');
+                i++;
+            } else if (c == '.') {
+                segments.add(Segment.parse(name.toString(), path));
+                name.setLength(0);
+            } else {
+                name.append(c);
+            }
+        }
+        return new ClaimPath(path, segments.toArray(new Segment[0]));
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * Runs the rewrite over every string the path leads to in the token, adding a write for each claim whose value
+     * changes.
+     */
+    void collect(final IDToken token, final UnaryOperator<String> rewrite, final List<Write> writes) {
+        final var first = segments[0];
+        if (token instanceof AccessToken && !first.wildcard) {
+            final var accessToken = (AccessToken) token;
+            if (REALM_ACCESS.equals(first.name)) {
+                step(null, null, accessToken.getRealmAccess(), 0, rewrite, writes);
+                return;
+            }
+            if (RESOURCE_ACCESS.equals(first.name)) {
+                step(null, null, accessToken.getResourceAccess(), 0, rewrite, writes);
+                return;
+            }
+        }
+        visit(token.getOtherClaims(), 0, rewrite, writes);
+    }
+
+    /**
+     * Looks up the i-th segment in the node.
+     */
+    private void visit(final Object node, final int i, final UnaryOperator<String> rewrite, final List<Write> writes) {
+        final var segment = segments[i];
+        if (node instanceof Map<?, ?>) {
+            final var map = (Map<?, ?>) node;
+            if (segment.wildcard) {
+                for (var entry : map.entrySet()) {
+                    step(map, entry.getKey(), entry.getValue(), i, rewrite, writes);
+                }
+            } else {
+                step(map, segment.name, map.get(segment.name), i, rewrite, writes);
+            }
+        } else if (node instanceof AccessToken.Access && !segment.wildcard && "roles".equals(segment.name)) {
+            final var access = (AccessToken.Access) node;
+            step(access, segment.name, access.getRoles(), i, rewrite, writes);
+        }
+    }
+
+    /**
+     * Continues with the value the i-th segment led to, found under the key of the container.
+     */
+    private void step(final Object container,
+                      final Object key,
+                      final Object value,
+                      final int i,
+                      final UnaryOperator<String> rewrite,
+                      final List<Write> writes) {
+        if (value == null) {
+            return;
+        }
+        if (i == segments.length - 1) {
+            rewrite(container, key, value, rewrite, writes);
+        } else if (segments[i].each && value instanceof Collection<?>) {
+            for (Object element : (Collection<?>) value) {
+                visit(element, i + 1, rewrite, writes);
+            }
+        } else if (segments[i].each && value instanceof Map<?, ?>) {
+            for (Object element : ((Map<?, ?>) value).values()) {
+                visit(element, i + 1, rewrite, writes);
+            }
+        } else {
+            visit(value, i + 1, rewrite, writes);
+        }
+    }
+
+    private static void rewrite(final Object container,
+                                final Object key,
+                                final Object value,
+                                final UnaryOperator<String> rewrite,
+                                final List<Write> writes) {
+        if (container == null) {
+            return;
+        }
+        if (value instanceof String) {
+            final var replaced = rewrite.apply((String) value);
+            if (!replaced.equals(value)) {
+                writes.add(new Write(container, key, replaced));
+            }
+        } else if (value instanceof Collection<?>) {
+            final var values = (Collection<?>) value;
+            Collection<Object> replacedValues = null;
+            int index = 0;
+            for (Object element : values) {
+                final Object replaced = element instanceof String ? rewrite.apply((String) element) : element;
+                if (replacedValues == null && !Objects.equals(replaced, element)) {
+                    // Copied on the first change only; most values of most tokens stay as they are.
+                    replacedValues = values instanceof Set<?> ? new LinkedHashSet<>() : new ArrayList<>(values.size());
+                    int copied = 0;
+                    for (Object previous : values) {
+                        if (copied++ == index) {
+                            break;
+                        }
+                        replacedValues.add(previous);
+                    }
+                }
+                if (replacedValues != null) {
+                    replacedValues.add(replaced);
+                }
+                index++;
+            }
+            if (replacedValues != null) {
+                writes.add(new Write(container, key, replacedValues));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    private static final class Segment {
+        private final String name;
+        /**
+         * The segment is {@code *}, every entry of an object.
+         */
+        private final boolean wildcard;
+        /**
+         * The segment ends in {@code [*]}, every element of the list it leads to.
+         */
+        private final boolean each;
+
+        private Segment(final String name, final boolean wildcard, final boolean each) {
+            this.name = name;
+            this.wildcard = wildcard;
+            this.each = each;
+        }
+
+        static Segment parse(final String segment, final String path) {
+            final boolean each = segment.endsWith("[*]");
+            final String name = each ? segment.substring(0, segment.length() - 3) : segment;
+            if (name.isEmpty() || name.indexOf('[') >= 0 || name.indexOf(']') >= 0) {
+                throw new IllegalArgumentException("Invalid claim path: " + path);
+            }
+            return new Segment(name, "*".equals(name), each);
+        }
+    }
+
+    /**
+     * A new value for one claim, kept until all values of a token are computed.
+     */
+    static final class Write {
+        private final Object container;
+        private final Object key;
+        private final Object value;
+
+        private Write(final Object container, final Object key, final Object value) {
+            this.container = container;
+            this.key = key;
+            this.value = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        void apply() {
+            if (container instanceof AccessToken.Access) {
+                ((AccessToken.Access) container).roles((Set<String>) value);
+            } else {
+                ((Map<Object, Object>) container).put(key, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.sral.keycloak.mappers;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the values a {@link RegexMapper} computed in a note of the user session, so that token refreshes and
+ * userinfo requests of the same session can reuse them.
+ * <p>
+ * The note of a mapper is named after its id and holds a fingerprint next to the values. The fingerprint covers the
+ * mapper configuration and every name, path or value the pattern would be matched against, so that any change to the
+ * configuration, the memberships, roles or attribute, or the group tree leads to a recomputation. Computing it still
+ * reads the {@link MatchTarget}, but skips all pattern matching.
+ */
+final class ClaimValuesMemo {
+
+    static final String NOTE_PREFIX = "regex-mapper.";
+
+    private static final TypeReference<List<String>> VALUES_TYPE = new TypeReference<List<String>>() {
+    };
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private ClaimValuesMemo() {
+    }
+
+    static long configFingerprint(final Map<String, String> config) {
+        long combined = 0;
+        for (var entry : config.entrySet()) {
+            combined += mix(hash(entry.getKey()) * FNV_PRIME ^ hash(entry.getValue()));
+        }
+        return combined;
+    }
+
+    static long fingerprint(final RegexMapperPlan plan, final UserSessionModel userSession) {
+        final boolean fullPath = plan.isFullPath();
+        final var realm = userSession.getRealm();
+        final var groupPaths = GroupPathCache.getInstance();
+
+        // Memberships and roles are sets, so the inputs are combined independently of their order.
+        long combined = 0;
+        int count = 0;
+        if (plan.getTarget() == MatchTarget.GROUPS) {
+            final var subtree = plan.getRootGroup() == null ? null : GroupSubtreeCache.getInstance().get(realm, plan.getRootGroup());
+            // The priorities decide which groups make it into a limited claim, so they count as part of the input.
+            final var limit = plan.getValueLimit();
+            final boolean byPriority = limit.getOrder() == ValueLimit.Order.PRIORITY;
+            for (var group : userSession.getUser().getGroups()) {
+                if (subtree != null && !subtree.contains(group)) {
+                    continue;
+                }
+                final long input = hash(fullPath ? groupPaths.getPath(realm, group) : group.getName());
+                combined += mix(byPriority ? input * FNV_PRIME ^ limit.priority(group) : input);
+                count++;
+            }
+        } else {
+            final Set<String> inputs = new LinkedHashSet<>();
+            plan.getTarget().addInputs(plan, realm, userSession.getUser(), inputs);
+            for (String input : inputs) {
+                combined += mix(hash(input));
+                count++;
+            }
+        }
+        return mix(combined ^ plan.getConfigFingerprint()) + count;
+    }
+
+    /**
+     * @return the remembered values if their fingerprint matches, otherwise null.
+     */
+    static List<String> get(final UserSessionModel userSession, final ProtocolMapperModel mapperModel, final long fingerprint) {
+        final var note = userSession.getNote(NOTE_PREFIX + mapperModel.getId());
+        if (note == null) {
+            return null;
+        }
+        final var separator = note.indexOf(':');
+        if (separator < 0 || !Long.toHexString(fingerprint).equals(note.substring(0, separator))) {
+            return null;
+        }
+        try {
+            return JsonSerialization.readValue(note.substring(separator + 1), VALUES_TYPE);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    static void put(final UserSessionModel userSession,
+                    final ProtocolMapperModel mapperModel,
+                    final long fingerprint,
+                    final List<String> values) {
+        final String json;
+        try {
+            json = JsonSerialization.writeValueAsString(values);
+        } catch (IOException ex) {
+            throw new RuntimeException("Could not serialize claim values", ex);
+        }
+        userSession.setNote(NOTE_PREFIX + mapperModel.getId(), Long.toHexString(fingerprint) + ":" + json);
+    }
+
+    private static long hash(final String value) {
+        if (value == null) {
+            return 0;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Finalizer of SplitMix64, spreading the bits so that summing the hashes of the inputs does not cancel them out.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,104 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of objects compiled from a {@link ProtocolMapperModel} configuration.
+ * <p>
+ * Entries are keyed by the mapper id and remember the configuration they were compiled from. When an admin edits
+ * the mapper the stored configuration no longer equals the model's, and the entry is rebuilt in place. The least
+ * recently used entry is evicted once {@code maxEntries} is exceeded. Hits and misses are counted while
+ * {@link MapperMetrics} are enabled.
+ *
+ * @param <T> the compiled representation of the mapper configuration
+ */
+final class CompiledConfigCache<T> {
+
+    private final Function<ProtocolMapperModel, T> compiler;
+    private final Map<String, Entry<T>> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    CompiledConfigCache(final int maxEntries, final Function<ProtocolMapperModel, T> compiler) {
+        this.compiler = compiler;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    T get(final ProtocolMapperModel mapperModel) {
+        final var config = mapperModel.getConfig();
+        final var key = keyOf(mapperModel);
+
+        synchronized (entries) {
+            final var entry = entries.get(key);
+            if (entry != null && entry.config.equals(config)) {
+                if (MapperMetrics.isEnabled()) {
+                    hits.increment();
+                }
+                return entry.value;
+            }
+        }
+        if (MapperMetrics.isEnabled()) {
+            misses.increment();
+        }
+
+        // Compile outside the lock; two threads racing on the same new config just compile it twice.
+        final var compiled = compiler.apply(mapperModel);
+        synchronized (entries) {
+            entries.put(key, new Entry<>(new HashMap<>(config), compiled));
+        }
+        return compiled;
+    }
+
+    void invalidate(final String mapperId) {
+        synchronized (entries) {
+            entries.remove(mapperId);
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static String keyOf(final ProtocolMapperModel mapperModel) {
+        // Mappers that have not been persisted yet (e.g. during validation) have no id; fall back to the config.
+        final var id = mapperModel.getId();
+        return id != null ? id : "#" + mapperModel.getConfig().hashCode();
+    }
+
+    private static final class Entry<T> {
+        private final Map<String, String> config;
+        private final T value;
+
+        private Entry(final Map<String, String> config, final T value) {
+            this.config = config;
+            this.value = value;
+        }
+    }
+}
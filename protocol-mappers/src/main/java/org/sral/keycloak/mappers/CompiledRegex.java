@@ -0,0 +1,15 @@
+package org.sral.keycloak.mappers;
+
+/**
+ * A regular expression compiled by one of the {@link RegexEngine}s.
+ */
+interface CompiledRegex {
+
+    String pattern();
+
+    int groupCount();
+
+    boolean hasGroup(String name);
+
+    RegexMatcher matcher(CharSequence input);
+}
@@ -0,0 +1,198 @@
+package org.sral.keycloak.mappers;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates every {@link RegexMapper} of a client session that has {@link RegexMapper#COMPOSITE_EVALUATION_PROPERTY}
+ * set in a single pass over the user's groups, or whatever other {@link MatchTarget} they share.
+ * <p>
+ * The first composite mapper invoked for a token fetches the groups once, looks each group up in the
+ * {@link GroupMatchTable} of every mapper, and only for groups missing from one resolves the name and path once and
+ * runs the mapper's pattern over it. Only mappers that {@link RegexMapperPlan#sharesInputsWith share} the inputs of
+ * the first one join its pass; root groups are applied per mapper. The values of all mappers are kept in a client
+ * session context attribute, from where the remaining mappers pick up their own.
+ * <p>
+ * Every mapper keeps its own {@link MatchBudget}: a mapper whose breaker is open, or which runs out of time, is
+ * dropped from the pass without affecting the others. A mapper whose configuration does not compile does not join
+ * the pass either.
+ */
+final class CompositeEvaluation {
+
+    private static final Logger LOG = Logger.getLogger(CompositeEvaluation.class);
+
+    static final String ATTRIBUTE = CompositeEvaluation.class.getName();
+
+    private final Map<String, List<String>> valuesByMapperId;
+
+    private CompositeEvaluation(final Map<String, List<String>> valuesByMapperId) {
+        this.valuesByMapperId = valuesByMapperId;
+    }
+
+    /**
+     * @return a modifiable copy of the values of the mapper, evaluating all composite mappers of the context if needed,
+     * or null if the mapper was skipped.
+     */
+    static List<String> getValues(final ProtocolMapperModel mapperModel,
+                                  final UserSessionModel userSession,
+                                  final ClientSessionContext clientSessionContext) {
+        var evaluation = clientSessionContext.getAttribute(ATTRIBUTE, CompositeEvaluation.class);
+        if (evaluation == null || !evaluation.valuesByMapperId.containsKey(mapperModel.getId())) {
+            final var evaluated = evaluate(compositeMappers(mapperModel, clientSessionContext), userSession);
+            if (evaluation == null) {
+                evaluation = evaluated;
+                clientSessionContext.setAttribute(ATTRIBUTE, evaluation);
+            } else {
+                // Mappers of another target had their own pass; keep the values of both.
+                evaluation.valuesByMapperId.putAll(evaluated.valuesByMapperId);
+            }
+        }
+        final var values = evaluation.valuesByMapperId.get(mapperModel.getId());
+        return values == null ? null : new ArrayList<>(values);
+    }
+
+    private static List<ProtocolMapperModel> compositeMappers(final ProtocolMapperModel mapperModel,
+                                                              final ClientSessionContext clientSessionContext) {
+        final List<ProtocolMapperModel> mappers = new ArrayList<>();
+        mappers.add(mapperModel);
+        final var plan = RegexMapper.plans.get(mapperModel);
+        for (ProtocolMapperModel candidate : clientSessionContext.getProtocolMappers()) {
+            if (RegexMapper.PROVIDER_ID.equals(candidate.getProtocolMapper())
+                    && candidate.getId() != null
+                    && !candidate.getId().equals(mapperModel.getId())
+                    && RegexMapper.compositeEvaluation(candidate)) {
+                final var candidatePlan = compile(candidate);
+                if (candidatePlan != null
+                        && !candidatePlan.getValueLimit().isActive()
+                        && plan.sharesInputsWith(candidatePlan)) {
+                    mappers.add(candidate);
+                }
+            }
+        }
+        return mappers;
+    }
+
+    /**
+     * @return the plan of a mapper that may join the pass, or null if it does not compile.
+     */
+    private static RegexMapperPlan compile(final ProtocolMapperModel candidate) {
+        try {
+            return RegexMapper.plans.get(candidate);
+        } catch (RuntimeException ex) {
+            // Left to run on its own, where it fails the same way as without composite evaluation.
+            LOG.warnf("Mapper '%s' does not compile, leaving it out of the composite evaluation: %s",
+                    candidate.getName(), ex.getMessage());
+            return null;
+        }
+    }
+
+    static CompositeEvaluation evaluate(final List<ProtocolMapperModel> mappers, final UserSessionModel userSession) {
+        final int count = mappers.size();
+        final RegexMapperPlan[] plans = new RegexMapperPlan[count];
+        final MatchBudget.Deadline[] deadlines = new MatchBudget.Deadline[count];
+        final GroupSubtreeCache.Subtree[] subtrees = new GroupSubtreeCache.Subtree[count];
+        final int[] scanned = new int[count];
+        final int[] matched = new int[count];
+        final List<Set<String>> values = new ArrayList<>(count);
+        final var realm = userSession.getRealm();
+        for (int i = 0; i < count; i++) {
+            plans[i] = RegexMapper.plans.get(mappers.get(i));
+            if (plans[i].getBudget().isOpen()) {
+                MatchBudget.logSkipped(mappers.get(i));
+                values.add(null);
+                continue;
+            }
+            deadlines[i] = plans[i].getBudget().start();
+            values.add(new LinkedHashSet<>());
+            if (plans[i].getRootGroup() != null) {
+                subtrees[i] = GroupSubtreeCache.getInstance().get(realm, plans[i].getRootGroup());
+            }
+        }
+
+        if (plans[0].getTarget() == MatchTarget.GROUPS) {
+            final var groupPaths = GroupPathCache.getInstance();
+            for (var group : userSession.getUser().getGroups()) {
+                final var name = group.getName();
+                String path = null;
+                for (int i = 0; i < count; i++) {
+                    if (values.get(i) == null || (subtrees[i] != null && !subtrees[i].contains(group))) {
+                        continue;
+                    }
+                    scanned[i]++;
+                    try {
+                        var match = plans[i].getGroupMatches().get(realm, group);
+                        if (match == null) {
+                            if (plans[i].isFullPath() && path == null) {
+                                path = groupPaths.getPath(realm, group);
+                            }
+                            match = plans[i].getGroupMatches().put(realm, group,
+                                    plans[i].match(plans[i].isFullPath() ? path : name, deadlines[i]));
+                        }
+                        if (match.addTo(values.get(i))) {
+                            matched[i]++;
+                        }
+                    } catch (MatchBudget.ExceededException ex) {
+                        plans[i].getBudget().recordOverrun(mappers.get(i));
+                        values.set(i, null);
+                    }
+                }
+            }
+        } else {
+            final Set<String> inputs = new LinkedHashSet<>();
+            plans[0].getTarget().addInputs(plans[0], realm, userSession.getUser(), inputs);
+            for (String input : inputs) {
+                for (int i = 0; i < count; i++) {
+                    if (values.get(i) != null) {
+                        collect(mappers.get(i), plans[i], deadlines[i], values, i, scanned, matched, input);
+                    }
+                }
+            }
+        }
+
+        final Map<String, List<String>> valuesByMapperId = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            final var mapperValues = values.get(i);
+            if (mapperValues != null) {
+                plans[i].getBudget().recordSuccess();
+                final var stats = MapperMetrics.forMapper(mappers.get(i), userSession);
+                if (stats != null) {
+                    stats.groupsScanned.add(scanned[i]);
+                    stats.groupsMatched.add(matched[i]);
+                }
+            }
+            valuesByMapperId.put(mappers.get(i).getId(), mapperValues == null ? null : new ArrayList<>(mapperValues));
+        }
+        return new CompositeEvaluation(valuesByMapperId);
+    }
+
+    /**
+     * Runs the i-th mapper of the pass over one input, dropping it from the pass if it runs out of time.
+     */
+    private static void collect(final ProtocolMapperModel mapperModel,
+                                final RegexMapperPlan plan,
+                                final MatchBudget.Deadline deadline,
+                                final List<Set<String>> values,
+                                final int i,
+                                final int[] scanned,
+                                final int[] matched,
+                                final String input) {
+        scanned[i]++;
+        try {
+            if (plan.collect(input, deadline, values.get(i))) {
+                matched[i]++;
+            }
+        } catch (MatchBudget.ExceededException ex) {
+            plan.getBudget().recordOverrun(mapperModel);
+            values.set(i, null);
+        }
+    }
+}
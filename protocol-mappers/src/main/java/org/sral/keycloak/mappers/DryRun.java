@@ -0,0 +1,270 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.util.JsonSerialization;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates a {@link RegexMapper} or {@link RegexReplaceMapper} configuration outside of token issuance, for
+ * {@link RegexMappersResource#dryRun(Map)}, and measures where the time goes.
+ * <p>
+ * The configuration is compiled on its own, so the cached plans with their circuit breakers and match tables are left
+ * alone and every group is really matched. Each {@link Stage} of the evaluation is timed separately and, where the JVM
+ * supports it, the bytes allocated on the way are counted with the {@link com.sun.management.ThreadMXBean}. Both are
+ * averaged over the requested number of runs, so that later runs show the evaluation with warm caches and compiled
+ * code. The probes cost a few dozen nanoseconds per input and stage themselves, which matters only for stages that
+ * do next to nothing.
+ */
+final class DryRun {
+
+    static final int MAX_ITERATIONS = 1000;
+
+    enum Stage {
+        /**
+         * Reading the group memberships of the user and restricting them to the root group.
+         */
+        GROUP_FETCH("groupFetch"),
+        /**
+         * Reading the roles or attribute values of the user, for all other targets.
+         */
+        INPUT_FETCH("inputFetch"),
+        /**
+         * Building group paths, or reading group names.
+         */
+        PATH_BUILD("pathBuild"),
+        MATCH("match"),
+        /**
+         * Reading the values of the match groups of the matching inputs.
+         */
+        EXTRACT("extract"),
+        /**
+         * Merging with the existing claim and writing the encoded claim.
+         */
+        ENCODE("encode"),
+        /**
+         * Rewriting the target claims of a {@link RegexReplaceMapper}.
+         */
+        REPLACE("replace");
+
+        private final String key;
+
+        Stage(final String key) {
+            this.key = key;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadMXBean();
+
+    private final long[] nanos = new long[Stage.values().length];
+    private final long[] allocatedBytes = new long[Stage.values().length];
+    private final long[] calls = new long[Stage.values().length];
+    private long startNanos;
+    private long startBytes;
+
+    private DryRun() {
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        final var threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            final var allocations = (com.sun.management.ThreadMXBean) threads;
+            if (allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled()) {
+                return allocations;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs a {@link RegexMapper} configuration for the user, starting from the claims if there are any.
+     *
+     * @param cold true to build group paths without the shared {@link GroupPathCache}.
+     */
+    static Map<String, Object> regexMapper(final RealmModel realm,
+                                           final UserModel user,
+                                           final ProtocolMapperModel mapperModel,
+                                           final Map<String, Object> claims,
+                                           final boolean cold,
+                                           final int iterations) {
+        final var plan = RegexMapperPlan.compile(mapperModel);
+        final var dryRun = new DryRun();
+        AccessToken token = null;
+        int inputs = 0;
+        int matched = 0;
+        boolean exceeded = false;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            token = toToken(claims);
+            inputs = 0;
+            matched = 0;
+            final var deadline = plan.getBudget().start();
+            List<String> values;
+            final var collected = ValueSet.acquire();
+            try {
+                if (plan.getTarget() == MatchTarget.GROUPS) {
+                    final var groupPaths = cold ? new GroupPathCache(Integer.MAX_VALUE) : GroupPathCache.getInstance();
+                    dryRun.start();
+                    final var subtree = plan.getRootGroup() == null ? null : GroupSubtreeCache.getInstance().get(realm, plan.getRootGroup());
+                    final var groups = plan.getValueLimit().orderGroups(realm, user.getGroups(), subtree);
+                    dryRun.stop(Stage.GROUP_FETCH);
+                    for (var group : groups) {
+                        dryRun.start();
+                        final var input = plan.isFullPath() ? groupPaths.getPath(realm, group) : group.getName();
+                        dryRun.stop(Stage.PATH_BUILD);
+                        if (dryRun.match(plan, input, deadline, collected)) {
+                            matched++;
+                        }
+                        inputs++;
+                        if (plan.getValueLimit().isFilled(collected)) {
+                            break;
+                        }
+                    }
+                } else {
+                    final Set<String> targetInputs = new LinkedHashSet<>();
+                    dryRun.start();
+                    plan.getTarget().addInputs(plan, realm, user, targetInputs);
+                    dryRun.stop(Stage.INPUT_FETCH);
+                    for (var input : plan.getValueLimit().orderInputs(targetInputs)) {
+                        if (dryRun.match(plan, input, deadline, collected)) {
+                            matched++;
+                        }
+                        inputs++;
+                        if (plan.getValueLimit().isFilled(collected)) {
+                            break;
+                        }
+                    }
+                }
+                values = plan.getValueLimit().truncate(collected.toList());
+            } catch (MatchBudget.ExceededException ex) {
+                exceeded = true;
+                values = null;
+            } finally {
+                collected.release();
+            }
+
+            if (values == null && plan.getFallbackValue() != null) {
+                values = new ArrayList<>();
+                values.add(plan.getFallbackValue());
+            }
+            if (values != null) {
+                dryRun.start();
+                if (plan.isMergeClaims()) {
+                    values = RegexMapper.mergeExistingClaim(values, token.getOtherClaims().get(plan.getClaimName()));
+                }
+                if (values != null) {
+                    plan.getEncoder().put(token, plan.getClaimName(), values, realm, plan.getFallbackValue());
+                }
+                dryRun.stop(Stage.ENCODE);
+            }
+        }
+
+        final var result = dryRun.toRepresentation(token, iterations, exceeded);
+        result.put("inputs", inputs);
+        result.put("matched", matched);
+        return result;
+    }
+
+    /**
+     * Runs a {@link RegexReplaceMapper} configuration over the claims.
+     */
+    static Map<String, Object> regexReplaceMapper(final ProtocolMapperModel mapperModel,
+                                                  final Map<String, Object> claims,
+                                                  final int iterations) {
+        final var program = ReplacementProgram.compile(mapperModel);
+        final var dryRun = new DryRun();
+        AccessToken token = null;
+        RegexReplaceMapper.Rewrite rewrite = null;
+        boolean exceeded = false;
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            token = toToken(claims);
+            rewrite = new RegexReplaceMapper.Rewrite(program, program.getBudget().start());
+            final List<ClaimPath.Write> writes = new ArrayList<>();
+            dryRun.start();
+            try {
+                for (var path : program.getTargetPaths()) {
+                    path.collect(token, rewrite, writes);
+                }
+                for (var write : writes) {
+                    write.apply();
+                }
+            } catch (MatchBudget.ExceededException ex) {
+                exceeded = true;
+            }
+            dryRun.stop(Stage.REPLACE);
+        }
+
+        final var result = dryRun.toRepresentation(token, iterations, exceeded);
+        result.put("values", rewrite.emitted);
+        result.put("replacements", rewrite.replacements);
+        return result;
+    }
+
+    private boolean match(final RegexMapperPlan plan,
+                          final String input,
+                          final MatchBudget.Deadline deadline,
+                          final ValueSet values) {
+        start();
+        final boolean matches = plan.matches(input, deadline);
+        stop(Stage.MATCH);
+        if (matches) {
+            start();
+            plan.extract(input, values);
+            stop(Stage.EXTRACT);
+        }
+        return matches;
+    }
+
+    private static AccessToken toToken(final Map<String, Object> claims) {
+        return claims == null ? new AccessToken() : JsonSerialization.mapper.convertValue(claims, AccessToken.class);
+    }
+
+    private void start() {
+        startBytes = allocatedBytes();
+        startNanos = System.nanoTime();
+    }
+
+    private void stop(final Stage stage) {
+        final long elapsed = System.nanoTime() - startNanos;
+        final long allocated = allocatedBytes() - startBytes;
+        nanos[stage.ordinal()] += elapsed;
+        allocatedBytes[stage.ordinal()] += allocated;
+        calls[stage.ordinal()]++;
+    }
+
+    private static long allocatedBytes() {
+        return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private Map<String, Object> toRepresentation(final AccessToken token, final int iterations, final boolean exceeded) {
+        final Map<String, Object> stages = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            final int i = stage.ordinal();
+            if (calls[i] == 0) {
+                continue;
+            }
+            final Map<String, Object> measured = new LinkedHashMap<>();
+            measured.put("calls", calls[i] / iterations);
+            measured.put("nanos", nanos[i] / iterations);
+            if (THREADS != null) {
+                measured.put("allocatedBytes", allocatedBytes[i] / iterations);
+            }
+            stages.put(stage.key, measured);
+        }
+
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("claims", JsonSerialization.mapper.convertValue(token, Map.class));
+        result.put("budgetExceeded", exceeded);
+        result.put("iterations", iterations);
+        result.put("stages", stages);
+        return result;
+    }
+}
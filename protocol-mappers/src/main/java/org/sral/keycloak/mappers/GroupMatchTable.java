@@ -0,0 +1,216 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Realm scoped table of group id to the {@link RegexMapperPlan.Match match} of one {@link RegexMapperPlan}.
+ * <p>
+ * Whether a group matches and what it yields depends only on the group, so once a group has been matched for one
+ * user every other member gets its values from two map lookups, without running the pattern or allocating. Each plan
+ * has its own table, but all tables together hold at most {@code maxEntries} groups, so the memory does not grow with
+ * the number of cached plans. Entries of plans dropped from the plan cache are evicted in time.
+ * <p>
+ * Every entry remembers what it was matched against, and is only used while that still holds:
+ * <ul>
+ *     <li>with group names, the name of the group;</li>
+ *     <li>with full paths, the path of the group, which {@link GroupPathCache} checks against the live parents of
+ *     the group, so renamed, moved or deleted ancestors are noticed on every node of a cluster.</li>
+ * </ul>
+ * New groups need nothing: they are matched on first lookup. {@link #invalidateGroup(String, String)} (see
+ * {@link CacheInvalidationEventListenerFactory}) only frees the entries below a changed group early.
+ */
+final class GroupMatchTable {
+
+    static final int DEFAULT_MAX_ENTRIES = 500_000;
+
+    private static final String[] NO_ANCESTORS = new String[0];
+
+    /**
+     * The tables that may hold entries, for bounding and invalidating them together.
+     */
+    private static final Set<GroupMatchTable> TABLES = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger totalEntries = new AtomicInteger();
+
+    private static volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private final boolean fullPath;
+    private final ConcurrentMap<String, ConcurrentMap<String, Entry>> realms = new ConcurrentHashMap<>();
+
+    private GroupMatchTable(final boolean fullPath) {
+        this.fullPath = fullPath;
+    }
+
+    static GroupMatchTable create(final boolean fullPath) {
+        return new GroupMatchTable(fullPath);
+    }
+
+    static void setMaxEntries(final int maxEntries) {
+        GroupMatchTable.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the match of the group, or null if it has not been matched yet or changed since.
+     */
+    RegexMapperPlan.Match get(final RealmModel realm, final GroupModel group) {
+        if (realm == null || group.getId() == null) {
+            return null;
+        }
+        return get(realm, group, fullPath ? GroupPathCache.getInstance().getPath(realm, group) : null);
+    }
+
+    private RegexMapperPlan.Match get(final RealmModel realm, final GroupModel group, final String path) {
+        final var entries = realms.get(realm.getId());
+        final var entry = entries == null ? null : entries.get(group.getId());
+        if (entry == null || !Objects.equals(entry.name, group.getName()) || !Objects.equals(entry.path, path)) {
+            return null;
+        }
+        return entry.match;
+    }
+
+    /**
+     * Remembers the match of the group.
+     *
+     * @return the match.
+     */
+    RegexMapperPlan.Match put(final RealmModel realm, final GroupModel group, final RegexMapperPlan.Match match) {
+        if (realm == null || group.getId() == null) {
+            return match;
+        }
+        final var groupPaths = GroupPathCache.getInstance();
+        final var path = fullPath ? groupPaths.getPath(realm, group) : null;
+        final var ancestors = fullPath ? groupPaths.getAncestors(realm, group) : NO_ANCESTORS;
+        if (totalEntries.get() >= maxEntries) {
+            evict();
+        }
+        final var entries = realms.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>());
+        if (entries.put(group.getId(), new Entry(group.getName(), path, ancestors, match)) == null) {
+            totalEntries.incrementAndGet();
+        }
+        // After the put, so that a table emptied and dropped by a concurrent eviction is registered again.
+        TABLES.add(this);
+        return match;
+    }
+
+    /**
+     * @return the match of the group, matching its name or path against the plan if needed.
+     * @throws MatchBudget.ExceededException if the deadline passes while matching.
+     */
+    RegexMapperPlan.Match match(final RegexMapperPlan plan,
+                                final RealmModel realm,
+                                final GroupModel group,
+                                final MatchBudget.Deadline deadline) {
+        if (realm == null || group.getId() == null) {
+            return plan.match(fullPath ? GroupPathCache.getInstance().getPath(realm, group) : group.getName(), deadline);
+        }
+        final var path = fullPath ? GroupPathCache.getInstance().getPath(realm, group) : null;
+        final var match = get(realm, group, path);
+        if (match != null) {
+            return match;
+        }
+        return put(realm, group, plan.match(fullPath ? path : group.getName(), deadline));
+    }
+
+    /**
+     * @return the number of entries of this table for the realm.
+     */
+    int size(final String realmId) {
+        final var entries = realms.get(realmId);
+        return entries == null ? 0 : entries.size();
+    }
+
+    /**
+     * Drops the entry of the group and of every group below it, in the tables of all plans.
+     */
+    static void invalidateGroup(final String realmId, final String groupId) {
+        for (GroupMatchTable table : TABLES) {
+            final var entries = table.realms.get(realmId);
+            if (entries != null) {
+                entries.forEach((id, entry) -> {
+                    if (id.equals(groupId) || entry.hasAncestor(groupId)) {
+                        remove(entries, id, entry);
+                    }
+                });
+            }
+        }
+    }
+
+    static void invalidateRealm(final String realmId) {
+        for (GroupMatchTable table : TABLES) {
+            final var entries = table.realms.remove(realmId);
+            if (entries != null) {
+                totalEntries.addAndGet(-entries.size());
+            }
+        }
+    }
+
+    private static void evict() {
+        // Same policy as GroupPathCache: drop an arbitrary tenth of the entries, here across all tables.
+        var toRemove = Math.max(1, maxEntries / 10);
+        for (GroupMatchTable table : TABLES) {
+            for (var entries : table.realms.values()) {
+                final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+                while (toRemove > 0 && iterator.hasNext()) {
+                    final var next = iterator.next();
+                    if (remove(entries, next.getKey(), next.getValue())) {
+                        toRemove--;
+                    }
+                }
+            }
+            table.realms.values().removeIf(Map::isEmpty);
+            if (table.realms.isEmpty()) {
+                TABLES.remove(table);
+            }
+            if (toRemove <= 0) {
+                break;
+            }
+        }
+        // Puts racing with invalidateRealm may count entries of a map that was just dropped; settle the count here.
+        int total = 0;
+        for (GroupMatchTable table : TABLES) {
+            for (var entries : table.realms.values()) {
+                total += entries.size();
+            }
+        }
+        totalEntries.set(total);
+    }
+
+    private static boolean remove(final ConcurrentMap<String, Entry> entries, final String groupId, final Entry entry) {
+        if (entries.remove(groupId, entry)) {
+            totalEntries.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final String path;
+        private final String[] ancestors;
+        private final RegexMapperPlan.Match match;
+
+        private Entry(final String name, final String path, final String[] ancestors, final RegexMapperPlan.Match match) {
+            this.name = name;
+            this.path = path;
+            this.ancestors = ancestors;
+            this.match = match;
+        }
+
+        private boolean hasAncestor(final String groupId) {
+            for (String ancestor : ancestors) {
+                if (ancestor.equals(groupId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
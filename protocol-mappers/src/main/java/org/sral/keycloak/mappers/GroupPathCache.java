@@ -0,0 +1,154 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.ModelToRepresentation;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Realm scoped cache of group id to full group path, e.g. {@code /top/level1/level2}.
+ * <p>
+ * Paths are built lazily, reusing the cached path of the parent. Every entry remembers the group name and the entry
+ * of the parent it was built from, and a lookup checks the whole chain against the live parents of the group: one
+ * {@link GroupModel#getParent()} and one name comparison per level, but no string building. A renamed, moved or
+ * deleted group or ancestor is therefore noticed on the next lookup, on every node of a cluster, as soon as the
+ * Keycloak model of that node sees the change. {@link #invalidate(String, String)} (see
+ * {@link CacheInvalidationEventListenerFactory}) only frees the entries below a changed group early.
+ * <p>
+ * Each realm holds at most {@code maxEntriesPerRealm} paths.
+ */
+final class GroupPathCache {
+
+    static final int DEFAULT_MAX_ENTRIES_PER_REALM = 100_000;
+
+    private static final GroupPathCache INSTANCE = new GroupPathCache(DEFAULT_MAX_ENTRIES_PER_REALM);
+
+    private static final String[] NO_ANCESTORS = new String[0];
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Entry>> realms = new ConcurrentHashMap<>();
+    private volatile int maxEntriesPerRealm;
+
+    GroupPathCache(final int maxEntriesPerRealm) {
+        this.maxEntriesPerRealm = maxEntriesPerRealm;
+    }
+
+    static GroupPathCache getInstance() {
+        return INSTANCE;
+    }
+
+    void setMaxEntriesPerRealm(final int maxEntriesPerRealm) {
+        this.maxEntriesPerRealm = maxEntriesPerRealm;
+    }
+
+    String getPath(final RealmModel realm, final GroupModel group) {
+        if (realm == null || group.getId() == null) {
+            return ModelToRepresentation.buildGroupPath(group);
+        }
+        return getEntry(realms.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>()), group).path;
+    }
+
+    /**
+     * @return the ids of the ancestors of the group, top level group first, as cached with its path.
+     */
+    String[] getAncestors(final RealmModel realm, final GroupModel group) {
+        if (realm == null || group.getId() == null) {
+            return NO_ANCESTORS;
+        }
+        return getEntry(realms.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>()), group).ancestors;
+    }
+
+    /**
+     * Drops the cached path of the group and of every cached group below it.
+     */
+    void invalidate(final String realmId, final String groupId) {
+        final var paths = realms.get(realmId);
+        if (paths == null) {
+            return;
+        }
+        paths.remove(groupId);
+        paths.values().removeIf(entry -> entry.hasAncestor(groupId));
+    }
+
+    void invalidateRealm(final String realmId) {
+        realms.remove(realmId);
+    }
+
+    int size(final String realmId) {
+        final var paths = realms.get(realmId);
+        return paths == null ? 0 : paths.size();
+    }
+
+    private Entry getEntry(final ConcurrentMap<String, Entry> paths, final GroupModel group) {
+        final var id = group.getId();
+        final var name = group.getName();
+        final var parent = group.getParent();
+        final var cached = paths.get(id);
+
+        final Entry entry;
+        if (parent == null) {
+            if (cached != null && cached.isBuiltFrom(name, null)) {
+                return cached;
+            }
+            entry = new Entry("/" + name, name, null, NO_ANCESTORS);
+        } else if (parent.getId() == null) {
+            return new Entry(ModelToRepresentation.buildGroupPath(group), name, null, NO_ANCESTORS);
+        } else {
+            // Validates, and if needed rebuilds, the entries of all ancestors; a rebuilt parent is a new entry.
+            final var parentEntry = getEntry(paths, parent);
+            if (cached != null && cached.isBuiltFrom(name, parentEntry)) {
+                return cached;
+            }
+            final var ancestors = Arrays.copyOf(parentEntry.ancestors, parentEntry.ancestors.length + 1);
+            ancestors[ancestors.length - 1] = parent.getId();
+            entry = new Entry(parentEntry.path + "/" + name, name, parentEntry, ancestors);
+        }
+
+        if (paths.size() >= maxEntriesPerRealm) {
+            evict(paths);
+        }
+        paths.put(id, entry);
+        return entry;
+    }
+
+    private void evict(final ConcurrentMap<String, Entry> paths) {
+        // No recency tracking on the hot path; drop an arbitrary tenth of the realm's entries instead.
+        var toRemove = Math.max(1, maxEntriesPerRealm / 10);
+        final Iterator<String> keys = paths.keySet().iterator();
+        while (toRemove-- > 0 && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    private static final class Entry {
+        private final String path;
+        private final String name;
+        private final Entry parent;
+        private final String[] ancestors;
+
+        private Entry(final String path, final String name, final Entry parent, final String[] ancestors) {
+            this.path = path;
+            this.name = name;
+            this.parent = parent;
+            this.ancestors = ancestors;
+        }
+
+        private boolean isBuiltFrom(final String name, final Entry parent) {
+            return Objects.equals(this.name, name) && this.parent == parent;
+        }
+
+        private boolean hasAncestor(final String groupId) {
+            for (String ancestor : ancestors) {
+                if (ancestor.equals(groupId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Realm scoped cache of root group path to the id of the root group.
+ * <p>
+ * A {@link RegexMapper} with a root group only looks at memberships inside that subtree, and deciding that by id
+ * means the other memberships are neither path-built nor matched. Whether a group is inside is decided from the live
+ * parents of the group, so groups created, moved or deleted anywhere below the root are seen right away, on every
+ * node of a cluster. The cached root id is checked against the live {@link GroupPathCache path} of the group on
+ * every lookup, and a root that does not exist is looked up again next time rather than remembered.
+ * {@link CacheInvalidationEventListenerFactory} only drops the cached roots of a realm early.
+ */
+final class GroupSubtreeCache {
+
+    private static final GroupSubtreeCache INSTANCE = new GroupSubtreeCache();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Subtree>> realms = new ConcurrentHashMap<>();
+
+    static GroupSubtreeCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the subtree below the group with the path, empty if there is no such group.
+     */
+    Subtree get(final RealmModel realm, final String rootPath) {
+        if (realm == null) {
+            return Subtree.EMPTY;
+        }
+        final var subtrees = realms.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>());
+        final var cached = subtrees.get(rootPath);
+        if (cached != null) {
+            final var root = realm.getGroupById(cached.rootId);
+            if (root != null && rootPath.equals(GroupPathCache.getInstance().getPath(realm, root))) {
+                return cached;
+            }
+            subtrees.remove(rootPath, cached);
+        }
+        final var root = KeycloakModelUtils.findGroupByPath(realm, rootPath);
+        if (root == null) {
+            return Subtree.EMPTY;
+        }
+        final var subtree = new Subtree(root.getId());
+        subtrees.put(rootPath, subtree);
+        return subtree;
+    }
+
+    void invalidateRealm(final String realmId) {
+        realms.remove(realmId);
+    }
+
+    int size(final String realmId) {
+        final var subtrees = realms.get(realmId);
+        return subtrees == null ? 0 : subtrees.size();
+    }
+
+    static final class Subtree {
+
+        static final Subtree EMPTY = new Subtree(null);
+
+        private final String rootId;
+
+        private Subtree(final String rootId) {
+            this.rootId = rootId;
+        }
+
+        /**
+         * @return true if the group is the root or below it, walking up its live parents.
+         */
+        boolean contains(final GroupModel group) {
+            if (rootId == null) {
+                return false;
+            }
+            if (rootId.equals(group.getId()) || rootId.equals(group.getParentId())) {
+                return true;
+            }
+            if (group.getParentId() == null) {
+                return false;
+            }
+            for (var ancestor = group.getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+                if (rootId.equals(ancestor.getId())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
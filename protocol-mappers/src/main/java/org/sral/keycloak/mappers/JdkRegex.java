@@ -0,0 +1,103 @@
+package org.sral.keycloak.mappers;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link CompiledRegex} backed by {@link java.util.regex.Pattern}.
+ */
+final class JdkRegex implements CompiledRegex {
+
+    private static final Pattern EMPTY = Pattern.compile("");
+
+    private final Pattern pattern;
+    private final int groupCount;
+
+    private JdkRegex(final Pattern pattern) {
+        this.pattern = pattern;
+        this.groupCount = pattern.matcher("").groupCount();
+    }
+
+    static JdkRegex compile(final String pattern) {
+        return new JdkRegex(Pattern.compile(pattern));
+    }
+
+    @Override
+    public String pattern() {
+        return pattern.pattern();
+    }
+
+    @Override
+    public int groupCount() {
+        return groupCount;
+    }
+
+    @Override
+    public boolean hasGroup(final String name) {
+        // java.util.regex does not expose its group names, and Matcher.group(String) only tells them apart once there
+        // is a match. usePattern keeps the match of the empty pattern while switching to this one.
+        final Matcher matcher = EMPTY.matcher("");
+        matcher.find();
+        matcher.usePattern(pattern);
+        try {
+            matcher.group(name);
+            return true;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public RegexMatcher matcher(final CharSequence input) {
+        return new JdkRegexMatcher(pattern.matcher(input));
+    }
+
+    private static final class JdkRegexMatcher implements RegexMatcher {
+        private final Matcher matcher;
+
+        private JdkRegexMatcher(final Matcher matcher) {
+            this.matcher = matcher;
+        }
+
+        @Override
+        public boolean matches() {
+            return matcher.matches();
+        }
+
+        @Override
+        public boolean find() {
+            return matcher.find();
+        }
+
+        @Override
+        public int start() {
+            return matcher.start();
+        }
+
+        @Override
+        public int end() {
+            return matcher.end();
+        }
+
+        @Override
+        public int groupCount() {
+            return matcher.groupCount();
+        }
+
+        @Override
+        public String group(final int group) {
+            return matcher.group(group);
+        }
+
+        @Override
+        public String group(final String name) {
+            return matcher.group(name);
+        }
+
+        @Override
+        public RegexMatcher reset(final CharSequence input) {
+            matcher.reset(input);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,979 @@
+package org.sral.keycloak.mappers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Regular expression engine with a running time linear in the length of the input, whatever the pattern.
+ * <p>
+ * The pattern is compiled into a small NFA program which is run as a Pike VM (a breadth-first simulation in the
+ * style of RE2): every position of the input is visited once and each program instruction at most once per position.
+ * Submatches follow the same leftmost-first priorities as {@link java.util.regex.Pattern}, so capture groups yield
+ * the same values. The one known difference is a group inside a loop whose last iteration matches the empty string
+ * (e.g. {@code (a*)*}), where this engine reports the last non-empty iteration.
+ * <p>
+ * Supported syntax is the part of {@code java.util.regex} that can be simulated without backtracking: literals and
+ * escapes, {@code .}, character classes (without nesting or intersection), {@code \d \w \s} and their negations,
+ * {@code ^ $ \b \B \A \z \Z}, capturing, non-capturing and named groups, alternation and greedy or lazy quantifiers.
+ * Back references, look-around, atomic groups, possessive quantifiers and inline flags are rejected with a
+ * {@link PatternSyntaxException}.
+ */
+final class LinearRegex implements CompiledRegex {
+
+    /**
+     * Upper bound on the compiled program, mostly reached through large counted repetitions such as {@code x{1,1000}}.
+     */
+    static final int MAX_PROGRAM_SIZE = 5_000;
+
+    private static final int MAX_REPETITION = 1_000;
+
+    private static final int OP_CLASS = 0;
+    private static final int OP_SPLIT = 1;
+    private static final int OP_JMP = 2;
+    private static final int OP_SAVE = 3;
+    private static final int OP_ASSERT = 4;
+    private static final int OP_MATCH = 5;
+
+    private static final int ASSERT_BEGIN = 0;
+    private static final int ASSERT_END = 1;
+    private static final int ASSERT_END_OR_FINAL_TERMINATOR = 2;
+    private static final int ASSERT_WORD_BOUNDARY = 3;
+    private static final int ASSERT_NOT_WORD_BOUNDARY = 4;
+
+    private final String pattern;
+    private final int groupCount;
+    private final Map<String, Integer> groupNames;
+
+    private final int[] ops;
+    private final int[] args1;
+    private final int[] args2;
+    private final CharClass[] classes;
+
+    private LinearRegex(final String pattern,
+                        final int groupCount,
+                        final Map<String, Integer> groupNames,
+                        final ProgramBuilder program) {
+        this.pattern = pattern;
+        this.groupCount = groupCount;
+        this.groupNames = groupNames;
+        this.ops = Arrays.copyOf(program.ops, program.size);
+        this.args1 = Arrays.copyOf(program.args1, program.size);
+        this.args2 = Arrays.copyOf(program.args2, program.size);
+        this.classes = program.classes.toArray(new CharClass[0]);
+    }
+
+    static LinearRegex compile(final String pattern) {
+        final Parser parser = new Parser(pattern);
+        final Node root = parser.parse();
+
+        final ProgramBuilder program = new ProgramBuilder(pattern);
+        program.add(OP_SAVE, 0, 0, null);
+        root.emit(program);
+        program.add(OP_SAVE, 1, 0, null);
+        program.add(OP_MATCH, 0, 0, null);
+
+        return new LinearRegex(pattern, parser.groupCount, Collections.unmodifiableMap(parser.groupNames), program);
+    }
+
+    @Override
+    public String pattern() {
+        return pattern;
+    }
+
+    @Override
+    public int groupCount() {
+        return groupCount;
+    }
+
+    @Override
+    public boolean hasGroup(final String name) {
+        return groupNames.containsKey(name);
+    }
+
+    @Override
+    public RegexMatcher matcher(final CharSequence input) {
+        return new LinearMatcher(input);
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private static boolean isLineTerminator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isWord(final char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Matching
+
+    private final class LinearMatcher implements RegexMatcher {
+
+        private CharSequence input;
+
+        private final int[] mark = new int[ops.length];
+        private int generation;
+        private ThreadList current = new ThreadList(ops.length);
+        private ThreadList next = new ThreadList(ops.length);
+
+        private final int[] emptyCaptures;
+        private int[] groups;
+        private int first = -1;
+        private int last = 0;
+
+        private LinearMatcher(final CharSequence input) {
+            this.input = input;
+            this.emptyCaptures = new int[(groupCount + 1) * 2];
+            Arrays.fill(emptyCaptures, -1);
+        }
+
+        @Override
+        public boolean matches() {
+            return search(0, true, true);
+        }
+
+        @Override
+        public boolean find() {
+            int from = last;
+            if (from == first) {
+                from++;
+            }
+            if (from > input.length()) {
+                groups = null;
+                return false;
+            }
+            return search(from, false, false);
+        }
+
+        @Override
+        public int start() {
+            return checkMatch()[0];
+        }
+
+        @Override
+        public int end() {
+            return checkMatch()[1];
+        }
+
+        @Override
+        public int groupCount() {
+            return groupCount;
+        }
+
+        @Override
+        public String group(final int group) {
+            final int[] captures = checkMatch();
+            if (group < 0 || group > groupCount) {
+                throw new IndexOutOfBoundsException("No group " + group);
+            }
+            final int start = captures[group * 2];
+            final int end = captures[group * 2 + 1];
+            return start == -1 || end == -1 ? null : input.subSequence(start, end).toString();
+        }
+
+        @Override
+        public String group(final String name) {
+            checkMatch();
+            final Integer group = groupNames.get(name);
+            if (group == null) {
+                throw new IllegalArgumentException("No group with name <" + name + ">");
+            }
+            return group(group);
+        }
+
+        @Override
+        public RegexMatcher reset(final CharSequence input) {
+            this.input = input;
+            this.groups = null;
+            this.first = -1;
+            this.last = 0;
+            return this;
+        }
+
+        private int[] checkMatch() {
+            if (groups == null) {
+                throw new IllegalStateException("No match found");
+            }
+            return groups;
+        }
+
+        private boolean search(final int from, final boolean anchored, final boolean full) {
+            final int end = input.length();
+            int[] matched = null;
+
+            current.clear();
+            generation++;
+            for (int pos = from; ; pos++) {
+                if (matched == null && (!anchored || pos == from)) {
+                    // The new thread has the lowest priority: any thread started further left wins.
+                    addThread(current, 0, emptyCaptures, pos);
+                }
+                if (current.size == 0 && (anchored || matched != null || pos >= end)) {
+                    // Until then a thread started further right may still match, e.g. at a word boundary or the end.
+                    break;
+                }
+
+                next.clear();
+                generation++;
+                for (int i = 0; i < current.size; i++) {
+                    final int pc = current.pcs[i];
+                    final int[] captures = current.captures[i];
+                    if (ops[pc] == OP_MATCH) {
+                        if (full && pos != end) {
+                            continue;
+                        }
+                        matched = captures;
+                        // Lower priority threads can no longer win.
+                        break;
+                    }
+                    // OP_CLASS
+                    if (pos < end && classes[args1[pc]].matches(input.charAt(pos))) {
+                        addThread(next, pc + 1, captures, pos + 1);
+                    }
+                }
+
+                final ThreadList swap = current;
+                current = next;
+                next = swap;
+                if (pos >= end) {
+                    break;
+                }
+            }
+
+            groups = matched;
+            if (matched == null) {
+                first = -1;
+                return false;
+            }
+            first = matched[0];
+            last = matched[1];
+            return true;
+        }
+
+        private void addThread(final ThreadList list, final int pc, final int[] captures, final int pos) {
+            if (mark[pc] == generation) {
+                return;
+            }
+            mark[pc] = generation;
+
+            switch (ops[pc]) {
+                case OP_JMP:
+                    addThread(list, args1[pc], captures, pos);
+                    break;
+                case OP_SPLIT:
+                    addThread(list, args1[pc], captures, pos);
+                    addThread(list, args2[pc], captures, pos);
+                    break;
+                case OP_SAVE:
+                    final int[] saved = captures.clone();
+                    saved[args1[pc]] = pos;
+                    addThread(list, pc + 1, saved, pos);
+                    break;
+                case OP_ASSERT:
+                    if (holds(args1[pc], pos)) {
+                        addThread(list, pc + 1, captures, pos);
+                    }
+                    break;
+                default:
+                    list.add(pc, captures);
+            }
+        }
+
+        private boolean holds(final int assertion, final int pos) {
+            final int end = input.length();
+            switch (assertion) {
+                case ASSERT_BEGIN:
+                    return pos == 0;
+                case ASSERT_END:
+                    return pos == end;
+                case ASSERT_END_OR_FINAL_TERMINATOR:
+                    if (pos == end) {
+                        return true;
+                    }
+                    if (pos == end - 1) {
+                        // Not between the \r and \n of a final \r\n.
+                        return isLineTerminator(input.charAt(pos)) && !(input.charAt(pos) == '\n' && pos > 0 && input.charAt(pos - 1) == '\r');
+                    }
+                    return pos == end - 2 && input.charAt(pos) == '\r' && input.charAt(pos + 1) == '\n';
+                case ASSERT_WORD_BOUNDARY:
+                case ASSERT_NOT_WORD_BOUNDARY:
+                    final boolean before = pos > 0 && isWord(input.charAt(pos - 1));
+                    final boolean after = pos < end && isWord(input.charAt(pos));
+                    return (before != after) == (assertion == ASSERT_WORD_BOUNDARY);
+                default:
+                    throw new IllegalStateException("Unknown assertion " + assertion);
+            }
+        }
+    }
+
+    private static final class ThreadList {
+        private final int[] pcs;
+        private final int[][] captures;
+        private int size;
+
+        private ThreadList(final int capacity) {
+            this.pcs = new int[capacity];
+            this.captures = new int[capacity][];
+        }
+
+        private void add(final int pc, final int[] threadCaptures) {
+            pcs[size] = pc;
+            captures[size] = threadCaptures;
+            size++;
+        }
+
+        private void clear() {
+            Arrays.fill(captures, 0, size, null);
+            size = 0;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Program
+
+    private static final class ProgramBuilder {
+        private final String pattern;
+        private int[] ops = new int[32];
+        private int[] args1 = new int[32];
+        private int[] args2 = new int[32];
+        private final List<CharClass> classes = new ArrayList<>();
+        private int size;
+
+        private ProgramBuilder(final String pattern) {
+            this.pattern = pattern;
+        }
+
+        private int add(final int op, final int arg1, final int arg2, final CharClass charClass) {
+            if (size == MAX_PROGRAM_SIZE) {
+                throw new PatternSyntaxException("Pattern is too large for the linear engine", pattern, -1);
+            }
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                args1 = Arrays.copyOf(args1, size * 2);
+                args2 = Arrays.copyOf(args2, size * 2);
+            }
+            ops[size] = op;
+            args1[size] = arg1;
+            args2[size] = arg2;
+            if (charClass != null) {
+                args1[size] = classes.size();
+                classes.add(charClass);
+            }
+            return size++;
+        }
+    }
+
+    private interface Node {
+        void emit(ProgramBuilder program);
+    }
+
+    private static final class ClassNode implements Node {
+        private final CharClass charClass;
+
+        private ClassNode(final CharClass charClass) {
+            this.charClass = charClass;
+        }
+
+        @Override
+        public void emit(final ProgramBuilder program) {
+            program.add(OP_CLASS, 0, 0, charClass);
+        }
+    }
+
+    private static final class AssertNode implements Node {
+        private final int assertion;
+
+        private AssertNode(final int assertion) {
+            this.assertion = assertion;
+        }
+
+        @Override
+        public void emit(final ProgramBuilder program) {
+            program.add(OP_ASSERT, assertion, 0, null);
+        }
+    }
+
+    private static final class ConcatNode implements Node {
+        private final List<Node> nodes;
+
+        private ConcatNode(final List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public void emit(final ProgramBuilder program) {
+            for (Node node : nodes) {
+                node.emit(program);
+            }
+        }
+    }
+
+    private static final class AlternationNode implements Node {
+        private final List<Node> alternatives;
+
+        private AlternationNode(final List<Node> alternatives) {
+            this.alternatives = alternatives;
+        }
+
+        @Override
+        public void emit(final ProgramBuilder program) {
+            final int[] jumps = new int[alternatives.size() - 1];
+            for (int i = 0; i < alternatives.size() - 1; i++) {
+                final int split = program.add(OP_SPLIT, program.size + 1, 0, null);
+                alternatives.get(i).emit(program);
+                jumps[i] = program.add(OP_JMP, 0, 0, null);
+                program.args2[split] = program.size;
+            }
+            alternatives.get(alternatives.size() - 1).emit(program);
+            for (int jump : jumps) {
+                program.args1[jump] = program.size;
+            }
+        }
+    }
+
+    private static final class GroupNode implements Node {
+        private final int group;
+        private final Node node;
+
+        private GroupNode(final int group, final Node node) {
+            this.group = group;
+            this.node = node;
+        }
+
+        @Override
+        public void emit(final ProgramBuilder program) {
+            program.add(OP_SAVE, group * 2, 0, null);
+            node.emit(program);
+            program.add(OP_SAVE, group * 2 + 1, 0, null);
+        }
+    }
+
+    private static final class RepeatNode implements Node {
+        private final Node node;
+        private final int min;
+        private final int max;
+        private final boolean greedy;
+
+        private RepeatNode(final Node node, final int min, final int max, final boolean greedy) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+            this.greedy = greedy;
+        }
+
+        @Override
+        public void emit(final ProgramBuilder program) {
+            for (int i = 0; i < min; i++) {
+                node.emit(program);
+            }
+            if (max == -1) {
+                // Loop back through a second split rather than jumping to the first one: an iteration that matched
+                // the empty string then leaves the loop with its captures, as java.util.regex does.
+                final int split = program.add(OP_SPLIT, 0, 0, null);
+                node.emit(program);
+                final int loop = program.add(OP_SPLIT, 0, 0, null);
+                prefer(program, split, split + 1, program.size);
+                prefer(program, loop, split + 1, program.size);
+            } else {
+                final int[] splits = new int[max - min];
+                for (int i = 0; i < max - min; i++) {
+                    splits[i] = program.add(OP_SPLIT, 0, 0, null);
+                    node.emit(program);
+                }
+                for (int i = 0; i < splits.length; i++) {
+                    prefer(program, splits[i], splits[i] + 1, program.size);
+                }
+            }
+        }
+
+        private void prefer(final ProgramBuilder program, final int split, final int body, final int out) {
+            program.args1[split] = greedy ? body : out;
+            program.args2[split] = greedy ? out : body;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // Parsing
+
+    private static final class Parser {
+        private final String pattern;
+        private int pos;
+        private int groupCount;
+        private final Map<String, Integer> groupNames = new HashMap<>();
+
+        private Parser(final String pattern) {
+            this.pattern = pattern;
+        }
+
+        private Node parse() {
+            final Node node = parseAlternation();
+            if (pos < pattern.length()) {
+                throw error("Unmatched closing ')'");
+            }
+            return node;
+        }
+
+        private Node parseAlternation() {
+            final List<Node> alternatives = new ArrayList<>();
+            alternatives.add(parseConcat());
+            while (pos < pattern.length() && pattern.charAt(pos) == '|') {
+                pos++;
+                alternatives.add(parseConcat());
+            }
+            return alternatives.size() == 1 ? alternatives.get(0) : new AlternationNode(alternatives);
+        }
+
+        private Node parseConcat() {
+            final List<Node> nodes = new ArrayList<>();
+            while (pos < pattern.length()) {
+                final char c = pattern.charAt(pos);
+                if (c == '|' || c == ')') {
+                    break;
+                }
+                if (c == '\\' && pos + 1 < pattern.length() && pattern.charAt(pos + 1) == 'Q') {
+                    nodes.addAll(parseQuote());
+                    continue;
+                }
+                nodes.add(parseQuantified(parseAtom()));
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new ConcatNode(nodes);
+        }
+
+        private List<Node> parseQuote() {
+            pos += 2;
+            int end = pattern.indexOf("\\E", pos);
+            if (end < 0) {
+                end = pattern.length();
+            }
+            final List<Node> nodes = new ArrayList<>();
+            for (int i = pos; i < end; i++) {
+                nodes.add(new ClassNode(CharClass.of(pattern.charAt(i))));
+            }
+            pos = Math.min(pattern.length(), end + 2);
+            // A quantifier after \E applies to the last quoted character only.
+            if (!nodes.isEmpty()) {
+                nodes.set(nodes.size() - 1, parseQuantified(nodes.get(nodes.size() - 1)));
+            }
+            return nodes;
+        }
+
+        private Node parseQuantified(final Node atom) {
+            if (pos >= pattern.length()) {
+                return atom;
+            }
+            final char c = pattern.charAt(pos);
+            int min;
+            int max;
+            if (c == '*') {
+                min = 0;
+                max = -1;
+                pos++;
+            } else if (c == '+') {
+                min = 1;
+                max = -1;
+                pos++;
+            } else if (c == '?') {
+                min = 0;
+                max = 1;
+                pos++;
+            } else if (c == '{') {
+                final int start = pos;
+                pos++;
+                min = parseNumber();
+                max = min;
+                if (pos < pattern.length() && pattern.charAt(pos) == ',') {
+                    pos++;
+                    max = pos < pattern.length() && pattern.charAt(pos) == '}' ? -1 : parseNumber();
+                }
+                if (pos >= pattern.length() || pattern.charAt(pos) != '}') {
+                    pos = start;
+                    throw error("Unclosed counted closure");
+                }
+                pos++;
+                if (max != -1 && max < min) {
+                    throw error("Illegal repetition range");
+                }
+                if (min > MAX_REPETITION || max > MAX_REPETITION) {
+                    throw error("Repetition count is too large for the linear engine");
+                }
+            } else {
+                return atom;
+            }
+
+            boolean greedy = true;
+            if (pos < pattern.length()) {
+                final char modifier = pattern.charAt(pos);
+                if (modifier == '?') {
+                    greedy = false;
+                    pos++;
+                } else if (modifier == '+') {
+                    throw error("Possessive quantifiers are not supported by the linear engine");
+                }
+            }
+            if (pos < pattern.length() && "*+?{".indexOf(pattern.charAt(pos)) >= 0) {
+                throw error("Dangling meta character '" + pattern.charAt(pos) + "'");
+            }
+            return new RepeatNode(atom, min, max, greedy);
+        }
+
+        private int parseNumber() {
+            final int start = pos;
+            while (pos < pattern.length() && Character.isDigit(pattern.charAt(pos))) {
+                pos++;
+            }
+            if (start == pos) {
+                throw error("Illegal repetition");
+            }
+            try {
+                return Integer.parseInt(pattern.substring(start, pos));
+            } catch (NumberFormatException ex) {
+                throw error("Illegal repetition");
+            }
+        }
+
+        private Node parseAtom() {
+            final char c = pattern.charAt(pos);
+            switch (c) {
+                case '(':
+                    return parseGroup();
+                case '[':
+                    pos++;
+                    return new ClassNode(parseClass());
+                case '.':
+                    pos++;
+                    return new ClassNode(CharClass.DOT);
+                case '^':
+                    pos++;
+                    return new AssertNode(ASSERT_BEGIN);
+                case '$':
+                    pos++;
+                    return new AssertNode(ASSERT_END_OR_FINAL_TERMINATOR);
+                case '\\':
+                    return parseEscape();
+                case '*':
+                case '+':
+                case '?':
+                    throw error("Dangling meta character '" + c + "'");
+                case '{':
+                    throw error("Illegal repetition");
+                default:
+                    pos++;
+                    return new ClassNode(CharClass.of(c));
+            }
+        }
+
+        private Node parseGroup() {
+            pos++;
+            int group = -1;
+            if (pattern.startsWith("?", pos)) {
+                if (pattern.startsWith("?:", pos)) {
+                    pos += 2;
+                } else if (pattern.startsWith("?<", pos) && pos + 2 < pattern.length()
+                        && Character.isLetter(pattern.charAt(pos + 2))) {
+                    pos += 2;
+                    final int start = pos;
+                    while (pos < pattern.length() && Character.isLetterOrDigit(pattern.charAt(pos))) {
+                        pos++;
+                    }
+                    if (pos >= pattern.length() || pattern.charAt(pos) != '>') {
+                        throw error("named capturing group is missing trailing '>'");
+                    }
+                    final String name = pattern.substring(start, pos);
+                    pos++;
+                    group = ++groupCount;
+                    if (groupNames.put(name, group) != null) {
+                        throw error("Named capturing group <" + name + "> is already defined");
+                    }
+                } else {
+                    throw error("Look-around, atomic groups and inline flags are not supported by the linear engine");
+                }
+            } else {
+                group = ++groupCount;
+            }
+
+            final Node node = parseAlternation();
+            if (pos >= pattern.length() || pattern.charAt(pos) != ')') {
+                throw error("Unclosed group");
+            }
+            pos++;
+            return group == -1 ? node : new GroupNode(group, node);
+        }
+
+        private Node parseEscape() {
+            pos++;
+            if (pos >= pattern.length()) {
+                throw error("Unexpected internal error");
+            }
+            final char c = pattern.charAt(pos);
+            switch (c) {
+                case 'b':
+                    pos++;
+                    return new AssertNode(ASSERT_WORD_BOUNDARY);
+                case 'B':
+                    pos++;
+                    return new AssertNode(ASSERT_NOT_WORD_BOUNDARY);
+                case 'A':
+                    pos++;
+                    return new AssertNode(ASSERT_BEGIN);
+                case 'z':
+                    pos++;
+                    return new AssertNode(ASSERT_END);
+                case 'Z':
+                    pos++;
+                    return new AssertNode(ASSERT_END_OR_FINAL_TERMINATOR);
+                default:
+                    return new ClassNode(parseEscapedClass());
+            }
+        }
+
+        /**
+         * Parses the escape sequence at {@code pos} (just after the backslash) into the characters it matches.
+         */
+        private CharClass parseEscapedClass() {
+            final char c = pattern.charAt(pos++);
+            switch (c) {
+                case 'd':
+                    return CharClass.DIGIT;
+                case 'D':
+                    return CharClass.DIGIT.negate();
+                case 'w':
+                    return CharClass.WORD;
+                case 'W':
+                    return CharClass.WORD.negate();
+                case 's':
+                    return CharClass.SPACE;
+                case 'S':
+                    return CharClass.SPACE.negate();
+                case 't':
+                    return CharClass.of('\t');
+                case 'n':
+                    return CharClass.of('\n');
+                case 'r':
+                    return CharClass.of('\r');
+                case 'f':
+                    return CharClass.of('\f');
+                case 'a':
+                    return CharClass.of('\u0007');
+                case 'e':
+                    return CharClass.of('\u001B');
+                case 'x':
+                    return CharClass.of((char) parseHex(2));
+                case 'u':
+                    return CharClass.of((char) parseHex(4));
+                default:
+                    if (Character.isDigit(c) || c == 'k') {
+                        pos--;
+                        throw error("Back references are not supported by the linear engine");
+                    }
+                    if (Character.isLetter(c)) {
+                        pos--;
+                        throw error("Escape sequence \\" + c + " is not supported by the linear engine");
+                    }
+                    return CharClass.of(c);
+            }
+        }
+
+        private int parseHex(final int digits) {
+            if (pos + digits > pattern.length()) {
+                throw error("Illegal hexadecimal escape sequence");
+            }
+            try {
+                final int value = Integer.parseInt(pattern.substring(pos, pos + digits), 16);
+                pos += digits;
+                return value;
+            } catch (NumberFormatException ex) {
+                throw error("Illegal hexadecimal escape sequence");
+            }
+        }
+
+        private CharClass parseClass() {
+            boolean negated = false;
+            if (pos < pattern.length() && pattern.charAt(pos) == '^') {
+                negated = true;
+                pos++;
+            }
+            final CharClass.Builder builder = new CharClass.Builder();
+            boolean firstItem = true;
+            while (true) {
+                if (pos >= pattern.length()) {
+                    throw error("Unclosed character class");
+                }
+                char c = pattern.charAt(pos);
+                if (c == ']' && !firstItem) {
+                    pos++;
+                    break;
+                }
+                if (c == '[' || pattern.startsWith("&&", pos)) {
+                    throw error("Nested classes and intersections are not supported by the linear engine");
+                }
+                firstItem = false;
+
+                final int low;
+                if (c == '\\') {
+                    pos++;
+                    if (pos >= pattern.length()) {
+                        throw error("Unclosed character class");
+                    }
+                    final CharClass escaped = parseEscapedClass();
+                    if (!escaped.isSingleChar()) {
+                        builder.addAll(escaped);
+                        continue;
+                    }
+                    low = escaped.singleChar();
+                } else {
+                    pos++;
+                    low = c;
+                }
+
+                if (pos + 1 < pattern.length() && pattern.charAt(pos) == '-' && pattern.charAt(pos + 1) != ']') {
+                    pos++;
+                    final int high;
+                    c = pattern.charAt(pos);
+                    if (c == '\\') {
+                        pos++;
+                        final CharClass escaped = parseEscapedClass();
+                        if (!escaped.isSingleChar()) {
+                            throw error("Illegal character range");
+                        }
+                        high = escaped.singleChar();
+                    } else if (c == '[') {
+                        throw error("Nested classes and intersections are not supported by the linear engine");
+                    } else {
+                        pos++;
+                        high = c;
+                    }
+                    if (high < low) {
+                        throw error("Illegal character range");
+                    }
+                    builder.add(low, high);
+                } else {
+                    builder.add(low, low);
+                }
+            }
+            final CharClass charClass = builder.build();
+            return negated ? charClass.negate() : charClass;
+        }
+
+        private PatternSyntaxException error(final String description) {
+            return new PatternSyntaxException(description, pattern, pos);
+        }
+    }
+
+    /**
+     * Set of UTF-16 code units as sorted, non-overlapping, inclusive ranges.
+     */
+    static final class CharClass {
+
+        static final CharClass DIGIT = new Builder().add('0', '9').build();
+        static final CharClass WORD = new Builder().add('a', 'z').add('A', 'Z').add('_', '_').add('0', '9').build();
+        static final CharClass SPACE = new Builder().add(' ', ' ').add('\t', '\r').build();
+        static final CharClass DOT = new Builder()
+                .add('\n', '\n').add('\r', '\r').add('\u0085', '\u0085').add('\u2028', '\u2029')
+                .build()
+                .negate();
+
+        private final char[] ranges;
+
+        private CharClass(final char[] ranges) {
+            this.ranges = ranges;
+        }
+
+        static CharClass of(final char c) {
+            return new CharClass(new char[]{c, c});
+        }
+
+        boolean matches(final char c) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (c < ranges[i]) {
+                    return false;
+                }
+                if (c <= ranges[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean intersects(final CharClass other) {
+            int i = 0;
+            int j = 0;
+            while (i < ranges.length && j < other.ranges.length) {
+                if (ranges[i + 1] < other.ranges[j]) {
+                    i += 2;
+                } else if (other.ranges[j + 1] < ranges[i]) {
+                    j += 2;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isSingleChar() {
+            return ranges.length == 2 && ranges[0] == ranges[1];
+        }
+
+        char singleChar() {
+            return ranges[0];
+        }
+
+        CharClass negate() {
+            final Builder builder = new Builder();
+            int next = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] > next) {
+                    builder.add(next, ranges[i] - 1);
+                }
+                next = ranges[i + 1] + 1;
+            }
+            if (next <= Character.MAX_VALUE) {
+                builder.add(next, Character.MAX_VALUE);
+            }
+            return builder.build();
+        }
+
+        static final class Builder {
+            private final List<int[]> ranges = new ArrayList<>();
+
+            Builder add(final int low, final int high) {
+                ranges.add(new int[]{low, high});
+                return this;
+            }
+
+            Builder addAll(final CharClass charClass) {
+                for (int i = 0; i < charClass.ranges.length; i += 2) {
+                    add(charClass.ranges[i], charClass.ranges[i + 1]);
+                }
+                return this;
+            }
+
+            CharClass build() {
+                ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+                final List<int[]> merged = new ArrayList<>();
+                for (int[] range : ranges) {
+                    final int[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+                    if (previous != null && range[0] <= previous[1] + 1) {
+                        previous[1] = Math.max(previous[1], range[1]);
+                    } else {
+                        merged.add(new int[]{range[0], range[1]});
+                    }
+                }
+                final char[] result = new char[merged.size() * 2];
+                for (int i = 0; i < merged.size(); i++) {
+                    result[i * 2] = (char) merged.get(i)[0];
+                    result[i * 2 + 1] = (char) merged.get(i)[1];
+                }
+                return new CharClass(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserSessionModel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Per mapper counters and latency histograms of both mappers.
+ * <p>
+ * Disabled by default; the mappers then only read {@link #isEnabled() one volatile flag} per token. The counters are
+ * exposed as Prometheus text by {@link RegexMappersResource} and over JMX by {@link MapperMetricsJmx}, see
+ * {@link RegexMappersResourceProviderFactory} for the configuration.
+ */
+final class MapperMetrics {
+
+    /**
+     * Upper bounds of the latency histogram buckets, in microseconds.
+     */
+    static final long[] BUCKET_BOUNDS_MICROS = {10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 100_000, 1_000_000};
+
+    private static volatile boolean enabled;
+
+    private static final ConcurrentMap<String, Stats> STATS = new ConcurrentHashMap<>();
+
+    private MapperMetrics() {
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void setEnabled(final boolean enabled) {
+        MapperMetrics.enabled = enabled;
+    }
+
+    /**
+     * @return the stats of the mapper, or null if metrics are disabled or the mapper has no id.
+     */
+    static Stats forMapper(final ProtocolMapperModel mapperModel, final UserSessionModel userSession) {
+        if (!enabled || mapperModel.getId() == null) {
+            return null;
+        }
+        final var stats = STATS.get(mapperModel.getId());
+        if (stats != null) {
+            return stats;
+        }
+        final var realm = userSession == null ? null : userSession.getRealm();
+        return STATS.computeIfAbsent(mapperModel.getId(), id -> new Stats(
+                id, mapperModel.getName(), mapperModel.getProtocolMapper(), realm == null ? null : realm.getId()));
+    }
+
+    static Collection<Stats> all() {
+        return STATS.values();
+    }
+
+    /**
+     * @return the stats of all mappers in the realm, ordered by mapper id.
+     */
+    static List<Stats> forRealm(final String realmId) {
+        final List<Stats> result = new ArrayList<>();
+        for (Stats stats : STATS.values()) {
+            if (realmId.equals(stats.realmId)) {
+                result.add(stats);
+            }
+        }
+        result.sort((a, b) -> a.mapperId.compareTo(b.mapperId));
+        return result;
+    }
+
+    static void reset() {
+        STATS.clear();
+    }
+
+    /**
+     * Renders the stats in the Prometheus text exposition format (version 0.0.4).
+     */
+    static String toPrometheusText(final List<Stats> stats) {
+        final StringBuilder out = new StringBuilder(1024 + stats.size() * 2048);
+        counter(out, stats, "invocations", "Mapper invocations.", s -> s.invocations.sum());
+        counter(out, stats, "skipped", "Invocations skipped because of the match time budget or circuit breaker.", s -> s.skipped.sum());
+        counter(out, stats, "groups_scanned", "Group memberships, roles or attribute values matched against the pattern.", s -> s.groupsScanned.sum());
+        counter(out, stats, "groups_matched", "Group memberships, roles or attribute values that matched the pattern.", s -> s.groupsMatched.sum());
+        counter(out, stats, "values_emitted", "Claim values written to tokens.", s -> s.valuesEmitted.sum());
+        counter(out, stats, "replacements", "Claim values changed by replacements.", s -> s.replacements.sum());
+        counter(out, stats, "session_cache_hits", "Values reused from the user session.", s -> s.sessionCacheHits.sum());
+        counter(out, stats, "session_cache_misses", "Values computed because the user session had none or outdated ones.", s -> s.sessionCacheMisses.sum());
+
+        final String histogram = "regex_mapper_duration_seconds";
+        out.append("# HELP ").append(histogram).append(" Time spent per mapper invocation.\n");
+        out.append("# TYPE ").append(histogram).append(" histogram\n");
+        for (Stats s : stats) {
+            final long[] counts = s.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                out.append(histogram).append("_bucket");
+                labels(out, s, i < BUCKET_BOUNDS_MICROS.length ? Double.toString(BUCKET_BOUNDS_MICROS[i] / 1_000_000d) : "+Inf");
+                out.append(' ').append(cumulative).append('\n');
+            }
+            out.append(histogram).append("_sum");
+            labels(out, s, null);
+            out.append(' ').append(s.durationNanos.sum() / 1_000_000_000d).append('\n');
+            out.append(histogram).append("_count");
+            labels(out, s, null);
+            out.append(' ').append(cumulative).append('\n');
+        }
+
+        cacheCounter(out, "hits", "Lookups of compiled mapper configurations that were cached.",
+                RegexMapper.plans.hits(), RegexReplaceMapper.programs.hits());
+        cacheCounter(out, "misses", "Lookups of compiled mapper configurations that had to compile.",
+                RegexMapper.plans.misses(), RegexReplaceMapper.programs.misses());
+        return out.toString();
+    }
+
+    private static void counter(final StringBuilder out,
+                                final List<Stats> stats,
+                                final String name,
+                                final String help,
+                                final ToLongFunction<Stats> value) {
+        final String metric = "regex_mapper_" + name + "_total";
+        out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(metric).append(" counter\n");
+        for (Stats s : stats) {
+            out.append(metric);
+            labels(out, s, null);
+            out.append(' ').append(value.applyAsLong(s)).append('\n');
+        }
+    }
+
+    private static void cacheCounter(final StringBuilder out,
+                                     final String name,
+                                     final String help,
+                                     final long regexMapper,
+                                     final long regexReplaceMapper) {
+        final String metric = "regex_mapper_compiled_config_cache_" + name + "_total";
+        out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(metric).append(" counter\n");
+        out.append(metric).append("{mapper_type=\"").append(RegexMapper.PROVIDER_ID).append("\"} ").append(regexMapper).append('\n');
+        out.append(metric).append("{mapper_type=\"").append(RegexReplaceMapper.PROVIDER_ID).append("\"} ").append(regexReplaceMapper).append('\n');
+    }
+
+    private static void labels(final StringBuilder out, final Stats stats, final String le) {
+        out.append("{mapper_id=\"");
+        escape(out, stats.mapperId);
+        out.append("\",mapper_name=\"");
+        escape(out, stats.mapperName);
+        out.append("\",mapper_type=\"");
+        escape(out, stats.mapperType);
+        out.append('"');
+        if (le != null) {
+            out.append(",le=\"").append(le).append('"');
+        }
+        out.append('}');
+    }
+
+    private static void escape(final StringBuilder out, final String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    static final class Stats {
+        private final String mapperId;
+        private final String mapperName;
+        private final String mapperType;
+        private final String realmId;
+
+        final LongAdder invocations = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final LongAdder groupsScanned = new LongAdder();
+        final LongAdder groupsMatched = new LongAdder();
+        final LongAdder valuesEmitted = new LongAdder();
+        final LongAdder replacements = new LongAdder();
+        final LongAdder sessionCacheHits = new LongAdder();
+        final LongAdder sessionCacheMisses = new LongAdder();
+        final LongAdder durationNanos = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MICROS.length + 1];
+
+        private Stats(final String mapperId, final String mapperName, final String mapperType, final String realmId) {
+            this.mapperId = mapperId;
+            this.mapperName = mapperName;
+            this.mapperType = mapperType;
+            this.realmId = realmId;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void recordInvocation(final long nanos) {
+            invocations.increment();
+            durationNanos.add(nanos);
+            final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+        }
+
+        String getMapperId() {
+            return mapperId;
+        }
+
+        String getMapperName() {
+            return mapperName;
+        }
+
+        String getMapperType() {
+            return mapperType;
+        }
+
+        String getRealmId() {
+            return realmId;
+        }
+
+        /**
+         * @return the number of invocations per histogram bucket, the last one counting those above all bounds.
+         */
+        long[] getBucketCounts() {
+            final long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.sral.keycloak.mappers;
+
+import org.jboss.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Registers the {@link MapperMetricsMXBean} with the platform MBean server.
+ */
+final class MapperMetricsJmx implements MapperMetricsMXBean {
+
+    static final String OBJECT_NAME = "org.sral.keycloak.mappers:type=MapperMetrics";
+
+    private static final Logger LOG = Logger.getLogger(MapperMetricsJmx.class);
+
+    static void register() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            // A redeployed provider replaces the bean of its predecessor.
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MapperMetricsJmx(), name);
+        } catch (JMException ex) {
+            LOG.warnf(ex, "Could not register %s", OBJECT_NAME);
+        }
+    }
+
+    static void unregister() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException ex) {
+            LOG.debugf(ex, "Could not unregister %s", OBJECT_NAME);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return MapperMetrics.isEnabled();
+    }
+
+    @Override
+    public void setEnabled(final boolean enabled) {
+        MapperMetrics.setEnabled(enabled);
+    }
+
+    @Override
+    public Map<String, String> getMapperNames() {
+        return byMapperId(stats -> stats.getMapperName() == null ? "" : stats.getMapperName());
+    }
+
+    @Override
+    public Map<String, Long> getInvocations() {
+        return byMapperId(stats -> stats.invocations.sum());
+    }
+
+    @Override
+    public Map<String, Long> getSkipped() {
+        return byMapperId(stats -> stats.skipped.sum());
+    }
+
+    @Override
+    public Map<String, Double> getMeanDurationMillis() {
+        return byMapperId(stats -> {
+            final long invocations = stats.invocations.sum();
+            return invocations == 0 ? 0d : stats.durationNanos.sum() / 1_000_000d / invocations;
+        });
+    }
+
+    @Override
+    public Map<String, Long> getGroupsScanned() {
+        return byMapperId(stats -> stats.groupsScanned.sum());
+    }
+
+    @Override
+    public Map<String, Long> getGroupsMatched() {
+        return byMapperId(stats -> stats.groupsMatched.sum());
+    }
+
+    @Override
+    public Map<String, Long> getValuesEmitted() {
+        return byMapperId(stats -> stats.valuesEmitted.sum());
+    }
+
+    @Override
+    public Map<String, Long> getReplacements() {
+        return byMapperId(stats -> stats.replacements.sum());
+    }
+
+    @Override
+    public Map<String, Long> getSessionCacheHits() {
+        return byMapperId(stats -> stats.sessionCacheHits.sum());
+    }
+
+    @Override
+    public Map<String, Long> getSessionCacheMisses() {
+        return byMapperId(stats -> stats.sessionCacheMisses.sum());
+    }
+
+    @Override
+    public void reset() {
+        MapperMetrics.reset();
+    }
+
+    private static <V> Map<String, V> byMapperId(final Function<MapperMetrics.Stats, V> value) {
+        final Map<String, V> result = new TreeMap<>();
+        for (MapperMetrics.Stats stats : MapperMetrics.all()) {
+            result.put(stats.getMapperId(), value.apply(stats));
+        }
+        return result;
+    }
+}
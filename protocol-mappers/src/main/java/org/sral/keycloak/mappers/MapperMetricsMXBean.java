@@ -0,0 +1,36 @@
+package org.sral.keycloak.mappers;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link MapperMetrics}, registered as {@value MapperMetricsJmx#OBJECT_NAME}. Every map is keyed by
+ * mapper id.
+ */
+public interface MapperMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    Map<String, String> getMapperNames();
+
+    Map<String, Long> getInvocations();
+
+    Map<String, Long> getSkipped();
+
+    Map<String, Double> getMeanDurationMillis();
+
+    Map<String, Long> getGroupsScanned();
+
+    Map<String, Long> getGroupsMatched();
+
+    Map<String, Long> getValuesEmitted();
+
+    Map<String, Long> getReplacements();
+
+    Map<String, Long> getSessionCacheHits();
+
+    Map<String, Long> getSessionCacheMisses();
+
+    void reset();
+}
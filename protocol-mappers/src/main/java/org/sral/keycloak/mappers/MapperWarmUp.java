@@ -0,0 +1,198 @@
+package org.sral.keycloak.mappers;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientScopeModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.ProviderEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles the configurations of all regex mappers of a realm ahead of the first token, so that the first logins
+ * after a restart or an import do not pay for compiling patterns and replacement maps.
+ * <p>
+ * All realms are warmed up once Keycloak has finished migrating and importing at startup, a new realm once the
+ * transaction that created it has committed, and a realm again after a client, client scope or protocol mapper of it
+ * has been created or updated, if the {@link CacheInvalidationEventListenerFactory} event listener is enabled for it.
+ * Every realm is warmed up in a transaction of its own on one of at most {@value #THREADS_OPTION} background threads,
+ * by default {@value #DEFAULT_THREADS}, 0 to disable the warm-up. A realm that is already waiting is not queued again.
+ * <p>
+ * The compiled configurations go into the same bounded caches as those compiled for tokens, so a realm with more
+ * mappers than those caches hold only keeps the mappers it was warmed up with last.
+ */
+final class MapperWarmUp {
+
+    private static final Logger LOG = Logger.getLogger(MapperWarmUp.class);
+
+    static final String THREADS_OPTION = "warmUpThreads";
+
+    static final int DEFAULT_THREADS = 2;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final Set<String> pendingRealms = ConcurrentHashMap.newKeySet();
+
+    private static volatile int threads = DEFAULT_THREADS;
+    private static volatile ThreadPoolExecutor executor;
+
+    private MapperWarmUp() {
+    }
+
+    static void configure(final Config.Scope config) {
+        final int configured = config.getInt(THREADS_OPTION, DEFAULT_THREADS);
+        if (configured < 0) {
+            throw new IllegalArgumentException(THREADS_OPTION + " must not be negative: " + configured);
+        }
+        threads = configured;
+    }
+
+    static void onProviderEvent(final KeycloakSessionFactory factory, final ProviderEvent event) {
+        if (event instanceof PostMigrationEvent) {
+            scheduleAll(factory);
+        } else if (event instanceof RealmModel.RealmPostCreateEvent) {
+            final var created = (RealmModel.RealmPostCreateEvent) event;
+            final var realmId = created.getCreatedRealm().getId();
+            created.getKeycloakSession().getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    schedule(factory, realmId);
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                }
+            });
+        }
+    }
+
+    static void onAdminEvent(final KeycloakSessionFactory factory, final AdminEvent event) {
+        if (event.getOperationType() != OperationType.CREATE && event.getOperationType() != OperationType.UPDATE) {
+            return;
+        }
+        if (event.getResourceType() == ResourceType.PROTOCOL_MAPPER
+                || event.getResourceType() == ResourceType.CLIENT
+                || event.getResourceType() == ResourceType.CLIENT_SCOPE) {
+            schedule(factory, event.getRealmId());
+        }
+    }
+
+    /**
+     * Warms up every realm, listing the realms in the background as well.
+     */
+    static void scheduleAll(final KeycloakSessionFactory factory) {
+        final var current = executor();
+        if (current == null) {
+            return;
+        }
+        current.execute(() -> {
+            final List<String> realmIds = new ArrayList<>();
+            KeycloakModelUtils.runJobInTransaction(factory, session -> {
+                for (RealmModel realm : session.realms().getRealms()) {
+                    realmIds.add(realm.getId());
+                }
+            });
+            realmIds.forEach(realmId -> schedule(factory, realmId));
+        });
+    }
+
+    static void schedule(final KeycloakSessionFactory factory, final String realmId) {
+        final var current = executor();
+        if (current == null || realmId == null || !pendingRealms.add(realmId)) {
+            return;
+        }
+        current.execute(() -> {
+            pendingRealms.remove(realmId);
+            try {
+                KeycloakModelUtils.runJobInTransaction(factory, session -> warmUp(session, realmId));
+            } catch (RuntimeException ex) {
+                LOG.warnf(ex, "Warming up the regex mappers of realm %s failed", realmId);
+            }
+        });
+    }
+
+    private static void warmUp(final KeycloakSession session, final String realmId) {
+        final var realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            return;
+        }
+        final long start = System.nanoTime();
+        int compiled = 0;
+        for (ClientModel client : realm.getClients()) {
+            compiled += warmUp(realm, client.getProtocolMappers());
+        }
+        for (ClientScopeModel clientScope : realm.getClientScopes()) {
+            compiled += warmUp(realm, clientScope.getProtocolMappers());
+        }
+        if (compiled > 0) {
+            LOG.infof("Compiled %d regex mappers of realm %s in %d ms", compiled, realm.getName(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * @return the number of regex mappers among the mappers that compiled.
+     */
+    static int warmUp(final RealmModel realm, final Iterable<ProtocolMapperModel> mappers) {
+        int compiled = 0;
+        for (ProtocolMapperModel mapper : mappers) {
+            try {
+                if (RegexMapper.PROVIDER_ID.equals(mapper.getProtocolMapper())) {
+                    RegexMapper.plans.get(mapper);
+                    compiled++;
+                } else if (RegexReplaceMapper.PROVIDER_ID.equals(mapper.getProtocolMapper())) {
+                    RegexReplaceMapper.programs.get(mapper);
+                    compiled++;
+                }
+            } catch (RuntimeException ex) {
+                // The mapper fails the same way when it runs for a token, and reports it there.
+                LOG.warnf("Mapper '%s' of realm %s does not compile: %s", mapper.getName(), realm.getName(), ex.getMessage());
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * @return the executor, created on first use, or null if the warm-up is disabled.
+     */
+    private static ThreadPoolExecutor executor() {
+        if (threads == 0) {
+            return null;
+        }
+        var current = executor;
+        if (current == null) {
+            synchronized (MapperWarmUp.class) {
+                current = executor;
+                if (current == null) {
+                    current = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), MapperWarmUp::newThread);
+                    // The warm-up runs after startup and changes; the threads need not wait for the next one.
+                    current.allowCoreThreadTimeOut(true);
+                    executor = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static Thread newThread(final Runnable task) {
+        final var thread = new Thread(task, "regex-mapper-warm-up-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,254 @@
+package org.sral.keycloak.mappers;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time budget for the regular expression work of one mapper invocation, together with the circuit breaker of the
+ * mapper.
+ * <p>
+ * The budget is enforced by handing the regex engines a {@link Deadline#guard(CharSequence) guarded} input that
+ * throws {@link ExceededException} once the deadline has passed, so that even a catastrophically backtracking
+ * pattern gives up. After {@link #breakerThreshold} consecutive overruns the breaker opens and the mapper is skipped
+ * for {@link #breakerOpenNanos}. After that a single invocation is let through as a probe and either closes the
+ * breaker or reopens it; all others keep skipping the mapper while it runs, and if it never reports back, the next
+ * probe is let through one open time later.
+ * <p>
+ * An instance belongs to one compiled mapper configuration, so changing the configuration also resets the breaker.
+ */
+final class MatchBudget {
+
+    private static final Logger LOG = Logger.getLogger(MatchBudget.class);
+
+    static final String BUDGET_PROPERTY = "match.budget.ms";
+    static final String BREAKER_THRESHOLD_PROPERTY = "breaker.threshold";
+    static final String BREAKER_OPEN_PROPERTY = "breaker.open.seconds";
+
+    static final int DEFAULT_BREAKER_THRESHOLD = 3;
+    static final int DEFAULT_BREAKER_OPEN_SECONDS = 60;
+
+    static final MatchBudget UNLIMITED = new MatchBudget(0, Integer.MAX_VALUE, 0);
+
+    private final long budgetNanos;
+    private final int breakerThreshold;
+    private final long breakerOpenNanos;
+
+    private final AtomicInteger consecutiveOverruns = new AtomicInteger();
+    private final AtomicLong openUntil = new AtomicLong();
+    private volatile boolean open;
+
+    MatchBudget(final long budgetNanos, final int breakerThreshold, final long breakerOpenNanos) {
+        this.budgetNanos = budgetNanos;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerOpenNanos = breakerOpenNanos;
+    }
+
+    /**
+     * Adds the budget and circuit breaker settings to the configuration properties of a mapper.
+     */
+    static void addConfigProperties(final List<ProviderConfigProperty> configProperties) {
+        configProperties.addAll(
+                ProviderConfigurationBuilder.create()
+                .property()
+                .name(BUDGET_PROPERTY)
+                .label("Match time budget (ms)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Maximum time the regular expressions of this mapper may take per token. 0 for no limit")
+                .defaultValue("0")
+                .add()
+
+                .property()
+                .name(BREAKER_THRESHOLD_PROPERTY)
+                .label("Circuit breaker threshold")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Number of consecutive tokens exceeding the match time budget after which the mapper is skipped")
+                .defaultValue(String.valueOf(DEFAULT_BREAKER_THRESHOLD))
+                .add()
+
+                .property()
+                .name(BREAKER_OPEN_PROPERTY)
+                .label("Circuit breaker open time (s)")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("How long the mapper is skipped once the circuit breaker threshold is reached")
+                .defaultValue(String.valueOf(DEFAULT_BREAKER_OPEN_SECONDS))
+                .add()
+
+                .build());
+    }
+
+    /**
+     * @throws IllegalArgumentException if one of the settings is not a non-negative number.
+     */
+    static MatchBudget fromConfig(final Map<String, String> config) {
+        final long budgetMillis = parse(config, BUDGET_PROPERTY, 0);
+        if (budgetMillis == 0) {
+            return UNLIMITED;
+        }
+        final long threshold = parse(config, BREAKER_THRESHOLD_PROPERTY, DEFAULT_BREAKER_THRESHOLD);
+        final long openSeconds = parse(config, BREAKER_OPEN_PROPERTY, DEFAULT_BREAKER_OPEN_SECONDS);
+        return new MatchBudget(
+                TimeUnit.MILLISECONDS.toNanos(budgetMillis),
+                threshold == 0 ? Integer.MAX_VALUE : (int) Math.min(threshold, Integer.MAX_VALUE),
+                TimeUnit.SECONDS.toNanos(openSeconds));
+    }
+
+    private static long parse(final Map<String, String> config, final String key, final long defaultValue) {
+        final var value = config.get(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        final long parsed;
+        try {
+            parsed = Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + " is not a number: " + value, ex);
+        }
+        if (parsed < 0) {
+            throw new IllegalArgumentException(key + " must not be negative: " + value);
+        }
+        return parsed;
+    }
+
+    boolean isLimited() {
+        return budgetNanos > 0;
+    }
+
+    /**
+     * @return true if the mapper should be skipped because the breaker is open.
+     */
+    boolean isOpen() {
+        if (!open) {
+            return false;
+        }
+        final long until = openUntil.get();
+        final long now = System.nanoTime();
+        if (now - until < 0) {
+            return true;
+        }
+        // Half open: the one invocation that moves the open time on is the probe, its outcome decides.
+        return !openUntil.compareAndSet(until, now + breakerOpenNanos);
+    }
+
+    Deadline start() {
+        return isLimited() ? new Deadline(System.nanoTime() + budgetNanos) : Deadline.NONE;
+    }
+
+    void recordSuccess() {
+        if (isLimited() && consecutiveOverruns.get() != 0) {
+            consecutiveOverruns.set(0);
+            open = false;
+        }
+    }
+
+    void recordOverrun(final ProtocolMapperModel mapperModel) {
+        final int overruns = consecutiveOverruns.incrementAndGet();
+        if (overruns >= breakerThreshold) {
+            openUntil.set(System.nanoTime() + breakerOpenNanos);
+            open = true;
+            LOG.warnf("Mapper '%s' (%s) exceeded its match budget of %d ms %d times in a row, skipping it for %d s",
+                    mapperModel.getName(), mapperModel.getId(), TimeUnit.NANOSECONDS.toMillis(budgetNanos),
+                    overruns, TimeUnit.NANOSECONDS.toSeconds(breakerOpenNanos));
+        } else {
+            LOG.warnf("Mapper '%s' (%s) exceeded its match budget of %d ms",
+                    mapperModel.getName(), mapperModel.getId(), TimeUnit.NANOSECONDS.toMillis(budgetNanos));
+        }
+    }
+
+    static void logSkipped(final ProtocolMapperModel mapperModel) {
+        LOG.debugf("Skipping mapper '%s' (%s), its circuit breaker is open", mapperModel.getName(), mapperModel.getId());
+    }
+
+    /**
+     * The point in time one mapper invocation has to be done by. Like the matchers, a deadline is confined to the
+     * thread evaluating the mapper.
+     */
+    static final class Deadline {
+
+        static final Deadline NONE = new Deadline(0);
+
+        /**
+         * Reading the clock is much more expensive than reading a char, so the clock is only checked every few reads,
+         * counted over all inputs of the invocation.
+         */
+        private static final int CHECK_INTERVAL = 1024;
+
+        private final long deadline;
+        private int countdown = CHECK_INTERVAL;
+
+        private Deadline(final long deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return a deadline at the same point in time, for use by another thread.
+         */
+        Deadline fork() {
+            return this == NONE ? NONE : new Deadline(deadline);
+        }
+
+        /**
+         * @return the input, wrapped so that reading it fails once the deadline has passed.
+         */
+        CharSequence guard(final CharSequence input) {
+            return this == NONE ? input : new GuardedCharSequence(input, this);
+        }
+
+        private void tick() {
+            if (--countdown == 0) {
+                countdown = CHECK_INTERVAL;
+                if (System.nanoTime() - deadline > 0) {
+                    throw new ExceededException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Thrown from a guarded input once the deadline has passed.
+     */
+    static final class ExceededException extends RuntimeException {
+        ExceededException() {
+            super("Match budget exceeded", null, false, false);
+        }
+    }
+
+    private static final class GuardedCharSequence implements CharSequence {
+
+        private final CharSequence input;
+        private final Deadline deadline;
+
+        private GuardedCharSequence(final CharSequence input, final Deadline deadline) {
+            this.input = input;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            deadline.tick();
+            return input.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return input.length();
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return input.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return input.toString();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * What a {@link RegexMapper} matches its pattern against. Each target reads only its own part of the user: the
+ * group memberships, the realm role mappings, the client role mappings or one attribute.
+ */
+enum MatchTarget {
+
+    /**
+     * Group names, or full paths with {@link RegexMapperPlan#isFullPath()}, of the groups below the
+     * {@link RegexMapperPlan#getRootGroup() root group} if there is one.
+     */
+    GROUPS("Groups") {
+        @Override
+        void addInputs(final RegexMapperPlan plan, final RealmModel realm, final UserModel user, final Collection<String> inputs) {
+            final var groupPaths = GroupPathCache.getInstance();
+            final var subtree = plan.getRootGroup() == null ? null : GroupSubtreeCache.getInstance().get(realm, plan.getRootGroup());
+            for (var group : user.getGroups()) {
+                if (subtree != null && !subtree.contains(group)) {
+                    continue;
+                }
+                inputs.add(plan.isFullPath() ? groupPaths.getPath(realm, group) : group.getName());
+            }
+        }
+    },
+
+    /**
+     * Names of the realm roles mapped to the user, and with {@link RegexMapperPlan#isExpandComposites()} of the
+     * realm roles they are composed of.
+     */
+    REALM_ROLES("Realm roles") {
+        @Override
+        void addInputs(final RegexMapperPlan plan, final RealmModel realm, final UserModel user, final Collection<String> inputs) {
+            final Set<RoleModel> mappings = user.getRealmRoleMappings();
+            if (!plan.isExpandComposites()) {
+                for (RoleModel role : mappings) {
+                    inputs.add(role.getName());
+                }
+                return;
+            }
+            final var expansions = RoleExpansionCache.getInstance();
+            for (RoleModel role : mappings) {
+                for (RoleExpansionCache.Role expanded : expansions.expand(realm, role)) {
+                    if (!expanded.isClientRole()) {
+                        inputs.add(expanded.name);
+                    }
+                }
+            }
+        }
+    },
+
+    /**
+     * Names of the client roles mapped to the user, optionally of {@link RegexMapperPlan#getTargetClient() one
+     * client} only. With {@link RegexMapperPlan#isFullPath()} each name is prefixed with its client id, as in
+     * {@code account/manage-account}.
+     */
+    CLIENT_ROLES("Client roles") {
+        @Override
+        void addInputs(final RegexMapperPlan plan, final RealmModel realm, final UserModel user, final Collection<String> inputs) {
+            ClientModel client = null;
+            if (plan.getTargetClient() != null) {
+                client = realm == null ? null : realm.getClientByClientId(plan.getTargetClient());
+                if (client == null) {
+                    return;
+                }
+            }
+
+            if (!plan.isExpandComposites()) {
+                // Without expansion the mappings of a single client can be read on their own.
+                final Set<RoleModel> mappings = client != null ? user.getClientRoleMappings(client) : user.getRoleMappings();
+                for (RoleModel role : mappings) {
+                    if (role.isClientRole()) {
+                        inputs.add(plan.isFullPath() ? RoleExpansionCache.Role.of(role).clientId + "/" + role.getName() : role.getName());
+                    }
+                }
+                return;
+            }
+
+            // Realm roles can be composed of client roles, so expansion has to start from all mappings.
+            final var clientInternalId = client == null ? null : client.getId();
+            final var expansions = RoleExpansionCache.getInstance();
+            for (RoleModel role : user.getRoleMappings()) {
+                for (RoleExpansionCache.Role expanded : expansions.expand(realm, role)) {
+                    if (expanded.isClientRole() && (clientInternalId == null || clientInternalId.equals(expanded.clientInternalId))) {
+                        inputs.add(plan.isFullPath() ? expanded.clientId + "/" + expanded.name : expanded.name);
+                    }
+                }
+            }
+        }
+    },
+
+    /**
+     * Values of the user attribute named by {@link RegexMapperPlan#getTargetAttribute()}.
+     */
+    USER_ATTRIBUTE("User attribute") {
+        @Override
+        void addInputs(final RegexMapperPlan plan, final RealmModel realm, final UserModel user, final Collection<String> inputs) {
+            final var values = user.getAttribute(plan.getTargetAttribute());
+            if (values == null) {
+                return;
+            }
+            for (String value : values) {
+                if (value != null) {
+                    inputs.add(value);
+                }
+            }
+        }
+    };
+
+    private final String configValue;
+
+    MatchTarget(final String configValue) {
+        this.configValue = configValue;
+    }
+
+    String getConfigValue() {
+        return configValue;
+    }
+
+    /**
+     * Adds every name or value of this target the pattern has to be matched against.
+     */
+    abstract void addInputs(RegexMapperPlan plan, RealmModel realm, UserModel user, Collection<String> inputs);
+
+    static MatchTarget fromConfig(final String configValue) {
+        if (configValue == null || configValue.isEmpty()) {
+            return GROUPS;
+        }
+        for (MatchTarget target : values()) {
+            if (target.configValue.equals(configValue)) {
+                return target;
+            }
+        }
+        throw new IllegalArgumentException("Unknown match target: " + configValue);
+    }
+}
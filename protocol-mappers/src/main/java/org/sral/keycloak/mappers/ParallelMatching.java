@@ -0,0 +1,208 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.Config;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Matches the inputs of users with very many of them on a small, dedicated fork-join pool.
+ * <p>
+ * Only the pattern matching is split up: the names and paths are read from the model on the request thread before, so
+ * the workers never touch the session. Every chunk writes the {@link RegexMapperPlan.Match matches} of its own slice
+ * of the inputs, and the values are added in input order afterwards, so they come out in exactly the order
+ * sequential matching produces.
+ * <p>
+ * Users below the {@link #THRESHOLD_PROPERTY threshold} of the mapper stay on the request thread, as does everyone
+ * while the pool already has as many waiting requests as it has workers; the pool helps outliers, it does not queue
+ * them behind each other. The pool has {@value #PARALLELISM_OPTION} workers, by default
+ * {@link #DEFAULT_PARALLELISM}, and is created on first use.
+ */
+final class ParallelMatching {
+
+    static final String THRESHOLD_PROPERTY = "parallel.threshold";
+    static final String PARALLELISM_OPTION = "parallelism";
+
+    static final int DEFAULT_PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Chunks below this are not worth handing to another thread.
+     */
+    private static final int MIN_CHUNK_SIZE = 512;
+
+    private static volatile int parallelism = DEFAULT_PARALLELISM;
+    private static volatile ForkJoinPool pool;
+
+    private ParallelMatching() {
+    }
+
+    /**
+     * Adds the threshold setting to the configuration properties of a mapper.
+     */
+    static void addConfigProperties(final List<ProviderConfigProperty> configProperties) {
+        configProperties.addAll(
+                ProviderConfigurationBuilder.create()
+                .property()
+                .name(THRESHOLD_PROPERTY)
+                .label("Parallel matching threshold")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Users with at least this many groups, roles or attribute values are matched on several threads. 0 to always match on the request thread")
+                .defaultValue("0")
+                .add()
+                .build());
+    }
+
+    static void configure(final Config.Scope config) {
+        final int configured = config.getInt(PARALLELISM_OPTION, DEFAULT_PARALLELISM);
+        if (configured < 1) {
+            throw new IllegalArgumentException(PARALLELISM_OPTION + " must be positive: " + configured);
+        }
+        parallelism = configured;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the threshold is not a non-negative number.
+     */
+    static int thresholdFromConfig(final Map<String, String> config) {
+        final var value = config.get(THRESHOLD_PROPERTY);
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        final int threshold;
+        try {
+            threshold = Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(THRESHOLD_PROPERTY + " is not a number: " + value, ex);
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException(THRESHOLD_PROPERTY + " must not be negative: " + value);
+        }
+        return threshold;
+    }
+
+    /**
+     * @return true if that many inputs should be matched on the pool.
+     */
+    static boolean shouldSplit(final int threshold, final int inputs) {
+        if (threshold <= 0 || inputs < threshold || inputs < 2 * MIN_CHUNK_SIZE || parallelism < 2) {
+            return false;
+        }
+        final var current = pool;
+        return current == null || current.getQueuedSubmissionCount() < parallelism;
+    }
+
+    /**
+     * Matches the first {@code count} inputs against the plan on the pool and adds the values in input order.
+     *
+     * @return the number of inputs that matched.
+     * @throws MatchBudget.ExceededException if the deadline passes in one of the chunks.
+     */
+    static int collect(final RegexMapperPlan plan,
+                       final String[] inputs,
+                       final int count,
+                       final MatchBudget.Deadline deadline,
+                       final Collection<String> values) {
+        final var matches = match(plan, inputs, count, deadline);
+        int matched = 0;
+        for (int i = 0; i < count; i++) {
+            if (matches[i].addTo(values)) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Matches the first {@code count} inputs against the plan on the pool.
+     *
+     * @return the match of every input, at the index of the input.
+     * @throws MatchBudget.ExceededException if the deadline passes in one of the chunks.
+     */
+    static RegexMapperPlan.Match[] match(final RegexMapperPlan plan,
+                                         final String[] inputs,
+                                         final int count,
+                                         final MatchBudget.Deadline deadline) {
+        final int chunks = parallelism * 4;
+        final int chunkSize = Math.max(MIN_CHUNK_SIZE, (count + chunks - 1) / chunks);
+        final var matches = new RegexMapperPlan.Match[count];
+        pool().invoke(new ChunkTask(plan, inputs, matches, 0, count, chunkSize, deadline));
+        return matches;
+    }
+
+    static int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return the pool, created on first use.
+     */
+    static ForkJoinPool pool() {
+        var current = pool;
+        if (current == null) {
+            synchronized (ParallelMatching.class) {
+                current = pool;
+                if (current == null) {
+                    current = new ForkJoinPool(parallelism, ParallelMatching::newWorker, null, false);
+                    pool = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static ForkJoinWorkerThread newWorker(final ForkJoinPool pool) {
+        final var worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        worker.setName("regex-mapper-worker-" + worker.getPoolIndex());
+        return worker;
+    }
+
+    /**
+     * Matches a range of the inputs, each chunk writing only its own slice of the matches.
+     */
+    private static final class ChunkTask extends RecursiveAction {
+        private final RegexMapperPlan plan;
+        private final String[] inputs;
+        private final RegexMapperPlan.Match[] matches;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+        private final MatchBudget.Deadline deadline;
+
+        private ChunkTask(final RegexMapperPlan plan,
+                          final String[] inputs,
+                          final RegexMapperPlan.Match[] matches,
+                          final int from,
+                          final int to,
+                          final int chunkSize,
+                          final MatchBudget.Deadline deadline) {
+            this.plan = plan;
+            this.inputs = inputs;
+            this.matches = matches;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+            this.deadline = deadline;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                // Deadlines count their reads, so every chunk gets its own.
+                final var chunkDeadline = deadline.fork();
+                for (int i = from; i < to; i++) {
+                    matches[i] = plan.match(inputs[i], chunkDeadline);
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new ChunkTask(plan, inputs, matches, from, middle, chunkSize, deadline),
+                    new ChunkTask(plan, inputs, matches, middle, to, chunkSize, deadline));
+        }
+    }
+}
@@ -0,0 +1,573 @@
+package org.sral.keycloak.mappers;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.ProtocolMapperConfigException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Admin time estimate of what a pattern costs to match, so that patterns prone to catastrophic backtracking are
+ * caught when a mapper is saved rather than when they first meet a long group name.
+ * <p>
+ * Two things are looked at. A structural scan flags the classic shapes: a quantifier inside a quantified group, like
+ * {@code (a+)+}, and a quantified alternation whose alternatives can start with the same char, like
+ * {@code (\w|\d)+}. Those are only logged, because plenty of such patterns are harmless in practice. Then the pattern
+ * is run against a corpus generated from its own literals and classes: runs of each char, with and without the
+ * literal prefix and followed by chars that make the match fail late. The regex engine reads the input through a
+ * counting wrapper, so the cost is measured in chars read rather than in time and does not depend on the machine.
+ * If an input needs more than {@link #maxStepsPerChar} reads per input char, the pattern is rejected or a warning is
+ * logged, depending on {@link #action}.
+ * <p>
+ * Only {@link RegexEngine#JDK} patterns are analyzed; {@link RegexEngine#LINEAR} is linear by construction.
+ * The settings come from the {@link Config.Scope} of each mapper provider, e.g.
+ * {@code -Dkeycloak.protocol-mapper.oidc-regex-mapper.patternCostAction=warn}.
+ */
+final class PatternCost {
+
+    private static final Logger LOG = Logger.getLogger(PatternCost.class);
+
+    static final String ACTION_OPTION = "patternCostAction";
+    static final String MAX_STEPS_OPTION = "patternCostMaxStepsPerChar";
+
+    /**
+     * With {@link #INPUT_LENGTH} chars this lets costs up to cubic in the input length pass, as for the common
+     * {@code (.*)-(.*)-(.*)}, and catches anything worse.
+     */
+    static final int DEFAULT_MAX_STEPS_PER_CHAR = 10_000;
+
+    /**
+     * Length of the generated inputs: long enough for exponential and high polynomial costs to show, well within
+     * what group names and claim values get to.
+     */
+    static final int INPUT_LENGTH = 64;
+
+    private static final String[] FAILING_SUFFIXES = {"", "!", "\n"};
+
+    private static final String REPRESENTATIVE_CHARS = "aZ0_-./ @";
+
+    private static final int MAX_ALPHABET = 24;
+
+    private static final LinearRegex.CharClass ANY = new LinearRegex.CharClass.Builder().add(0, Character.MAX_VALUE).build();
+
+    private static final LinearRegex.CharClass NONE = new LinearRegex.CharClass.Builder().build();
+
+    static final PatternCost DEFAULT = new PatternCost(Action.REJECT, DEFAULT_MAX_STEPS_PER_CHAR);
+
+    enum Action {
+        REJECT, WARN, OFF
+    }
+
+    private final Action action;
+    private final int maxStepsPerChar;
+
+    PatternCost(final Action action, final int maxStepsPerChar) {
+        this.action = action;
+        this.maxStepsPerChar = maxStepsPerChar;
+    }
+
+    /**
+     * @throws IllegalArgumentException if one of the options is invalid.
+     */
+    static PatternCost fromConfig(final Config.Scope config) {
+        final String action = config.get(ACTION_OPTION, Action.REJECT.name());
+        final Action parsed;
+        try {
+            parsed = Action.valueOf(action.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(ACTION_OPTION + " must be one of reject, warn or off: " + action, ex);
+        }
+        final int maxStepsPerChar = config.getInt(MAX_STEPS_OPTION, DEFAULT_MAX_STEPS_PER_CHAR);
+        if (maxStepsPerChar <= 0) {
+            throw new IllegalArgumentException(MAX_STEPS_OPTION + " must be positive: " + maxStepsPerChar);
+        }
+        return new PatternCost(parsed, maxStepsPerChar);
+    }
+
+    /**
+     * Analyzes a pattern of the mapper and rejects it or logs a warning if it is too expensive.
+     *
+     * @param wholeInput true if the mapper matches whole inputs, false if it searches them.
+     */
+    void check(final ProtocolMapperModel mapperModel,
+               final RegexEngine engine,
+               final CompiledRegex regex,
+               final boolean wholeInput) throws ProtocolMapperConfigException {
+        if (action == Action.OFF || engine != RegexEngine.JDK) {
+            return;
+        }
+        final Report report = analyze(regex, wholeInput);
+        for (String hazard : report.hazards) {
+            LOG.warnf("Mapper '%s': pattern '%s' has %s, which may backtrack catastrophically",
+                    mapperModel.getName(), regex.pattern(), hazard);
+        }
+        if (report.worstInput == null) {
+            return;
+        }
+        final String message = String.format("Pattern '%s' needs more than %d steps for the %d chars of '%s'",
+                regex.pattern(), report.worstSteps, report.worstInput.length(), printable(report.worstInput));
+        if (action == Action.REJECT) {
+            throw new ProtocolMapperConfigException("Regular expression pattern is too expensive to match", "{0}", message);
+        }
+        LOG.warnf("Mapper '%s': %s", mapperModel.getName(), message);
+    }
+
+    Report analyze(final CompiledRegex regex, final boolean wholeInput) {
+        final Scanner scanner = new Scanner(regex.pattern());
+        scanner.scan();
+
+        final Report report = new Report(scanner.hazards);
+        for (String input : corpus(regex.pattern(), scanner)) {
+            final long limit = (long) maxStepsPerChar * Math.max(input.length(), 1);
+            final StepCounter counter = new StepCounter(input, limit);
+            try {
+                final RegexMatcher matcher = regex.matcher(counter);
+                if (wholeInput) {
+                    matcher.matches();
+                } else {
+                    while (matcher.find()) {
+                        // Like a replacement, visit every match.
+                    }
+                }
+            } catch (StepLimitException | StackOverflowError ex) {
+                report.worstInput = input;
+                report.worstSteps = limit;
+                break;
+            }
+        }
+        return report;
+    }
+
+    private static List<String> corpus(final String pattern, final Scanner scanner) {
+        final List<String> units = new ArrayList<>();
+        for (char c : scanner.alphabet) {
+            units.add(String.valueOf(c));
+        }
+        units.addAll(scanner.literalRuns);
+
+        final String prefix = PatternShape.literalPrefix(pattern);
+        final Set<String> corpus = new LinkedHashSet<>();
+        for (String unit : units) {
+            final StringBuilder body = new StringBuilder(INPUT_LENGTH + unit.length());
+            while (body.length() < INPUT_LENGTH) {
+                body.append(unit);
+            }
+            for (String suffix : FAILING_SUFFIXES) {
+                corpus.add(body + suffix);
+                if (!prefix.isEmpty()) {
+                    corpus.add(prefix + body + suffix);
+                }
+            }
+        }
+        return new ArrayList<>(corpus);
+    }
+
+    private static String printable(final String input) {
+        return input.replace("\n", "\\n");
+    }
+
+    static final class Report {
+        final List<String> hazards;
+        String worstInput;
+        long worstSteps;
+
+        private Report(final List<String> hazards) {
+            this.hazards = hazards;
+        }
+
+        /**
+         * @return true if an input of the corpus exceeded the step limit.
+         */
+        boolean isExpensive() {
+            return worstInput != null;
+        }
+    }
+
+    /**
+     * The input as the regex engine sees it, failing once it has been read too often.
+     */
+    private static final class StepCounter implements CharSequence {
+
+        private final String input;
+        private long remaining;
+
+        private StepCounter(final String input, final long limit) {
+            this.input = input;
+            this.remaining = limit;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            if (--remaining < 0) {
+                throw new StepLimitException();
+            }
+            return input.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return input.length();
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return input.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return input;
+        }
+    }
+
+    private static final class StepLimitException extends RuntimeException {
+        StepLimitException() {
+            super("Step limit exceeded", null, false, false);
+        }
+    }
+
+    /**
+     * What a part of the pattern can start with and how deeply it nests unbounded quantifiers.
+     */
+    private static final class Term {
+        private LinearRegex.CharClass first = NONE;
+        private boolean nullable = true;
+        private int starHeight;
+        private List<Term> alternatives;
+    }
+
+    /**
+     * A structural pass over a pattern java.util.regex has already accepted, so it does not validate anything and
+     * treats what it does not understand as matching any char.
+     */
+    private static final class Scanner {
+        private final String pattern;
+        private final PatternShape.Lexer lexer;
+        private final List<String> hazards = new ArrayList<>();
+        private final Set<Character> alphabet = new LinkedHashSet<>();
+        private final List<String> literalRuns = new ArrayList<>();
+
+        private Scanner(final String pattern) {
+            this.pattern = pattern;
+            this.lexer = new PatternShape.Lexer(pattern);
+        }
+
+        private void scan() {
+            while (lexer.pos < pattern.length()) {
+                alternation();
+                // An unbalanced ')' cannot get past Pattern.compile, but do not loop on it either.
+                lexer.pos++;
+            }
+        }
+
+        private boolean peek(final char c) {
+            return lexer.peek(c);
+        }
+
+        private Term alternation() {
+            final List<Term> alternatives = new ArrayList<>();
+            alternatives.add(concatenation());
+            while (peek('|')) {
+                lexer.pos++;
+                alternatives.add(concatenation());
+            }
+            if (alternatives.size() == 1) {
+                return alternatives.get(0);
+            }
+            final Term term = new Term();
+            term.nullable = false;
+            for (Term alternative : alternatives) {
+                term.first = union(term.first, alternative.first);
+                term.nullable |= alternative.nullable;
+                term.starHeight = Math.max(term.starHeight, alternative.starHeight);
+            }
+            term.alternatives = alternatives;
+            return term;
+        }
+
+        private Term concatenation() {
+            final Term term = new Term();
+            final StringBuilder run = new StringBuilder();
+            while (lexer.pos < pattern.length() && !peek('|') && !peek(')')) {
+                final int start = lexer.pos;
+                final Term atom = atom(run);
+                if (quantifier(atom, start)) {
+                    flush(run);
+                }
+                if (term.nullable) {
+                    term.first = union(term.first, atom.first);
+                }
+                term.nullable &= atom.nullable;
+                term.starHeight = Math.max(term.starHeight, atom.starHeight);
+            }
+            flush(run);
+            return term;
+        }
+
+        private void flush(final StringBuilder run) {
+            if (run.length() > 1) {
+                literalRuns.add(run.toString());
+            }
+            run.setLength(0);
+        }
+
+        /**
+         * Reads an optional quantifier after an atom and updates the atom accordingly.
+         *
+         * @return true if there was one.
+         */
+        private boolean quantifier(final Term atom, final int start) {
+            if (lexer.pos >= pattern.length()) {
+                return false;
+            }
+            final char c = pattern.charAt(lexer.pos);
+            int min;
+            boolean unbounded;
+            if (c == '*' || c == '+' || c == '?') {
+                lexer.pos++;
+                min = c == '+' ? 1 : 0;
+                unbounded = c != '?';
+            } else if (c == '{') {
+                final int end = pattern.indexOf('}', lexer.pos);
+                if (end < 0) {
+                    return false;
+                }
+                final String bounds = pattern.substring(lexer.pos + 1, end);
+                final int comma = bounds.indexOf(',');
+                try {
+                    min = Integer.parseInt(comma < 0 ? bounds : bounds.substring(0, comma));
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+                unbounded = comma >= 0 && comma == bounds.length() - 1;
+                lexer.pos = end + 1;
+            } else {
+                return false;
+            }
+            // Possessive quantifiers never backtrack into what they matched.
+            final boolean possessive = peek('+');
+            if (possessive || peek('?')) {
+                lexer.pos++;
+            }
+
+            if (unbounded && !possessive) {
+                final String quantified = pattern.substring(start, lexer.pos);
+                if (atom.starHeight > 0) {
+                    hazards.add("a nested quantifier in '" + quantified + "'");
+                } else if (overlaps(atom.alternatives)) {
+                    hazards.add("overlapping alternatives in '" + quantified + "'");
+                }
+                atom.starHeight++;
+            }
+            if (min == 0) {
+                atom.nullable = true;
+            }
+            return true;
+        }
+
+        private Term atom(final StringBuilder run) {
+            final Term term = new Term();
+            final char c = pattern.charAt(lexer.pos);
+            if (c == '(') {
+                return group(run);
+            }
+            if (c == '^' || c == '$') {
+                lexer.pos++;
+                return term;
+            }
+            if (c == '\\' && lexer.pos + 1 < pattern.length()) {
+                final Term escape = escape(run);
+                if (escape != null) {
+                    return escape;
+                }
+            }
+
+            final int literal = lexer.literal();
+            if (literal >= 0) {
+                run.append((char) literal);
+                term.first = LinearRegex.CharClass.of((char) literal);
+                term.nullable = false;
+                alphabet.add((char) literal);
+                return term;
+            }
+            flush(run);
+            final int start = lexer.pos;
+            lexer.valid = true;
+            LinearRegex.CharClass charClass = lexer.atom();
+            if (charClass == null || !lexer.valid) {
+                // Nested classes, intersections and the like: skip them and assume the worst.
+                lexer.pos = c == '[' ? endOfBracketClass(start) : Math.min(pattern.length(), start + (c == '\\' ? 2 : 1));
+                charClass = ANY;
+            }
+            addRepresentatives(charClass);
+            term.first = charClass;
+            term.nullable = false;
+            return term;
+        }
+
+        /**
+         * @return the escape as an atom, or null if it is a literal or shorthand left to the {@link PatternShape.Lexer}.
+         */
+        private Term escape(final StringBuilder run) {
+            final char escaped = pattern.charAt(lexer.pos + 1);
+            final Term term = new Term();
+            switch (escaped) {
+                case 'b':
+                case 'B':
+                case 'A':
+                case 'G':
+                case 'z':
+                case 'Z':
+                    lexer.pos += 2;
+                    return term;
+                case 'Q': {
+                    final int end = pattern.indexOf("\\E", lexer.pos + 2);
+                    final String quoted = pattern.substring(lexer.pos + 2, end < 0 ? pattern.length() : end);
+                    lexer.pos = end < 0 ? pattern.length() : end + 2;
+                    if (quoted.isEmpty()) {
+                        return term;
+                    }
+                    run.append(quoted);
+                    for (int i = 0; i < quoted.length(); i++) {
+                        alphabet.add(quoted.charAt(i));
+                    }
+                    term.first = LinearRegex.CharClass.of(quoted.charAt(0));
+                    term.nullable = false;
+                    return term;
+                }
+                case 'k':
+                    // A back reference may match anything its group did, including nothing.
+                    lexer.pos = pattern.indexOf('>', lexer.pos) + 1;
+                    term.first = ANY;
+                    return term;
+                case 'p':
+                case 'P':
+                case 'x':
+                case 'u':
+                case 'c':
+                case 'N':
+                case 'X':
+                case 'R':
+                case 'h':
+                case 'H':
+                case 'v':
+                case 'V':
+                    lexer.pos += 2;
+                    if (peek('{')) {
+                        lexer.pos = pattern.indexOf('}', lexer.pos) + 1;
+                    } else if (escaped == 'x' || escaped == 'u' || escaped == 'c') {
+                        lexer.pos = Math.min(pattern.length(), lexer.pos + (escaped == 'x' ? 2 : escaped == 'u' ? 4 : 1));
+                    } else if (escaped == 'p' || escaped == 'P') {
+                        lexer.pos = Math.min(pattern.length(), lexer.pos + 1);
+                    }
+                    term.first = ANY;
+                    term.nullable = false;
+                    return term;
+                default:
+                    if (escaped >= '0' && escaped <= '9') {
+                        lexer.pos += 2;
+                        while (lexer.pos < pattern.length() && Character.isDigit(pattern.charAt(lexer.pos))) {
+                            lexer.pos++;
+                        }
+                        term.first = ANY;
+                        return term;
+                    }
+                    return null;
+            }
+        }
+
+        private Term group(final StringBuilder run) {
+            flush(run);
+            lexer.pos++;
+            boolean lookaround = false;
+            if (peek('?')) {
+                lexer.pos++;
+                if (peek(':') || peek('>') || peek('=') || peek('!')) {
+                    lookaround = peek('=') || peek('!');
+                    lexer.pos++;
+                } else if (peek('<')) {
+                    lexer.pos++;
+                    if (peek('=') || peek('!')) {
+                        lookaround = true;
+                        lexer.pos++;
+                    } else {
+                        lexer.pos = pattern.indexOf('>', lexer.pos) + 1;
+                    }
+                } else {
+                    // Inline flags, either on their own or scoping a group.
+                    while (lexer.pos < pattern.length() && !peek(')') && !peek(':')) {
+                        lexer.pos++;
+                    }
+                    if (peek(')')) {
+                        lexer.pos++;
+                        return new Term();
+                    }
+                    lexer.pos++;
+                }
+            }
+            final Term inner = alternation();
+            if (peek(')')) {
+                lexer.pos++;
+            }
+            if (lookaround) {
+                final Term term = new Term();
+                term.starHeight = inner.starHeight;
+                return term;
+            }
+            return inner;
+        }
+
+        private int endOfBracketClass(final int start) {
+            int depth = 0;
+            for (int i = start; i < pattern.length(); i++) {
+                final char c = pattern.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '[') {
+                    depth++;
+                } else if (c == ']' && i > start + 1 && --depth == 0) {
+                    return i + 1;
+                }
+            }
+            return pattern.length();
+        }
+
+        private void addRepresentatives(final LinearRegex.CharClass charClass) {
+            for (char c = '!'; c <= '~' && alphabet.size() < MAX_ALPHABET; c++) {
+                if (charClass.matches(c)) {
+                    alphabet.add(c);
+                    break;
+                }
+            }
+            for (int i = 0; i < REPRESENTATIVE_CHARS.length() && alphabet.size() < MAX_ALPHABET; i++) {
+                final char c = REPRESENTATIVE_CHARS.charAt(i);
+                if (charClass.matches(c)) {
+                    alphabet.add(c);
+                }
+            }
+        }
+
+        private static boolean overlaps(final List<Term> alternatives) {
+            if (alternatives == null) {
+                return false;
+            }
+            for (int i = 0; i < alternatives.size(); i++) {
+                for (int j = i + 1; j < alternatives.size(); j++) {
+                    if (alternatives.get(i).first.intersects(alternatives.get(j).first)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static LinearRegex.CharClass union(final LinearRegex.CharClass a, final LinearRegex.CharClass b) {
+            return new LinearRegex.CharClass.Builder().addAll(a).addAll(b).build();
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package org.sral.keycloak.mappers;
+
+/**
+ * A pattern simple enough to be matched without a regex engine.
+ * <p>
+ * Recognized are patterns made of a literal prefix, at most one run of a single character class or {@code .} (with
+ * {@code *} or {@code +}), and a literal suffix, where the middle part may be a capture group. That covers the
+ * common {@code /compartments/(.*)}, {@code ^team-([a-z0-9]+)$}, {@code (.*)-admins} and plain literal patterns.
+ * Since {@link RegexMapper} matches whole names, the prefix and suffix pin the capture to the chars between them,
+ * which only have to be checked against the class.
+ * <p>
+ * For all other patterns {@link #literalPrefix(String)} still yields the literal every match has to start with, so
+ * that names without it can be rejected up front.
+ */
+final class PatternShape {
+
+    private final String prefix;
+    private final String suffix;
+    private final String literal;
+    private final LinearRegex.CharClass middle;
+    private final int minMiddleLength;
+    private final boolean capturing;
+    private final String captureName;
+
+    /**
+     * @param literal the text between prefix and suffix if there is no {@code middle} class, so that a capture around
+     *                a literal can be pinned as well.
+     */
+    private PatternShape(final String prefix,
+                         final String suffix,
+                         final String literal,
+                         final LinearRegex.CharClass middle,
+                         final int minMiddleLength,
+                         final boolean capturing,
+                         final String captureName) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.literal = literal;
+        this.middle = middle;
+        this.minMiddleLength = minMiddleLength;
+        this.capturing = capturing;
+        this.captureName = captureName;
+    }
+
+    /**
+     * @return the shape of the pattern, or null if it is not one of the recognized shapes.
+     */
+    static PatternShape analyze(final String pattern) {
+        final Lexer lexer = new Lexer(pattern);
+        lexer.skipBeginAnchor();
+
+        final String prefix = lexer.literals(false);
+        var capturing = false;
+        String captureName = null;
+        if (lexer.peek('(')) {
+            capturing = true;
+            lexer.pos++;
+            if (lexer.peek('?')) {
+                captureName = lexer.groupName();
+                if (captureName == null) {
+                    return null;
+                }
+            }
+        }
+
+        LinearRegex.CharClass middle = null;
+        var minMiddleLength = 0;
+        var middleLiteral = "";
+        final var atom = lexer.atom();
+        if (atom != null) {
+            final int quantifier = lexer.pos < pattern.length() ? pattern.charAt(lexer.pos) : -1;
+            if (quantifier != '*' && quantifier != '+') {
+                return null;
+            }
+            lexer.pos++;
+            // Lazy and greedy runs capture the same chars when the whole name has to match; possessive ones do not.
+            if (lexer.peek('?')) {
+                lexer.pos++;
+            } else if (lexer.peek('+')) {
+                return null;
+            }
+            middle = atom;
+            minMiddleLength = quantifier == '+' ? 1 : 0;
+        } else if (capturing) {
+            middleLiteral = lexer.literals(false);
+        }
+
+        if (capturing) {
+            if (!lexer.peek(')')) {
+                return null;
+            }
+            lexer.pos++;
+        }
+
+        final String suffix = lexer.literals(false);
+        lexer.skipEndAnchor();
+        if (lexer.pos != pattern.length() || !lexer.valid) {
+            return null;
+        }
+        if (middle != null && !isSurrogateSafe(middle)) {
+            return null;
+        }
+        return new PatternShape(prefix, suffix, middleLiteral, middle, minMiddleLength, capturing, captureName);
+    }
+
+    /**
+     * @return the literal text every match of the pattern starts with, possibly empty.
+     */
+    static String literalPrefix(final String pattern) {
+        final Lexer lexer = new Lexer(pattern);
+        if (lexer.hasTopLevelAlternation()) {
+            return "";
+        }
+        lexer.skipBeginAnchor();
+        return lexer.literals(true);
+    }
+
+    /**
+     * java.util.regex matches classes against code points, this shape against chars. Both agree as long as a
+     * class contains either all or none of the surrogates.
+     */
+    private static boolean isSurrogateSafe(final LinearRegex.CharClass charClass) {
+        final boolean first = charClass.matches(Character.MIN_SURROGATE);
+        for (char c = Character.MIN_SURROGATE; c < Character.MAX_SURROGATE; c++) {
+            if (charClass.matches((char) (c + 1)) != first) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the configured match group can be served by this shape: group 0, or the capture group by
+     * number or name. Other groups are left to the regex engine, which reports them as it always has.
+     */
+    boolean supportsGroup(final int matchGroupNumber, final String matchGroupName) {
+        if (matchGroupNumber == 0) {
+            return true;
+        }
+        if (!capturing) {
+            return false;
+        }
+        return matchGroupNumber == 1 || (matchGroupNumber == -1 && captureName != null && captureName.equals(matchGroupName));
+    }
+
+    boolean isCapturing() {
+        return capturing;
+    }
+
+    boolean matches(final String input) {
+        final int middleEnd = input.length() - suffix.length();
+        if (middleEnd - prefix.length() < minMiddleLength || !input.startsWith(prefix) || !input.endsWith(suffix)) {
+            return false;
+        }
+        if (middle == null) {
+            return middleEnd - prefix.length() == literal.length() && input.startsWith(literal, prefix.length());
+        }
+        for (int i = prefix.length(); i < middleEnd; i++) {
+            if (!middle.matches(input.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the value of the match group of a {@link #matches(String) matching} input.
+     */
+    String group(final String input, final int matchGroupNumber) {
+        if (matchGroupNumber == 0) {
+            return input;
+        }
+        return input.substring(prefix.length(), input.length() - suffix.length());
+    }
+
+    /**
+     * Just enough of a regular expression tokenizer to read literals, one character class and capture groups. Every
+     * construct it does not know marks the pattern as not {@link #valid}. {@link PatternCost} borrows it for the
+     * atoms of arbitrary patterns.
+     */
+    static final class Lexer {
+        private final String pattern;
+        int pos;
+        boolean valid = true;
+
+        Lexer(final String pattern) {
+            this.pattern = pattern;
+        }
+
+        boolean peek(final char c) {
+            return pos < pattern.length() && pattern.charAt(pos) == c;
+        }
+
+        void skipBeginAnchor() {
+            if (peek('^')) {
+                pos++;
+            }
+        }
+
+        void skipEndAnchor() {
+            if (pos == pattern.length() - 1 && peek('$')) {
+                pos++;
+            }
+        }
+
+        /**
+         * Reads literal chars up to the next construct that is not a literal.
+         *
+         * @param quantifiable if true, a literal followed by a quantifier ends the run without being part of it;
+         *                     otherwise a quantified literal marks the pattern as invalid.
+         */
+        String literals(final boolean quantifiable) {
+            final StringBuilder literal = new StringBuilder();
+            while (pos < pattern.length()) {
+                final int start = pos;
+                final int c = literal();
+                if (c < 0) {
+                    pos = start;
+                    break;
+                }
+                if (isQuantifier()) {
+                    pos = start;
+                    if (!quantifiable) {
+                        valid = false;
+                    }
+                    break;
+                }
+                literal.append((char) c);
+            }
+            return literal.toString();
+        }
+
+        private boolean isQuantifier() {
+            return peek('*') || peek('+') || peek('?') || peek('{');
+        }
+
+        /**
+         * @return the next literal char, or -1 if the next construct is not a literal.
+         */
+        int literal() {
+            final char c = pattern.charAt(pos);
+            if (c == '\\') {
+                if (pos + 1 >= pattern.length()) {
+                    return -1;
+                }
+                final int escaped = escapedLiteral(pattern.charAt(pos + 1));
+                if (escaped >= 0) {
+                    pos += 2;
+                }
+                return escaped;
+            }
+            if ("^$.|?*+()[]{}".indexOf(c) >= 0 || Character.isSurrogate(c)) {
+                return -1;
+            }
+            pos++;
+            return c;
+        }
+
+        private static int escapedLiteral(final char c) {
+            switch (c) {
+                case 't':
+                    return '\t';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 'f':
+                    return '\f';
+                default:
+                    // Escaped letters and digits are classes, anchors, back references and the like.
+                    return c < 128 && !Character.isLetterOrDigit(c) ? c : -1;
+            }
+        }
+
+        /**
+         * @return the name of a {@code (?<name>} group with the position after it, or null for other groups.
+         */
+        String groupName() {
+            if (!pattern.startsWith("?<", pos)) {
+                return null;
+            }
+            final int end = pattern.indexOf('>', pos + 2);
+            if (end < 0 || end == pos + 2) {
+                return null;
+            }
+            final String name = pattern.substring(pos + 2, end);
+            for (int i = 0; i < name.length(); i++) {
+                final char c = name.charAt(i);
+                final boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+                if (!letter && (i == 0 || c < '0' || c > '9')) {
+                    return null;
+                }
+            }
+            pos = end + 1;
+            return name;
+        }
+
+        /**
+         * @return the class of a {@code .}, shorthand or bracket class at the position, or null if there is none.
+         */
+        LinearRegex.CharClass atom() {
+            if (pos >= pattern.length()) {
+                return null;
+            }
+            final char c = pattern.charAt(pos);
+            if (c == '.') {
+                pos++;
+                return LinearRegex.CharClass.DOT;
+            }
+            if (c == '\\' && pos + 1 < pattern.length()) {
+                final var shorthand = shorthand(pattern.charAt(pos + 1));
+                if (shorthand != null) {
+                    pos += 2;
+                }
+                return shorthand;
+            }
+            if (c == '[') {
+                final int start = pos;
+                final var bracket = bracketClass();
+                if (bracket == null) {
+                    pos = start;
+                    valid = false;
+                }
+                return bracket;
+            }
+            return null;
+        }
+
+        private static LinearRegex.CharClass shorthand(final char c) {
+            switch (c) {
+                case 'd':
+                    return LinearRegex.CharClass.DIGIT;
+                case 'D':
+                    return LinearRegex.CharClass.DIGIT.negate();
+                case 'w':
+                    return LinearRegex.CharClass.WORD;
+                case 'W':
+                    return LinearRegex.CharClass.WORD.negate();
+                case 's':
+                    return LinearRegex.CharClass.SPACE;
+                case 'S':
+                    return LinearRegex.CharClass.SPACE.negate();
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Reads a bracket class made of chars, ranges between two chars and shorthands; no nesting, intersection or
+         * other escapes.
+         */
+        private LinearRegex.CharClass bracketClass() {
+            pos++;
+            final boolean negated = peek('^');
+            if (negated) {
+                pos++;
+            }
+            final LinearRegex.CharClass.Builder builder = new LinearRegex.CharClass.Builder();
+            if (peek(']')) {
+                return null;
+            }
+            while (pos < pattern.length() && pattern.charAt(pos) != ']') {
+                final char c = pattern.charAt(pos);
+                if (c == '[' || pattern.startsWith("&&", pos)) {
+                    return null;
+                }
+                if (c == '\\') {
+                    if (pos + 1 >= pattern.length()) {
+                        return null;
+                    }
+                    final var shorthand = shorthand(pattern.charAt(pos + 1));
+                    if (shorthand != null) {
+                        builder.addAll(shorthand);
+                        pos += 2;
+                        if (peek('-') && pos + 1 < pattern.length() && pattern.charAt(pos + 1) != ']') {
+                            return null;
+                        }
+                        continue;
+                    }
+                }
+                final int low = classChar();
+                if (low < 0) {
+                    return null;
+                }
+                if (peek('-') && pos + 1 < pattern.length() && pattern.charAt(pos + 1) != ']') {
+                    pos++;
+                    final int high = classChar();
+                    if (high < low) {
+                        return null;
+                    }
+                    builder.add(low, high);
+                    if (peek('-') && pos + 1 < pattern.length() && pattern.charAt(pos + 1) != ']') {
+                        return null;
+                    }
+                } else {
+                    builder.add(low, low);
+                }
+            }
+            if (!peek(']')) {
+                return null;
+            }
+            pos++;
+            final var charClass = builder.build();
+            return negated ? charClass.negate() : charClass;
+        }
+
+        private int classChar() {
+            final char c = pattern.charAt(pos);
+            if (Character.isSurrogate(c)) {
+                return -1;
+            }
+            if (c != '\\') {
+                pos++;
+                return c;
+            }
+            if (pos + 1 >= pattern.length()) {
+                return -1;
+            }
+            final int escaped = escapedLiteral(pattern.charAt(pos + 1));
+            if (escaped >= 0) {
+                pos += 2;
+            }
+            return escaped;
+        }
+
+        boolean hasTopLevelAlternation() {
+            int depth = 0;
+            var inClass = false;
+            for (int i = 0; i < pattern.length(); i++) {
+                final char c = pattern.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (inClass) {
+                    if (c == ']') {
+                        inClass = false;
+                    }
+                } else if (c == '[') {
+                    inClass = true;
+                    if (i + 1 < pattern.length() && pattern.charAt(i + 1) == ']') {
+                        i++;
+                    }
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                } else if (c == '|' && depth == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
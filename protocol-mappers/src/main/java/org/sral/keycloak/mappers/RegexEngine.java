@@ -0,0 +1,56 @@
+package org.sral.keycloak.mappers;
+
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Regular expression engines an admin can choose from per mapper.
+ */
+enum RegexEngine {
+
+    /**
+     * {@link java.util.regex.Pattern}: full syntax, backtracking.
+     */
+    JDK("jdk") {
+        @Override
+        CompiledRegex compile(final String pattern) {
+            return JdkRegex.compile(pattern);
+        }
+    },
+
+    /**
+     * {@link LinearRegex}: guaranteed linear time in the input length, without back references or look-around.
+     */
+    LINEAR("linear") {
+        @Override
+        CompiledRegex compile(final String pattern) {
+            return LinearRegex.compile(pattern);
+        }
+    };
+
+    private final String configValue;
+
+    RegexEngine(final String configValue) {
+        this.configValue = configValue;
+    }
+
+    String getConfigValue() {
+        return configValue;
+    }
+
+    /**
+     * @throws PatternSyntaxException if the pattern is invalid or uses syntax the engine does not support
+     */
+    abstract CompiledRegex compile(String pattern);
+
+    static RegexEngine fromConfig(final String configValue) {
+        if (configValue == null || configValue.isEmpty()) {
+            return JDK;
+        }
+        for (RegexEngine engine : values()) {
+            if (engine.configValue.equals(configValue)) {
+                return engine;
+            }
+        }
+        throw new IllegalArgumentException("Unknown regular expression engine: " + configValue);
+    }
+}
@@ -1,7 +1,8 @@
 package org.sral.keycloak.mappers;
 
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
 import org.keycloak.models.*;
-import org.keycloak.models.utils.ModelToRepresentation;
 import org.keycloak.protocol.ProtocolMapperConfigException;
 import org.keycloak.protocol.oidc.mappers.AbstractOIDCProtocolMapper;
 import org.keycloak.protocol.oidc.mappers.OIDCAccessTokenMapper;
@@ -13,10 +14,10 @@ import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.representations.IDToken;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.Map;
 import static java.util.Arrays.asList;
 
 /*
@@ -24,16 +25,43 @@ import static java.util.Arrays.asList;
  */
 public class RegexMapper extends AbstractOIDCProtocolMapper implements OIDCAccessTokenMapper, OIDCIDTokenMapper, UserInfoTokenMapper {
 
+    private static final Logger LOG = Logger.getLogger(RegexMapper.class);
+
     private static final List<ProviderConfigProperty> configProperties = new ArrayList<>();
 
     public static final String PROVIDER_ID = "oidc-regex-mapper";
 
     public static final String MERGE_CLAIMS_PROPERTY = "merge.claims";
     public static final String TARGET_PROPERTY = "target";
+    public static final String TARGET_CLIENT_PROPERTY = "target.client";
+    public static final String TARGET_ATTRIBUTE_PROPERTY = "target.attribute";
+    public static final String EXPAND_COMPOSITES_PROPERTY = "expand.composites";
+    public static final String ROOT_GROUP_PROPERTY = "root.group";
     public static final String FULL_PATH_PROPERTY = "full.path";
     public static final String REGEX_PATTERN_PROPERTY = "regex.pattern";
+    public static final String REGEX_ENGINE_PROPERTY = "regex.engine";
     public static final String MATCH_GROUP_NUMBER_OR_NAME_PROPERTY = "match.group.number.or.name";
     public static final String MULTI_VALUE_PROPERTY = "multi.value";
+    public static final String COMPOSITE_EVALUATION_PROPERTY = "composite.evaluation";
+    public static final String SESSION_MEMO_PROPERTY = "session.memo";
+    public static final String PARALLEL_THRESHOLD_PROPERTY = ParallelMatching.THRESHOLD_PROPERTY;
+    public static final String MATCH_BUDGET_PROPERTY = MatchBudget.BUDGET_PROPERTY;
+    public static final String BREAKER_THRESHOLD_PROPERTY = MatchBudget.BREAKER_THRESHOLD_PROPERTY;
+    public static final String BREAKER_OPEN_PROPERTY = MatchBudget.BREAKER_OPEN_PROPERTY;
+    public static final String MAX_VALUES_PROPERTY = ValueLimit.MAX_VALUES_PROPERTY;
+    public static final String VALUE_ORDER_PROPERTY = ValueLimit.ORDER_PROPERTY;
+    public static final String PRIORITY_ATTRIBUTE_PROPERTY = ValueLimit.PRIORITY_ATTRIBUTE_PROPERTY;
+    public static final String FALLBACK_VALUE_PROPERTY = "fallback.value";
+    public static final String CLAIM_ENCODING_PROPERTY = ClaimEncoder.ENCODING_PROPERTY;
+    public static final String CLAIM_DICTIONARY_PROPERTY = ClaimEncoder.DICTIONARY_PROPERTY;
+    public static final String CLAIM_MAX_BYTES_PROPERTY = ClaimEncoder.MAX_BYTES_PROPERTY;
+    public static final String CLAIM_OVERFLOW_PROPERTY = ClaimEncoder.OVERFLOW_PROPERTY;
+
+    private static final int MAX_CACHED_PLANS = 1024;
+
+    static final CompiledConfigCache<RegexMapperPlan> plans = new CompiledConfigCache<>(MAX_CACHED_PLANS, RegexMapperPlan::compile);
+
+    private static volatile PatternCost patternCost = PatternCost.DEFAULT;
 
     static {
         OIDCAttributeMapperHelper.addTokenClaimNameConfig(configProperties);
@@ -44,16 +72,46 @@ public class RegexMapper extends AbstractOIDCProtocolMapper implements OIDCAcces
                 .name(TARGET_PROPERTY)
                 .label("Match Target")
                 .type(ProviderConfigProperty.LIST_TYPE)
-                .helpText("Only Groups supported at the moment.")
-                        .options(asList("Groups"))
-                .defaultValue("Groups")
+                .helpText("What the pattern is matched against: the user's groups, realm roles, client roles or the values of a user attribute")
+                .options(asList(MatchTarget.GROUPS.getConfigValue(), MatchTarget.REALM_ROLES.getConfigValue(),
+                        MatchTarget.CLIENT_ROLES.getConfigValue(), MatchTarget.USER_ATTRIBUTE.getConfigValue()))
+                .defaultValue(MatchTarget.GROUPS.getConfigValue())
+                .add()
+
+                .property()
+                .name(TARGET_CLIENT_PROPERTY)
+                .label("Client ID")
+                .type(ProviderConfigProperty.CLIENT_LIST_TYPE)
+                .helpText("Client roles only: match only the roles of this client. If empty, the roles of all clients are matched")
+                .add()
+
+                .property()
+                .name(TARGET_ATTRIBUTE_PROPERTY)
+                .label("User attribute")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("User attribute only: name of the attribute whose values are matched")
+                .add()
+
+                .property()
+                .name(EXPAND_COMPOSITES_PROPERTY)
+                .label("Include composite roles")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .helpText("Roles only: also match the roles the user's roles are composed of. Roles granted through groups are not included")
+                .defaultValue("false")
+                .add()
+
+                .property()
+                .name(ROOT_GROUP_PROPERTY)
+                .label("Root group")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Groups only: path of the group whose subtree is matched, i.e. /compartments. Memberships outside of it are ignored. If empty, all groups are matched")
                 .add()
 
                 .property()
                 .name(FULL_PATH_PROPERTY)
                 .label("Full path")
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
-                .helpText("Include full path to group i.e. /top/level1/level2, false will just specify the group name")
+                .helpText("Include full path to group i.e. /top/level1/level2, false will just specify the group name. For client roles, prefix the role name with the client id i.e. account/manage-account")
                 .defaultValue("true")
                 .add()
 
@@ -65,6 +123,15 @@ public class RegexMapper extends AbstractOIDCProtocolMapper implements OIDCAcces
                 .defaultValue("(.*)")
                 .add()
 
+                .property()
+                .name(REGEX_ENGINE_PROPERTY)
+                .label("Regex engine")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .helpText("jdk: java.util.regex with its full syntax. linear: matching time is guaranteed to be linear in the length of the group name, but back references, look-around and inline flags are not supported")
+                .options(asList(RegexEngine.JDK.getConfigValue(), RegexEngine.LINEAR.getConfigValue()))
+                .defaultValue(RegexEngine.JDK.getConfigValue())
+                .add()
+
                 .property()
                 .name(MATCH_GROUP_NUMBER_OR_NAME_PROPERTY)
                 .label("Match group number/name")
@@ -89,8 +156,40 @@ public class RegexMapper extends AbstractOIDCProtocolMapper implements OIDCAcces
                 .defaultValue("false")
                 .add()
 
+                .property()
+                .name(COMPOSITE_EVALUATION_PROPERTY)
+                .label("Evaluate together")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .helpText("If set, all regular expression mappers of the client with this option are evaluated in a single pass over the user's groups")
+                .defaultValue("false")
+                .add()
+
+                .property()
+                .name(SESSION_MEMO_PROPERTY)
+                .label("Remember in user session")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .helpText("If set, the claim values are stored in the user session and reused by token refreshes and userinfo requests for as long as the user's groups stay the same")
+                .defaultValue("false")
+                .add()
+
                 .build());
 
+        ValueLimit.addConfigProperties(configProperties);
+        ParallelMatching.addConfigProperties(configProperties);
+        MatchBudget.addConfigProperties(configProperties);
+
+        configProperties.addAll(
+                ProviderConfigurationBuilder.create()
+                .property()
+                .name(FALLBACK_VALUE_PROPERTY)
+                .label("Fallback value")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Claim value to emit when the mapper exceeds its match time budget or is skipped by the circuit breaker. If empty, the claim is left out")
+                .add()
+                .build());
+
+        ClaimEncoder.addConfigProperties(configProperties);
+
         // Add toggles for include in (ID Token, access token and User Info endpoint
         OIDCAttributeMapperHelper.addIncludeInTokensConfig(configProperties, RegexMapper.class);
     }
@@ -133,18 +232,80 @@ public class RegexMapper extends AbstractOIDCProtocolMapper implements OIDCAcces
         return "true".equals(mapperModel.getConfig().get(MULTI_VALUE_PROPERTY));
     }
 
+    public static boolean compositeEvaluation(ProtocolMapperModel mapperModel) {
+        return "true".equals(mapperModel.getConfig().get(COMPOSITE_EVALUATION_PROPERTY));
+    }
+
+    public static boolean sessionMemo(ProtocolMapperModel mapperModel) {
+        return "true".equals(mapperModel.getConfig().get(SESSION_MEMO_PROPERTY));
+    }
+
+    @Override
+    public void init(final Config.Scope config) {
+        patternCost = PatternCost.fromConfig(config);
+        ParallelMatching.configure(config);
+        MapperWarmUp.configure(config);
+    }
+
+    @Override
+    public void postInit(final KeycloakSessionFactory factory) {
+        factory.register(event -> MapperWarmUp.onProviderEvent(factory, event));
+    }
+
     @Override
     public void validateConfig(final KeycloakSession session,
                                final RealmModel realm,
                                final ProtocolMapperContainerModel client,
                                final ProtocolMapperModel mapperModel) throws ProtocolMapperConfigException {
+        try {
+            MatchBudget.fromConfig(mapperModel.getConfig());
+        } catch (IllegalArgumentException ex) {
+            throw new ProtocolMapperConfigException("Invalid match time budget", "{0}", ex);
+        }
+
+        final MatchTarget target;
+        try {
+            target = MatchTarget.fromConfig(mapperModel.getConfig().get(TARGET_PROPERTY));
+        } catch (IllegalArgumentException ex) {
+            throw new ProtocolMapperConfigException("Invalid match target", "{0}", ex);
+        }
+        if (target == MatchTarget.USER_ATTRIBUTE) {
+            var attribute = mapperModel.getConfig().get(TARGET_ATTRIBUTE_PROPERTY);
+            if (attribute == null || attribute.trim().isEmpty())
+                throw new ProtocolMapperConfigException("User attribute is not defined", "{0}");
+        }
+
+        final ValueLimit valueLimit;
+        try {
+            valueLimit = ValueLimit.fromConfig(mapperModel.getConfig());
+        } catch (IllegalArgumentException ex) {
+            throw new ProtocolMapperConfigException("Invalid value limit", "{0}", ex);
+        }
+        if (valueLimit.getOrder() == ValueLimit.Order.PRIORITY && target != MatchTarget.GROUPS)
+            throw new ProtocolMapperConfigException("Priority order is only supported for groups", "{0}");
+
+        try {
+            ParallelMatching.thresholdFromConfig(mapperModel.getConfig());
+        } catch (IllegalArgumentException ex) {
+            throw new ProtocolMapperConfigException("Invalid parallel matching threshold", "{0}", ex);
+        }
+
+        try {
+            ClaimEncoder.fromConfig(mapperModel.getConfig());
+        } catch (IllegalArgumentException ex) {
+            throw new ProtocolMapperConfigException("Invalid claim encoding", "{0}", ex);
+        }
+
+        final RegexMapperPlan plan;
         try {
             // Ensure that it is possible to construct the regex pattern without exception.
-            var pattern = constructPattern(mapperModel);
+            plan = RegexMapperPlan.compile(mapperModel);
 
         } catch (Exception ex) {
             throw new ProtocolMapperConfigException("Invalid regular expression pattern", "{0}", ex);
         }
+        patternCost.check(mapperModel, RegexEngine.fromConfig(mapperModel.getConfig().get(REGEX_ENGINE_PROPERTY)),
+                plan.getRegex(), true);
 
         if (multiValued(mapperModel) == false) {
             var matchGroupNumberOrName = mapperModel.getConfig().get(MATCH_GROUP_NUMBER_OR_NAME_PROPERTY);
@@ -153,99 +314,273 @@ public class RegexMapper extends AbstractOIDCProtocolMapper implements OIDCAcces
         }
     }
 
-    private Pattern constructPattern(ProtocolMapperModel mappingModel) {
-        var regexPattern = mappingModel.getConfig().get(REGEX_PATTERN_PROPERTY);
-        return Pattern.compile(regexPattern);
-    }
-
     protected void setClaim(final IDToken token,
                             final ProtocolMapperModel mapperModel,
                             final UserSessionModel userSession,
                             final KeycloakSession keycloakSession,
                             final ClientSessionContext clientSessionContext) {
 
-        var targetClaimName = mapperModel.getConfig().get(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME);
+        var stats = MapperMetrics.forMapper(mapperModel, userSession);
+        if (stats == null) {
+            mapClaim(token, mapperModel, userSession, clientSessionContext, null);
+            return;
+        }
+        var start = System.nanoTime();
+        try {
+            mapClaim(token, mapperModel, userSession, clientSessionContext, stats);
+        } finally {
+            stats.recordInvocation(System.nanoTime() - start);
+        }
+    }
 
-        var pattern = constructPattern(mapperModel);
+    private void mapClaim(final IDToken token,
+                          final ProtocolMapperModel mapperModel,
+                          final UserSessionModel userSession,
+                          final ClientSessionContext clientSessionContext,
+                          final MapperMetrics.Stats stats) {
 
-        List<String> values;
+        var plan = plans.get(mapperModel);
+        var targetClaimName = plan.getClaimName();
 
-//        if (multiValued(mapperModel)) {
-//            values = getFilteredGroupMembershipsAsValues(mapperModel, userSession, pattern);
-//        } else {
-            var matchGroupNumberOrName = mapperModel.getConfig().get(MATCH_GROUP_NUMBER_OR_NAME_PROPERTY);
-            var matchGroupNumber = -1;
-            var matchGroupName = "";
-            try {
-                matchGroupNumber = Integer.parseInt(matchGroupNumberOrName);
-            } catch (NumberFormatException ignored) {
-                matchGroupName = matchGroupNumberOrName;
-            }        
-            values = getFilteredGroupMembershipsAsValues(mapperModel, userSession, matchGroupNumber, matchGroupName, pattern);
-//        }
-
-        if (mergeClaimValues(mapperModel)) {
-            var existingClaim = token.getOtherClaims().get(targetClaimName);
-            if (existingClaim != null) {
-                if (existingClaim instanceof String) {
-                    values.add((String)existingClaim);
-                } else if (existingClaim instanceof List<?>) {
-                    values.addAll((List<String>)existingClaim);
-                } else {
-                    // wut - TODO
+        List<String> values = null;
+
+        // The access token, ID token and userinfo response of a request share one evaluation.
+        var requestMemo = RequestMemo.of(clientSessionContext);
+        if (requestMemo != null && requestMemo.hasValues(mapperModel)) {
+            values = requestMemo.getValues(mapperModel);
+        } else {
+            var memoize = plan.isSessionMemo() && mapperModel.getId() != null;
+            var fingerprint = 0L;
+            if (memoize) {
+                fingerprint = ClaimValuesMemo.fingerprint(plan, userSession);
+                values = ClaimValuesMemo.get(userSession, mapperModel, fingerprint);
+                memoize = values == null;
+                if (stats != null) {
+                    (memoize ? stats.sessionCacheMisses : stats.sessionCacheHits).increment();
+                }
+            }
+
+            if (values == null) {
+                values = evaluate(plan, mapperModel, userSession, clientSessionContext, stats);
+                if (memoize && values != null) {
+                    ClaimValuesMemo.put(userSession, mapperModel, fingerprint, values);
                 }
             }
+            if (requestMemo != null) {
+                requestMemo.putValues(mapperModel, values);
+            }
+        }
+
+        if (values == null) {
+            // Skipped: fall back to the configured value, without touching an existing claim otherwise.
+            if (stats != null) {
+                stats.skipped.increment();
+            }
+            if (plan.getFallbackValue() == null) {
+                return;
+            }
+            values = new ArrayList<>();
+            values.add(plan.getFallbackValue());
+        }
+
+        if (plan.isMergeClaims()) {
+            values = mergeExistingClaim(values, token.getOtherClaims().get(targetClaimName));
+            if (values == null) {
+                LOG.warnf("Mapper '%s' (%s) cannot merge into the object in claim '%s', leaving it as it is",
+                        mapperModel.getName(), mapperModel.getId(), targetClaimName);
+                return;
+            }
         }
 
-        token.getOtherClaims().put(targetClaimName, values);
+        var emitted = plan.getEncoder().put(token, targetClaimName, values, userSession.getRealm(), plan.getFallbackValue());
+        if (stats != null) {
+            stats.valuesEmitted.add(emitted);
+        }
     }
 
-    private List<String> getFilteredGroupMembershipsAsValues(ProtocolMapperModel mappingModel, UserSessionModel userSession, Pattern pattern) {
-        var fullPath = useFullPath(mappingModel);
-        var multiValued = multiValued(mappingModel);
+    /**
+     * Existing values that are not strings, such as numbers or booleans, are merged in their string form.
+     *
+     * @return the values followed by those of the existing claim, without duplicates, or null if the existing claim
+     * is a JSON object, which has to be kept as it is.
+     */
+    static List<String> mergeExistingClaim(final List<String> values, final Object existingClaim) {
+        if (existingClaim == null) {
+            return values;
+        }
+        if (existingClaim instanceof Map<?, ?>) {
+            return null;
+        }
+        var merged = ValueSet.acquire();
+        try {
+            for (int i = 0; i < values.size(); i++) {
+                merged.add(values.get(i));
+            }
+            if (existingClaim instanceof Collection<?>) {
+                for (Object existingValue : (Collection<?>) existingClaim) {
+                    if (existingValue != null) {
+                        merged.add(String.valueOf(existingValue));
+                    }
+                }
+            } else {
+                merged.add(String.valueOf(existingClaim));
+            }
+            return merged.toList();
+        } finally {
+            merged.release();
+        }
+    }
 
-        var stream = userSession.getUser()
-                .getGroups()
-                .stream()
-                .map(x -> fullPath ? pattern.matcher(ModelToRepresentation.buildGroupPath(x)) : pattern.matcher(x.getName()));
+    /**
+     * @return the values of the mapper, or null if it was skipped because of its match time budget.
+     */
+    private List<String> evaluate(final RegexMapperPlan plan,
+                                  final ProtocolMapperModel mapperModel,
+                                  final UserSessionModel userSession,
+                                  final ClientSessionContext clientSessionContext,
+                                  final MapperMetrics.Stats stats) {
+        List<String> values;
 
-        if (multiValued) {
-            return new ArrayList<String>();                    
-            // TODO
+        if (plan.isCompositeEvaluation() && !plan.getValueLimit().isActive() && clientSessionContext != null && mapperModel.getId() != null) {
+            values = CompositeEvaluation.getValues(mapperModel, userSession, clientSessionContext);
+        } else if (plan.getBudget().isOpen()) {
+            MatchBudget.logSkipped(mapperModel);
+            values = null;
         } else {
-            return stream.filter(Matcher::matches)
-               .flatMap(matcher -> {
-                List<String> values = new ArrayList<>();
-                while (matcher.find()) {
-                   for (var i = 1; i < matcher.groupCount(); i++) {
-                       values.add(matcher.group(i));
-                   }
+            try {
+                values = getFilteredInputsAsValues(plan, userSession, plan.getBudget().start(), stats);
+                plan.getBudget().recordSuccess();
+            } catch (MatchBudget.ExceededException ex) {
+                plan.getBudget().recordOverrun(mapperModel);
+                values = null;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Looks up the first {@code count} groups in the match table of the plan, matching the ones missing from it on
+     * the {@link ParallelMatching} pool if there are enough of them, and adds the values in membership order.
+     *
+     * @return the number of matching groups.
+     */
+    private static int collectLargeMembership(final RegexMapperPlan plan,
+                                              final RealmModel realm,
+                                              final GroupModel[] groups,
+                                              final int count,
+                                              final MatchBudget.Deadline deadline,
+                                              final Collection<String> values) {
+        var groupMatches = plan.getGroupMatches();
+        var groupPaths = GroupPathCache.getInstance();
+        var matches = new RegexMapperPlan.Match[count];
+        var missingInputs = new String[count];
+        var missingSlots = new int[count];
+        var misses = 0;
+        for (int i = 0; i < count; i++) {
+            matches[i] = groupMatches.get(realm, groups[i]);
+            if (matches[i] == null) {
+                // Names and paths come from the model, so they are read here rather than on the pool.
+                missingInputs[misses] = plan.isFullPath() ? groupPaths.getPath(realm, groups[i]) : groups[i].getName();
+                missingSlots[misses++] = i;
+            }
+        }
+
+        if (misses > 0) {
+            RegexMapperPlan.Match[] computed;
+            if (ParallelMatching.shouldSplit(plan.getParallelThreshold(), misses)) {
+                computed = ParallelMatching.match(plan, missingInputs, misses, deadline);
+            } else {
+                computed = new RegexMapperPlan.Match[misses];
+                for (int i = 0; i < misses; i++) {
+                    computed[i] = plan.match(missingInputs[i], deadline);
+                }
+            }
+            for (int i = 0; i < misses; i++) {
+                matches[missingSlots[i]] = groupMatches.put(realm, groups[missingSlots[i]], computed[i]);
+            }
+        }
+
+        var matched = 0;
+        for (int i = 0; i < count; i++) {
+            if (matches[i].addTo(values)) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private List<String> getFilteredInputsAsValues(RegexMapperPlan plan, UserSessionModel userSession, MatchBudget.Deadline deadline, MapperMetrics.Stats stats) {
+        var realm = userSession.getRealm();
+
+        var values = ValueSet.acquire();
+        try {
+            var scanned = 0;
+            var matched = 0;
+            if (plan.getTarget() == MatchTarget.GROUPS) {
+                var subtree = plan.getRootGroup() == null ? null : GroupSubtreeCache.getInstance().get(realm, plan.getRootGroup());
+                var groupMatches = plan.getGroupMatches();
+                var groups = userSession.getUser().getGroups();
+                if (plan.getValueLimit().isActive()) {
+                    for (var group : plan.getValueLimit().orderGroups(realm, groups, subtree)) {
+                        scanned++;
+                        if (groupMatches.match(plan, realm, group, deadline).addTo(values)) {
+                            matched++;
+                        }
+                        if (plan.getValueLimit().isFilled(values)) {
+                            break;
+                        }
+                    }
+                } else if (ParallelMatching.shouldSplit(plan.getParallelThreshold(), groups.size())) {
+                    var members = new GroupModel[groups.size()];
+                    for (var group : groups) {
+                        if (subtree == null || subtree.contains(group)) {
+                            members[scanned++] = group;
+                        }
+                    }
+                    matched = collectLargeMembership(plan, realm, members, scanned, deadline, values);
+                } else {
+                    for (var group : groups) {
+                        if (subtree != null && !subtree.contains(group)) {
+                            continue;
+                        }
+                        scanned++;
+                        if (groupMatches.match(plan, realm, group, deadline).addTo(values)) {
+                            matched++;
+                        }
+                    }
                 }
-                return values.stream();
-            })
-           .distinct()
-           .collect(Collectors.toList());
-        }
-    }    
-
-    private List<String> getFilteredGroupMembershipsAsValues(ProtocolMapperModel mappingModel, UserSessionModel userSession, int matchGroupNumber, String matchGroupName, Pattern pattern) {
-        boolean fullPath = useFullPath(mappingModel);
-
-        return userSession.getUser()
-                .getGroups()
-                .stream()
-                .map(x -> fullPath ? pattern.matcher(ModelToRepresentation.buildGroupPath(x)) : pattern.matcher(x.getName()))
-                .filter(Matcher::matches)
-                .map(x -> {
-                    String value;
-                    if (matchGroupNumber == -1) {
-                        value = x.group(matchGroupName);
-                    } else {
-                        value = x.group(matchGroupNumber);
+            } else {
+                var inputs = new LinkedHashSet<String>();
+                plan.getTarget().addInputs(plan, realm, userSession.getUser(), inputs);
+                if (plan.getValueLimit().isActive()) {
+                    for (var input : plan.getValueLimit().orderInputs(inputs)) {
+                        scanned++;
+                        if (plan.collect(input, deadline, values)) {
+                            matched++;
+                        }
+                        if (plan.getValueLimit().isFilled(values)) {
+                            break;
+                        }
+                    }
+                } else if (ParallelMatching.shouldSplit(plan.getParallelThreshold(), inputs.size())) {
+                    scanned = inputs.size();
+                    matched = ParallelMatching.collect(plan, inputs.toArray(new String[0]), scanned, deadline, values);
+                } else {
+                    for (var input : inputs) {
+                        scanned++;
+                        if (plan.collect(input, deadline, values)) {
+                            matched++;
+                        }
                     }
-                    return value;
-                })
-                .distinct()
-                .collect(Collectors.toList());
+                }
+            }
+            if (stats != null) {
+                stats.groupsScanned.add(scanned);
+                stats.groupsMatched.add(matched);
+            }
+            return plan.getValueLimit().truncate(values.toList());
+        } finally {
+            values.release();
+        }
     }
 }
@@ -0,0 +1,253 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Evaluates one {@link RegexMapper} configuration for many users at once, e.g. to precompute the entitlements of a
+ * whole user population without issuing a token for every user.
+ * <p>
+ * The users are taken in chunks. For every chunk the memberships, roles or attribute values are read on the calling
+ * thread, since the Keycloak model must not be touched from other threads. Each input that has no known match yet is
+ * matched once for the whole chunk, on the {@link ParallelMatching} pool if there are enough of them, and every user
+ * then gets its values from those matches. Matches are kept across chunks and batches: group matches in the
+ * {@link GroupMatchTable} that token issuance uses as well, and the matches of other inputs for the lifetime of the
+ * batch, up to {@value #MAX_INPUT_MATCHES} of them.
+ * <p>
+ * A result holds the values the mapper would put into its claim, before {@link ClaimEncoder encoding} and merging with
+ * other claims. The {@link MatchBudget time budget} of the mapper applies to every input on its own; a user with an
+ * input that runs out of time gets the fallback value, or no values at all. The circuit breaker of the mapper is
+ * neither consulted nor tripped. A {@link ValueLimit} orders and cuts the values of every user as for a token, but all
+ * inputs of the chunk are matched regardless, since they are shared between its users.
+ * <p>
+ * A batch is not thread safe; use one batch per thread.
+ */
+public final class RegexMapperBatch {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    static final int MAX_INPUT_MATCHES = 100_000;
+
+    /**
+     * Below this many inputs a chunk is matched on the calling thread.
+     */
+    private static final int MIN_PARALLEL_INPUTS = 256;
+
+    private final RegexMapperPlan plan;
+    private final int chunkSize;
+    private final Map<String, RegexMapperPlan.Match> inputMatches = new HashMap<>();
+
+    public RegexMapperBatch(final ProtocolMapperModel mapperModel) {
+        this(mapperModel, DEFAULT_CHUNK_SIZE);
+    }
+
+    public RegexMapperBatch(final ProtocolMapperModel mapperModel, final int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.plan = RegexMapper.plans.get(mapperModel);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Evaluates the mapper for the users of the realm and hands the result of every user to the consumer, in the
+     * order of the users, as soon as its chunk is done.
+     */
+    public void evaluate(final RealmModel realm, final Iterable<UserModel> users, final Consumer<Result> results) {
+        final var iterator = users.iterator();
+        while (iterator.hasNext()) {
+            evaluateChunk(realm, nextChunk(iterator)).forEach(results);
+        }
+    }
+
+    /**
+     * Like {@link #evaluate(RealmModel, Iterable, Consumer)}, but lazily: a chunk of users is only read from the
+     * stream and evaluated when the results are consumed.
+     */
+    public Stream<Result> evaluate(final RealmModel realm, final Stream<UserModel> users) {
+        final var iterator = users.iterator();
+        final var spliterator = new Spliterators.AbstractSpliterator<Result>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            private final ArrayDeque<Result> pending = new ArrayDeque<>();
+
+            @Override
+            public boolean tryAdvance(final Consumer<? super Result> action) {
+                if (pending.isEmpty() && iterator.hasNext()) {
+                    pending.addAll(evaluateChunk(realm, nextChunk(iterator)));
+                }
+                final var result = pending.poll();
+                if (result == null) {
+                    return false;
+                }
+                action.accept(result);
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(users::close);
+    }
+
+    private List<UserModel> nextChunk(final Iterator<UserModel> users) {
+        final List<UserModel> chunk = new ArrayList<>(chunkSize);
+        while (chunk.size() < chunkSize && users.hasNext()) {
+            chunk.add(users.next());
+        }
+        return chunk;
+    }
+
+    private List<Result> evaluateChunk(final RealmModel realm, final List<UserModel> users) {
+        // Every input of every user is either a known match or refers to a miss, which is matched once per chunk.
+        final var known = new RegexMapperPlan.Match[users.size()][];
+        final var missIndexes = new int[users.size()][];
+        final List<String> missInputs = new ArrayList<>();
+        final List<GroupModel> missGroups = new ArrayList<>();
+        final Map<String, Integer> missesByKey = new HashMap<>();
+
+        final var groupMatches = plan.getGroupMatches();
+        final var groupPaths = GroupPathCache.getInstance();
+        final var subtree = plan.getTarget() != MatchTarget.GROUPS || plan.getRootGroup() == null
+                ? null : GroupSubtreeCache.getInstance().get(realm, plan.getRootGroup());
+        final Set<String> inputs = new LinkedHashSet<>();
+        for (int u = 0; u < users.size(); u++) {
+            final var user = users.get(u);
+            if (plan.getTarget() == MatchTarget.GROUPS) {
+                final List<GroupModel> groups = plan.getValueLimit().orderGroups(realm, user.getGroups(), subtree);
+                known[u] = new RegexMapperPlan.Match[groups.size()];
+                missIndexes[u] = new int[groups.size()];
+                for (int i = 0; i < groups.size(); i++) {
+                    final var group = groups.get(i);
+                    known[u][i] = groupMatches.get(realm, group);
+                    if (known[u][i] == null) {
+                        missIndexes[u][i] = missesByKey.computeIfAbsent(group.getId() == null ? "#" + missInputs.size() : group.getId(), key -> {
+                            missInputs.add(plan.isFullPath() ? groupPaths.getPath(realm, group) : group.getName());
+                            missGroups.add(group);
+                            return missInputs.size() - 1;
+                        });
+                    }
+                }
+            } else {
+                inputs.clear();
+                plan.getTarget().addInputs(plan, realm, user, inputs);
+                known[u] = new RegexMapperPlan.Match[inputs.size()];
+                missIndexes[u] = new int[inputs.size()];
+                int i = 0;
+                for (String input : plan.getValueLimit().isActive() ? plan.getValueLimit().orderInputs(inputs) : inputs) {
+                    known[u][i] = inputMatches.get(input);
+                    if (known[u][i] == null) {
+                        missIndexes[u][i] = missesByKey.computeIfAbsent(input, key -> {
+                            missInputs.add(input);
+                            return missInputs.size() - 1;
+                        });
+                    }
+                    i++;
+                }
+            }
+        }
+
+        final var computed = match(missInputs);
+        for (int i = 0; i < computed.length; i++) {
+            if (computed[i] == null) {
+                continue;
+            }
+            if (plan.getTarget() == MatchTarget.GROUPS) {
+                groupMatches.put(realm, missGroups.get(i), computed[i]);
+            } else if (inputMatches.size() < MAX_INPUT_MATCHES) {
+                inputMatches.put(missInputs.get(i), computed[i]);
+            }
+        }
+
+        final List<Result> results = new ArrayList<>(users.size());
+        for (int u = 0; u < users.size(); u++) {
+            results.add(new Result(users.get(u), collect(known[u], missIndexes[u], computed)));
+        }
+        return results;
+    }
+
+    /**
+     * @return the match of every input, or null for inputs that ran out of time.
+     */
+    private RegexMapperPlan.Match[] match(final List<String> inputs) {
+        final var matches = new RegexMapperPlan.Match[inputs.size()];
+        if (inputs.size() >= MIN_PARALLEL_INPUTS && ParallelMatching.getParallelism() > 1) {
+            // A parallel stream started from within a fork-join pool runs on that pool.
+            ParallelMatching.pool().submit(() -> IntStream.range(0, matches.length).parallel()
+                    .forEach(i -> matches[i] = matchWithinBudget(inputs.get(i))))
+                    .join();
+        } else {
+            for (int i = 0; i < matches.length; i++) {
+                matches[i] = matchWithinBudget(inputs.get(i));
+            }
+        }
+        return matches;
+    }
+
+    private RegexMapperPlan.Match matchWithinBudget(final String input) {
+        try {
+            return plan.match(input, plan.getBudget().start());
+        } catch (MatchBudget.ExceededException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the values of a user, the fallback value if one of its inputs ran out of time, or null if there is none.
+     */
+    private List<String> collect(final RegexMapperPlan.Match[] known, final int[] missIndexes, final RegexMapperPlan.Match[] computed) {
+        final var values = ValueSet.acquire();
+        try {
+            for (int i = 0; i < known.length; i++) {
+                final var match = known[i] != null ? known[i] : computed[missIndexes[i]];
+                if (match == null) {
+                    return plan.getFallbackValue() == null ? null : Collections.singletonList(plan.getFallbackValue());
+                }
+                match.addTo(values);
+                if (plan.getValueLimit().isFilled(values)) {
+                    break;
+                }
+            }
+            return plan.getValueLimit().truncate(values.toList());
+        } finally {
+            values.release();
+        }
+    }
+
+    /**
+     * The values of one user.
+     */
+    public static final class Result {
+        private final UserModel user;
+        private final List<String> values;
+
+        private Result(final UserModel user, final List<String> values) {
+            this.user = user;
+            this.values = values;
+        }
+
+        public UserModel getUser() {
+            return user;
+        }
+
+        /**
+         * @return the values of the user, or null if the mapper would have left its claim out.
+         */
+        public List<String> getValues() {
+            return values;
+        }
+    }
+}
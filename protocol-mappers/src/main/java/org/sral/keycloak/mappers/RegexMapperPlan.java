@@ -0,0 +1,378 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable, pre-parsed form of a {@link RegexMapper} configuration.
+ * <p>
+ * Compiling the pattern and resolving the match group happens once per configuration, so that the token path only
+ * has to read fields. The only mutable part is the circuit breaker state of the {@link MatchBudget}.
+ */
+final class RegexMapperPlan {
+
+    private final String claimName;
+    private final MatchTarget target;
+    private final String targetClient;
+    private final String targetAttribute;
+    private final boolean expandComposites;
+    private final String rootGroup;
+    private final CompiledRegex regex;
+    private final ThreadLocal<RegexMatcher> matchers;
+    private final PatternShape shape;
+    private final String literalPrefix;
+    private final int matchGroupNumber;
+    private final String matchGroupName;
+    private final boolean fullPath;
+    private final boolean multiValued;
+    private final boolean mergeClaims;
+    private final boolean compositeEvaluation;
+    private final boolean sessionMemo;
+    private final long configFingerprint;
+    private final MatchBudget budget;
+    private final String fallbackValue;
+    private final ClaimEncoder encoder;
+    private final int parallelThreshold;
+    private final ValueLimit valueLimit;
+    private final GroupMatchTable groupMatches;
+
+    private RegexMapperPlan(final String claimName,
+                            final MatchTarget target,
+                            final String targetClient,
+                            final String targetAttribute,
+                            final boolean expandComposites,
+                            final String rootGroup,
+                            final CompiledRegex regex,
+                            final PatternShape shape,
+                            final String literalPrefix,
+                            final int matchGroupNumber,
+                            final String matchGroupName,
+                            final boolean fullPath,
+                            final boolean multiValued,
+                            final boolean mergeClaims,
+                            final boolean compositeEvaluation,
+                            final boolean sessionMemo,
+                            final long configFingerprint,
+                            final MatchBudget budget,
+                            final String fallbackValue,
+                            final ClaimEncoder encoder,
+                            final int parallelThreshold,
+                            final ValueLimit valueLimit) {
+        this.claimName = claimName;
+        this.target = target;
+        this.targetClient = targetClient;
+        this.targetAttribute = targetAttribute;
+        this.expandComposites = expandComposites;
+        this.rootGroup = rootGroup;
+        this.regex = regex;
+        this.matchers = ThreadLocal.withInitial(() -> regex.matcher(""));
+        this.shape = shape;
+        this.literalPrefix = literalPrefix;
+        this.matchGroupNumber = matchGroupNumber;
+        this.matchGroupName = matchGroupName;
+        this.fullPath = fullPath;
+        this.multiValued = multiValued;
+        this.mergeClaims = mergeClaims;
+        this.compositeEvaluation = compositeEvaluation;
+        this.sessionMemo = sessionMemo;
+        this.configFingerprint = configFingerprint;
+        this.budget = budget;
+        this.fallbackValue = fallbackValue;
+        this.encoder = encoder;
+        this.parallelThreshold = parallelThreshold;
+        this.valueLimit = valueLimit;
+        this.groupMatches = GroupMatchTable.create(fullPath);
+    }
+
+    static RegexMapperPlan compile(final ProtocolMapperModel mapperModel) {
+        final var config = mapperModel.getConfig();
+        final var pattern = config.get(RegexMapper.REGEX_PATTERN_PROPERTY);
+        final var regex = RegexEngine.fromConfig(config.get(RegexMapper.REGEX_ENGINE_PROPERTY)).compile(pattern);
+
+        final var matchGroupNumberOrName = config.get(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY);
+        var matchGroupNumber = -1;
+        var matchGroupName = "";
+        try {
+            matchGroupNumber = Integer.parseInt(matchGroupNumberOrName);
+        } catch (NumberFormatException ignored) {
+            matchGroupName = matchGroupNumberOrName;
+        }
+
+        final var multiValued = RegexMapper.multiValued(mapperModel);
+        if (!multiValued && matchGroupNumber == -1 && matchGroupName != null && !matchGroupName.isEmpty()
+                && !regex.hasGroup(matchGroupName)) {
+            throw new IllegalArgumentException("No group with name <" + matchGroupName + ">");
+        }
+        var shape = PatternShape.analyze(pattern);
+        if (shape != null && !multiValued && !shape.supportsGroup(matchGroupNumber, matchGroupName)) {
+            shape = null;
+        }
+
+        return new RegexMapperPlan(
+                config.get(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME),
+                MatchTarget.fromConfig(config.get(RegexMapper.TARGET_PROPERTY)),
+                emptyToNull(config.get(RegexMapper.TARGET_CLIENT_PROPERTY)),
+                emptyToNull(config.get(RegexMapper.TARGET_ATTRIBUTE_PROPERTY)),
+                "true".equals(config.get(RegexMapper.EXPAND_COMPOSITES_PROPERTY)),
+                rootGroupPath(config.get(RegexMapper.ROOT_GROUP_PROPERTY)),
+                regex,
+                shape,
+                PatternShape.literalPrefix(pattern),
+                matchGroupNumber,
+                matchGroupName,
+                RegexMapper.useFullPath(mapperModel),
+                multiValued,
+                RegexMapper.mergeClaimValues(mapperModel),
+                RegexMapper.compositeEvaluation(mapperModel),
+                RegexMapper.sessionMemo(mapperModel),
+                ClaimValuesMemo.configFingerprint(config),
+                MatchBudget.fromConfig(config),
+                emptyToNull(config.get(RegexMapper.FALLBACK_VALUE_PROPERTY)),
+                ClaimEncoder.fromConfig(config),
+                ParallelMatching.thresholdFromConfig(config),
+                ValueLimit.fromConfig(config));
+    }
+
+    /**
+     * @return the path in the form {@code /top/level1}, or null for none.
+     */
+    private static String rootGroupPath(final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        var path = value.trim();
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        if (path.isEmpty()) {
+            return null;
+        }
+        return path.startsWith("/") ? path : "/" + path;
+    }
+
+    private static String emptyToNull(final String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Matches the group name or path against the pattern and adds the value of the configured match group, or in
+     * multi-valued mode the values of all groups that took part in the match.
+     * <p>
+     * Patterns of a simple {@link PatternShape shape} are matched without the regex engine, and for all others
+     * inputs without the literal prefix of the pattern are rejected before touching the matcher. The matcher is
+     * reused by all invocations on a thread.
+     *
+     * @return true if the input matched.
+     */
+    boolean collect(final String input, final MatchBudget.Deadline deadline, final Collection<String> values) {
+        if (!matches(input, deadline)) {
+            return false;
+        }
+        extract(input, values);
+        return true;
+    }
+
+    /**
+     * The matching half of {@link #collect(String, MatchBudget.Deadline, Collection)}.
+     *
+     * @return true if the input matched, in which case the matcher of the thread holds the match until the next call.
+     */
+    boolean matches(final String input, final MatchBudget.Deadline deadline) {
+        if (shape != null) {
+            return shape.matches(input);
+        }
+        if (!input.startsWith(literalPrefix)) {
+            return false;
+        }
+        return matchers.get().reset(deadline.guard(input)).matches();
+    }
+
+    /**
+     * The extracting half of {@link #collect(String, MatchBudget.Deadline, Collection)}: adds the values of an input
+     * that {@link #matches(String, MatchBudget.Deadline) matched} right before on the same thread.
+     */
+    void extract(final String input, final Collection<String> values) {
+        if (shape != null) {
+            if (!multiValued) {
+                values.add(shape.group(input, matchGroupNumber));
+            } else if (shape.isCapturing()) {
+                values.add(shape.group(input, 1));
+            }
+            return;
+        }
+        final RegexMatcher matcher = matchers.get();
+        if (!multiValued) {
+            values.add(matchGroupNumber == -1 ? matcher.group(matchGroupName) : matcher.group(matchGroupNumber));
+            return;
+        }
+        final int groupCount = matcher.groupCount();
+        for (int i = 1; i <= groupCount; i++) {
+            final var value = matcher.group(i);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #collect(String, MatchBudget.Deadline, Collection)}, but keeps the values for later.
+     */
+    Match match(final String input, final MatchBudget.Deadline deadline) {
+        final List<String> values = new ArrayList<>(2);
+        if (!collect(input, deadline, values)) {
+            return Match.NONE;
+        }
+        return new Match(true, values.toArray(new String[0]));
+    }
+
+    String getClaimName() {
+        return claimName;
+    }
+
+    MatchTarget getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the client id client roles are restricted to, or null for the roles of all clients.
+     */
+    String getTargetClient() {
+        return targetClient;
+    }
+
+    String getTargetAttribute() {
+        return targetAttribute;
+    }
+
+    boolean isExpandComposites() {
+        return expandComposites;
+    }
+
+    /**
+     * @return the path of the group whose subtree the memberships are restricted to, or null for all groups.
+     */
+    String getRootGroup() {
+        return rootGroup;
+    }
+
+    /**
+     * @return true if both plans match against the same inputs of a user, so that they can share one pass over them.
+     * Group names and paths are both at hand in a pass over the groups, and root groups are applied per plan.
+     */
+    boolean sharesInputsWith(final RegexMapperPlan other) {
+        if (target != other.target) {
+            return false;
+        }
+        return target == MatchTarget.GROUPS
+                || (fullPath == other.fullPath
+                && expandComposites == other.expandComposites
+                && Objects.equals(targetClient, other.targetClient)
+                && Objects.equals(targetAttribute, other.targetAttribute));
+    }
+
+    CompiledRegex getRegex() {
+        return regex;
+    }
+
+    /**
+     * @return the match group index to extract, or -1 if the group is referenced by {@link #getMatchGroupName() name}.
+     */
+    int getMatchGroupNumber() {
+        return matchGroupNumber;
+    }
+
+    String getMatchGroupName() {
+        return matchGroupName;
+    }
+
+    boolean isFullPath() {
+        return fullPath;
+    }
+
+    boolean isMultiValued() {
+        return multiValued;
+    }
+
+    boolean isMergeClaims() {
+        return mergeClaims;
+    }
+
+    boolean isCompositeEvaluation() {
+        return compositeEvaluation;
+    }
+
+    boolean isSessionMemo() {
+        return sessionMemo;
+    }
+
+    long getConfigFingerprint() {
+        return configFingerprint;
+    }
+
+    MatchBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return the claim value to emit when the mapper is skipped, or null to omit the claim.
+     */
+    String getFallbackValue() {
+        return fallbackValue;
+    }
+
+    ClaimEncoder getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * @return the number of inputs from which on they are matched in parallel, 0 for never.
+     */
+    int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * @return the order of the inputs and the maximum number of values, {@link ValueLimit#NONE} for neither.
+     */
+    ValueLimit getValueLimit() {
+        return valueLimit;
+    }
+
+    /**
+     * @return the matches of the groups of all realms seen with this configuration.
+     */
+    GroupMatchTable getGroupMatches() {
+        return groupMatches;
+    }
+
+    /**
+     * Whether one input matched, and the values it yields.
+     */
+    static final class Match {
+
+        static final Match NONE = new Match(false, new String[0]);
+
+        private final boolean matched;
+        private final String[] values;
+
+        private Match(final boolean matched, final String[] values) {
+            this.matched = matched;
+            this.values = values;
+        }
+
+        /**
+         * @return true if the input matched.
+         */
+        boolean addTo(final Collection<String> values) {
+            for (String value : this.values) {
+                values.add(value);
+            }
+            return matched;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.protocol.ProtocolMapperConfigException;
+import org.keycloak.protocol.oidc.OIDCLoginProtocol;
+import org.keycloak.services.ErrorResponse;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * REST endpoints of the mappers below {@code /realms/{realm}/regex-mappers}.
+ * <p>
+ * Every endpoint requires a bearer token of the realm. Claim dictionaries only hold what tokens of the realm carry
+ * anyway and can be read with any of them, so that resource servers can fetch them; everything else needs a user
+ * who may view the realm, e.g. through the {@code view-realm} role of {@code realm-management}, and a dry run for a
+ * user also one who may view that user.
+ */
+public class RegexMappersResource {
+
+    static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final KeycloakSession session;
+
+    public RegexMappersResource(final KeycloakSession session) {
+        this.session = session;
+    }
+
+    /**
+     * The {@link MapperMetrics} of the mappers of the realm in the Prometheus text format.
+     */
+    @GET
+    @Path("metrics")
+    @Produces(PROMETHEUS_TEXT)
+    public String getMetrics() {
+        final RealmModel realm = requireViewRealm();
+        if (!MapperMetrics.isEnabled()) {
+            throw new NotFoundException("Mapper metrics are disabled");
+        }
+        return MapperMetrics.toPrometheusText(MapperMetrics.forRealm(realm.getId()));
+    }
+
+    /**
+     * The {@link ClaimDictionary} with the name, with its version and values in bit order.
+     */
+    @GET
+    @Path("dictionaries/{name}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getDictionary(@PathParam("name") final String name) {
+        final RealmModel realm = session.getContext().getRealm();
+        requireToken(realm);
+        final var dictionary = ClaimDictionary.get(realm, name);
+        if (dictionary == null) {
+            throw new NotFoundException("No such claim dictionary");
+        }
+        final Map<String, Object> representation = new LinkedHashMap<>();
+        representation.put("name", name);
+        representation.put("version", dictionary.getVersion());
+        representation.put("values", dictionary.getValues());
+        return representation;
+    }
+
+    /**
+     * Evaluates a mapper configuration without issuing a token and returns the resulting claims with the time and
+     * allocations of every stage, see {@link DryRun}. The request has the fields
+     * <ul>
+     *     <li>{@code protocolMapper}: {@value RegexMapper#PROVIDER_ID} or {@value RegexReplaceMapper#PROVIDER_ID};</li>
+     *     <li>{@code config}: the configuration of the mapper, as in its representation;</li>
+     *     <li>{@code user}: user name or id of the user a {@link RegexMapper} is evaluated for;</li>
+     *     <li>{@code claims}: optionally the claims of the token before the mapper runs, required for a
+     *     {@link RegexReplaceMapper};</li>
+     *     <li>{@code iterations}: optionally how many times to run it, at most {@value DryRun#MAX_ITERATIONS};</li>
+     *     <li>{@code cold}: optionally true to build group paths without the group path cache.</li>
+     * </ul>
+     */
+    @POST
+    @Path("dry-run")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> dryRun(final Map<String, Object> request) {
+        final RealmModel realm = session.getContext().getRealm();
+        final var permissions = permissions(realm);
+        permissions.realm().requireViewRealm();
+
+        final var mapperModel = new ProtocolMapperModel();
+        mapperModel.setName("dry-run");
+        mapperModel.setProtocol(OIDCLoginProtocol.LOGIN_PROTOCOL);
+        mapperModel.setProtocolMapper(stringValue(request.get("protocolMapper")));
+        mapperModel.setConfig(stringValues(request.get("config")));
+        final var claims = objectValues(request.get("claims"));
+        final var iterations = request.get("iterations") instanceof Number ? ((Number) request.get("iterations")).intValue() : 1;
+        if (iterations < 1 || iterations > DryRun.MAX_ITERATIONS) {
+            throw badRequest("iterations must be between 1 and " + DryRun.MAX_ITERATIONS);
+        }
+
+        try {
+            if (RegexMapper.PROVIDER_ID.equals(mapperModel.getProtocolMapper())) {
+                new RegexMapper().validateConfig(session, realm, null, mapperModel);
+                final var user = findUser(realm, stringValue(request.get("user")));
+                permissions.users().requireView(user);
+                return DryRun.regexMapper(realm, user, mapperModel, claims, Boolean.TRUE.equals(request.get("cold")), iterations);
+            }
+            if (RegexReplaceMapper.PROVIDER_ID.equals(mapperModel.getProtocolMapper())) {
+                new RegexReplaceMapper().validateConfig(session, realm, null, mapperModel);
+                if (claims == null) {
+                    throw badRequest("A dry run of " + RegexReplaceMapper.PROVIDER_ID + " needs claims");
+                }
+                return DryRun.regexReplaceMapper(mapperModel, claims, iterations);
+            }
+        } catch (ProtocolMapperConfigException ex) {
+            throw badRequest(describe(ex));
+        }
+        throw badRequest("Unknown protocol mapper: " + mapperModel.getProtocolMapper());
+    }
+
+    private UserModel findUser(final RealmModel realm, final String userNameOrId) {
+        if (userNameOrId == null) {
+            throw badRequest("A dry run of " + RegexMapper.PROVIDER_ID + " needs a user");
+        }
+        var user = session.users().getUserByUsername(userNameOrId, realm);
+        if (user == null) {
+            user = session.users().getUserById(userNameOrId, realm);
+        }
+        if (user == null) {
+            throw new NotFoundException("No such user");
+        }
+        return user;
+    }
+
+    private static String describe(final ProtocolMapperConfigException ex) {
+        final var parameters = ex.getParameters();
+        Object detail = parameters != null && parameters.length > 0 ? parameters[0] : ex.getCause();
+        if (detail instanceof Throwable) {
+            detail = ((Throwable) detail).getMessage();
+        }
+        return detail == null ? ex.getMessage() : ex.getMessage() + ": " + detail;
+    }
+
+    private static BadRequestException badRequest(final String message) {
+        return new BadRequestException(ErrorResponse.error(message, Response.Status.BAD_REQUEST));
+    }
+
+    private static String stringValue(final Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    private static Map<String, String> stringValues(final Object value) {
+        final Map<String, String> values = new HashMap<>();
+        if (value instanceof Map<?, ?>) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                values.put(entry.getKey().toString(), stringValue(entry.getValue()));
+            }
+        } else if (value != null) {
+            throw badRequest("config must be an object");
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> objectValues(final Object value) {
+        if (value == null || value instanceof Map<?, ?>) {
+            return (Map<String, Object>) value;
+        }
+        throw badRequest("claims must be an object");
+    }
+
+    private AuthenticationManager.AuthResult requireToken(final RealmModel realm) {
+        final var auth = new AppAuthManager().authenticateBearerToken(session, realm);
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        return auth;
+    }
+
+    private AdminPermissionEvaluator permissions(final RealmModel realm) {
+        final var auth = requireToken(realm);
+        final var client = realm.getClientByClientId(auth.getToken().getIssuedFor());
+        final var adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), client);
+        return AdminPermissions.evaluator(session, realm, adminAuth);
+    }
+
+    private RealmModel requireViewRealm() {
+        final RealmModel realm = session.getContext().getRealm();
+        permissions(realm).realm().requireViewRealm();
+        return realm;
+    }
+}
@@ -0,0 +1,53 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/**
+ * Publishes {@link RegexMappersResource} below {@code /realms/{realm}/}{@value #PROVIDER_ID} and the
+ * {@link MapperMetricsMXBean}.
+ * <p>
+ * Metrics are collected when {@code metricsEnabled} is set, e.g. through
+ * {@code -Dkeycloak.realm-restapi-extension.regex-mappers.metricsEnabled=true}, or at runtime through JMX.
+ */
+public class RegexMappersResourceProviderFactory implements RealmResourceProviderFactory {
+
+    public static final String PROVIDER_ID = "regex-mappers";
+
+    @Override
+    public RealmResourceProvider create(final KeycloakSession session) {
+        return new RealmResourceProvider() {
+            @Override
+            public Object getResource() {
+                return new RegexMappersResource(session);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void init(final Config.Scope config) {
+        MapperMetrics.setEnabled(config.getBoolean("metricsEnabled", false));
+    }
+
+    @Override
+    public void postInit(final KeycloakSessionFactory factory) {
+        MapperMetricsJmx.register();
+    }
+
+    @Override
+    public void close() {
+        MapperMetricsJmx.unregister();
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
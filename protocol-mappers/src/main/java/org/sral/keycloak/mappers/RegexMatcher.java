@@ -0,0 +1,31 @@
+package org.sral.keycloak.mappers;
+
+/**
+ * The subset of {@link java.util.regex.Matcher} the mappers need, implemented by every {@link RegexEngine}.
+ * Like {@code Matcher}, instances are stateful and not thread safe.
+ */
+interface RegexMatcher {
+
+    /**
+     * Attempts to match the entire input against the pattern.
+     */
+    boolean matches();
+
+    /**
+     * Attempts to find the next subsequence of the input that matches the pattern, with the same handling of
+     * empty matches as {@link java.util.regex.Matcher#find()}.
+     */
+    boolean find();
+
+    int start();
+
+    int end();
+
+    int groupCount();
+
+    String group(int group);
+
+    String group(String name);
+
+    RegexMatcher reset(CharSequence input);
+}
@@ -1,6 +1,6 @@
 package org.sral.keycloak.mappers;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import org.keycloak.Config;
 import org.keycloak.models.*;
 import org.keycloak.protocol.ProtocolMapperConfigException;
 import org.keycloak.protocol.oidc.mappers.AbstractOIDCProtocolMapper;
@@ -12,14 +12,13 @@ import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.IDToken;
-import org.keycloak.util.JsonSerialization;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.function.UnaryOperator;
+import java.util.regex.PatternSyntaxException;
 
 /**
  *  @author <a href="mailto:lars@nospam.sral.org">Lars Wilhelmsen</a>
@@ -31,6 +30,16 @@ public class RegexReplaceMapper extends AbstractOIDCProtocolMapper implements OI
     public static final String PROVIDER_ID = "oidc-regex-replace-mapper";
     public static final String TARGET_CLAIMS_PROPERTY = "target.claims";
     public static final String REPLACEMENT_MAP_PROPERTY = "replacement.map";
+    public static final String REGEX_ENGINE_PROPERTY = "regex.engine";
+    public static final String MATCH_BUDGET_PROPERTY = MatchBudget.BUDGET_PROPERTY;
+    public static final String BREAKER_THRESHOLD_PROPERTY = MatchBudget.BREAKER_THRESHOLD_PROPERTY;
+    public static final String BREAKER_OPEN_PROPERTY = MatchBudget.BREAKER_OPEN_PROPERTY;
+
+    private static final int MAX_CACHED_PROGRAMS = 1024;
+
+    static final CompiledConfigCache<ReplacementProgram> programs = new CompiledConfigCache<>(MAX_CACHED_PROGRAMS, ReplacementProgram::compile);
+
+    private static volatile PatternCost patternCost = PatternCost.DEFAULT;
 
     static {
         configProperties.addAll(
@@ -39,7 +48,7 @@ public class RegexReplaceMapper extends AbstractOIDCProtocolMapper implements OI
                 .name(TARGET_CLAIMS_PROPERTY)
                 .label("Target claim(s)")
                 .type(ProviderConfigProperty.STRING_TYPE)
-                .helpText("Comma-separated list of claims to do search/replace on.")
+                .helpText("Comma-separated list of claims to do search/replace on. Nested claims are addressed with dots, as in resource_access.account.roles; name[*] continues with every element of a list and * with every entry of an object. Escape a dot that is part of a claim name as \\.")
                 .add()
 
                 .property()
@@ -49,8 +58,19 @@ public class RegexReplaceMapper extends AbstractOIDCProtocolMapper implements OI
                 .helpText("Replacements á la Java's String.replaceAll()")
                 .add()
 
+                .property()
+                .name(REGEX_ENGINE_PROPERTY)
+                .label("Regex engine")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .helpText("jdk: java.util.regex with its full syntax. linear: matching time is guaranteed to be linear in the length of the claim value, but back references, look-around and inline flags are not supported")
+                .options(Arrays.asList(RegexEngine.JDK.getConfigValue(), RegexEngine.LINEAR.getConfigValue()))
+                .defaultValue(RegexEngine.JDK.getConfigValue())
+                .add()
+
                 .build());
 
+        MatchBudget.addConfigProperties(configProperties);
+
         // Add toggles for include in (ID Token, access token and User Info endpoint
         OIDCAttributeMapperHelper.addIncludeInTokensConfig(configProperties, RegexReplaceMapper.class);
     }
@@ -89,58 +109,149 @@ public class RegexReplaceMapper extends AbstractOIDCProtocolMapper implements OI
     @Override
     public AccessToken transformAccessToken(AccessToken token, ProtocolMapperModel mapperModel, KeycloakSession session, UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
         var transformedToken = super.transformAccessToken(token, mapperModel, session, userSession, clientSessionCtx);
+        replaceClaimValues(transformedToken, mapperModel, userSession, clientSessionCtx);
+        return token;
+    }
+
+    private void replaceClaimValues(final IDToken transformedToken,
+                                    final ProtocolMapperModel mapperModel,
+                                    final UserSessionModel userSession,
+                                    final ClientSessionContext clientSessionCtx) {
+        var memo = RequestMemo.of(clientSessionCtx);
+        var replacements = memo == null ? null : memo.getReplacements(mapperModel);
+
+        var stats = MapperMetrics.forMapper(mapperModel, userSession);
+        if (stats == null) {
+            replaceClaimValues(transformedToken, mapperModel, replacements, null);
+            return;
+        }
+        var start = System.nanoTime();
+        try {
+            replaceClaimValues(transformedToken, mapperModel, replacements, stats);
+        } finally {
+            stats.recordInvocation(System.nanoTime() - start);
+        }
+    }
+
+    private void replaceClaimValues(final IDToken transformedToken,
+                                    final ProtocolMapperModel mapperModel,
+                                    final Map<String, String> replacements,
+                                    final MapperMetrics.Stats stats) {
+        var program = programs.get(mapperModel);
+        var budget = program.getBudget();
+        if (budget.isOpen()) {
+            MatchBudget.logSkipped(mapperModel);
+            if (stats != null) {
+                stats.skipped.increment();
+            }
+            return;
+        }
+
+        // The new values are only written back once all of them are computed, so that running out of time leaves the
+        // claims untouched.
+        var rewrite = new Rewrite(program, budget.start(), replacements);
+        var writes = new ArrayList<ClaimPath.Write>();
+        try {
+            for (var path : program.getTargetPaths()) {
+                path.collect(transformedToken, rewrite, writes);
+            }
+            budget.recordSuccess();
+        } catch (MatchBudget.ExceededException ex) {
+            budget.recordOverrun(mapperModel);
+            if (stats != null) {
+                stats.skipped.increment();
+            }
+            return;
+        }
+
+        for (var write : writes) {
+            write.apply();
+        }
+        if (stats != null) {
+            stats.valuesEmitted.add(rewrite.emitted);
+            stats.replacements.add(rewrite.replacements);
+        }
+    }
+
+    /**
+     * Runs the program over each targeted value, counting values and replacements for the metrics. Values already
+     * rewritten for another token of the request are taken from the memo of the request, if there is one.
+     */
+    static final class Rewrite implements UnaryOperator<String> {
+        private final ReplacementProgram program;
+        private final MatchBudget.Deadline deadline;
+        private final Map<String, String> memo;
+        int emitted;
+        int replacements;
+
+        Rewrite(final ReplacementProgram program, final MatchBudget.Deadline deadline) {
+            this(program, deadline, null);
+        }
+
+        Rewrite(final ReplacementProgram program, final MatchBudget.Deadline deadline, final Map<String, String> memo) {
+            this.program = program;
+            this.deadline = deadline;
+            this.memo = memo;
+        }
 
-        // Split on comma and trim -> list of target claims
-        var targetClaims = getTargetClaims(mapperModel);
-
-        var replacementMap = getConfigMap(mapperModel.getConfig(), REPLACEMENT_MAP_PROPERTY);
-
-        for (var kv : transformedToken.getOtherClaims().entrySet()) {
-            for (var replacement : replacementMap.entrySet()) {
-
-                if (targetClaims.contains(kv.getKey())) {
-                    final var claim = kv.getValue();
-                    if (claim instanceof String) {
-                        var stringClaim = (String)claim;
-                        var mutatedStringClaim = stringClaim.replaceAll(replacement.getKey(), replacement.getValue());
-                        token.setOtherClaims(kv.getKey(), mutatedStringClaim);
-                    } else if (claim instanceof List<?>) {
-                        var listOfStrings = (List<String>) claim;
-                        var mutatedStrings = listOfStrings
-                                                .stream()
-                                                .map(x -> x.replaceAll(replacement.getKey(),
-                                                                       replacement.getValue()))
-                                                .collect(Collectors.toList());
-                        token.setOtherClaims(kv.getKey(), mutatedStrings);
-                    } else if (claim instanceof Map<?, ?>) {
-                        // moar claims in sub property.
-                        // TODO Implement later (allow dotted props in targetClaims)
-
-                    } else {
-                        // ignore for now.
-                    }
+        @Override
+        public String apply(final String value) {
+            var replaced = memo == null ? null : memo.get(value);
+            if (replaced == null) {
+                replaced = program.apply(value, deadline);
+                if (memo != null) {
+                    memo.put(value, replaced);
                 }
             }
+            emitted++;
+            if (!replaced.equals(value)) {
+                replacements++;
+            }
+            return replaced;
         }
-        return token;
     }
 
-    private static List<String> getTargetClaims(ProtocolMapperModel mapperModel) {
-        return Arrays.asList(mapperModel.getConfig().get(TARGET_CLAIMS_PROPERTY).split(",[ ]*"));
+    @Override
+    public void init(final Config.Scope config) {
+        patternCost = PatternCost.fromConfig(config);
     }
 
     @Override
     public void validateConfig(KeycloakSession session, RealmModel realm, ProtocolMapperContainerModel client, ProtocolMapperModel mapperModel) throws ProtocolMapperConfigException {
         try {
-            var map = getConfigMap(mapperModel.getConfig(), REPLACEMENT_MAP_PROPERTY);
+            MatchBudget.fromConfig(mapperModel.getConfig());
+        } catch (IllegalArgumentException ex) {
+            throw new ProtocolMapperConfigException("Invalid match time budget", "{0}", ex);
+        }
+
+        for (String claim : ReplacementProgram.parseTargetClaims(mapperModel.getConfig().get(TARGET_CLAIMS_PROPERTY))) {
+            try {
+                ClaimPath.compile(claim);
+            } catch (IllegalArgumentException ex) {
+                throw new ProtocolMapperConfigException("Invalid target claim", "{0}", ex);
+            }
+        }
+
+        ReplacementProgram program;
+        try {
+            program = ReplacementProgram.compile(mapperModel);
+        } catch (PatternSyntaxException ex) {
+            throw new ProtocolMapperConfigException("Invalid regular expression pattern", "{0}", ex);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
+            throw new ProtocolMapperConfigException("Invalid replacement", "{0}", ex);
         } catch (RuntimeException rex)
         {
             throw new ProtocolMapperConfigException("Internal error relating to replacement handling. Please report this bug.", "{0}", rex);
         }
 
-        if (mapperModel.getConfig().get(TARGET_CLAIMS_PROPERTY).isEmpty() || getTargetClaims(mapperModel).isEmpty()) {
+        if (program.getTargetClaims().isEmpty()) {
             throw new ProtocolMapperConfigException("No target claims specified.", "{0}");
         }
+
+        final var engine = RegexEngine.fromConfig(mapperModel.getConfig().get(REGEX_ENGINE_PROPERTY));
+        for (CompiledRegex regex : program.getPatterns()) {
+            patternCost.check(mapperModel, engine, regex, false);
+        }
     }
 
     @Override
@@ -150,7 +261,11 @@ public class RegexReplaceMapper extends AbstractOIDCProtocolMapper implements OI
 
     @Override
     public IDToken transformIDToken(IDToken token, ProtocolMapperModel mappingModel, KeycloakSession session, UserSessionModel userSession, ClientSessionContext clientSessionCtx) {
-        return super.transformIDToken(token, mappingModel, session, userSession, clientSessionCtx);
+        var transformedToken = super.transformIDToken(token, mappingModel, session, userSession, clientSessionCtx);
+        if (OIDCAttributeMapperHelper.includeInIDToken(mappingModel)) {
+            replaceClaimValues(transformedToken, mappingModel, userSession, clientSessionCtx);
+        }
+        return token;
     }
 
 //    protected void setClaim(final IDToken token,
@@ -160,40 +275,4 @@ public class RegexReplaceMapper extends AbstractOIDCProtocolMapper implements OI
 //                            final ClientSessionContext clientSessionContext) {
 //
 //    }
-
-    private Map<String, String> getConfigMap(final Map<String, String> config, final String configKey) {
-
-        String configMap = config.get(configKey);
-
-        try {
-            List<StringPair> map = JsonSerialization.readValue(configMap, MAP_TYPE_REPRESENTATION);
-            return map.stream().collect(Collectors.toMap(StringPair::getKey, StringPair::getValue));
-        } catch (IOException e) {
-            throw new RuntimeException("Could not deserialize json: " + configMap, e);
-        }
-    }
-
-    private static final TypeReference<List<StringPair>> MAP_TYPE_REPRESENTATION = new TypeReference<List<StringPair>>() {
-    };
-
-    static class StringPair {
-        private String key;
-        private String value;
-
-        public String getKey() {
-            return key;
-        }
-
-        public void setKey(String key) {
-            this.key = key;
-        }
-
-        public String getValue() {
-            return value;
-        }
-
-        public void setValue(String value) {
-            this.value = value;
-        }
-    }
 }
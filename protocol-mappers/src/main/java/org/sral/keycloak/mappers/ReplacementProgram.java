@@ -0,0 +1,169 @@
+package org.sral.keycloak.mappers;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiled form of a {@link RegexReplaceMapper} configuration: the target claims, each compiled to a {@link ClaimPath},
+ * and the ordered list of replacements, each with its pattern and replacement template already parsed.
+ */
+final class ReplacementProgram {
+
+    private static final TypeReference<List<StringPair>> MAP_TYPE_REPRESENTATION = new TypeReference<List<StringPair>>() {
+    };
+
+    private final Set<String> targetClaims;
+    private final List<ClaimPath> targetPaths;
+    private final List<Replacement> replacements;
+    private final MatchBudget budget;
+
+    private ReplacementProgram(final Set<String> targetClaims,
+                               final List<ClaimPath> targetPaths,
+                               final List<Replacement> replacements,
+                               final MatchBudget budget) {
+        this.targetClaims = targetClaims;
+        this.targetPaths = targetPaths;
+        this.replacements = replacements;
+        this.budget = budget;
+    }
+
+    static ReplacementProgram compile(final ProtocolMapperModel mapperModel) {
+        final var config = mapperModel.getConfig();
+
+        final Set<String> targetClaims = parseTargetClaims(config.get(RegexReplaceMapper.TARGET_CLAIMS_PROPERTY));
+        final List<ClaimPath> targetPaths = new ArrayList<>(targetClaims.size());
+        for (String claim : targetClaims) {
+            targetPaths.add(ClaimPath.compile(claim));
+        }
+
+        final String replacementMap = config.get(RegexReplaceMapper.REPLACEMENT_MAP_PROPERTY);
+        final List<StringPair> pairs;
+        try {
+            pairs = JsonSerialization.readValue(replacementMap, MAP_TYPE_REPRESENTATION);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not deserialize json: " + replacementMap, e);
+        }
+
+        final var engine = RegexEngine.fromConfig(config.get(RegexReplaceMapper.REGEX_ENGINE_PROPERTY));
+        final List<Replacement> replacements = new ArrayList<>(pairs.size());
+        for (StringPair pair : pairs) {
+            final var regex = engine.compile(pair.getKey());
+            final var replacement = pair.getValue() == null ? "" : pair.getValue();
+            replacements.add(new Replacement(regex, ReplacementTemplate.parse(replacement, regex)));
+        }
+
+        return new ReplacementProgram(Collections.unmodifiableSet(targetClaims), Collections.unmodifiableList(targetPaths),
+                Collections.unmodifiableList(replacements), MatchBudget.fromConfig(config));
+    }
+
+    /**
+     * @return the distinct, trimmed target claims of the comma separated configuration, in configured order.
+     */
+    static Set<String> parseTargetClaims(final String targetClaimsConfig) {
+        final Set<String> targetClaims = new LinkedHashSet<>();
+        if (targetClaimsConfig != null) {
+            for (String claim : targetClaimsConfig.split(",")) {
+                final var trimmed = claim.trim();
+                if (!trimmed.isEmpty()) {
+                    targetClaims.add(trimmed);
+                }
+            }
+        }
+        return targetClaims;
+    }
+
+    Set<String> getTargetClaims() {
+        return targetClaims;
+    }
+
+    List<ClaimPath> getTargetPaths() {
+        return targetPaths;
+    }
+
+    List<CompiledRegex> getPatterns() {
+        final List<CompiledRegex> patterns = new ArrayList<>(replacements.size());
+        for (Replacement replacement : replacements) {
+            patterns.add(replacement.regex);
+        }
+        return patterns;
+    }
+
+    MatchBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Runs every replacement, in configured order, over the value.
+     */
+    String apply(final String value) {
+        return apply(value, MatchBudget.Deadline.NONE);
+    }
+
+    /**
+     * Runs every replacement, in configured order, over the value.
+     *
+     * @throws MatchBudget.ExceededException if the deadline passes while matching.
+     */
+    String apply(final String value, final MatchBudget.Deadline deadline) {
+        var result = value;
+        for (Replacement replacement : replacements) {
+            result = replacement.apply(result, deadline);
+        }
+        return result;
+    }
+
+    static final class Replacement {
+        private final CompiledRegex regex;
+        private final ReplacementTemplate template;
+
+        private Replacement(final CompiledRegex regex, final ReplacementTemplate template) {
+            this.regex = regex;
+            this.template = template;
+        }
+
+        String apply(final String value, final MatchBudget.Deadline deadline) {
+            final RegexMatcher matcher = regex.matcher(deadline.guard(value));
+            if (!matcher.find()) {
+                return value;
+            }
+            final StringBuilder result = new StringBuilder(value.length() + 16);
+            int last = 0;
+            do {
+                result.append(value, last, matcher.start());
+                template.appendTo(result, matcher);
+                last = matcher.end();
+            } while (matcher.find());
+            result.append(value, last, value.length());
+            return result.toString();
+        }
+    }
+
+    static class StringPair {
+        private String key;
+        private String value;
+
+        public String getKey() {
+            return key;
+        }
+
+        public void setKey(String key) {
+            this.key = key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.sral.keycloak.mappers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replacement string parsed once into literal and group reference segments.
+ * <p>
+ * Understands the same syntax as {@link java.util.regex.Matcher#appendReplacement(StringBuilder, String)}: {@code $n} for numbered
+ * groups, {@code ${name}} for named groups and {@code \} to escape the next character. References are resolved
+ * against the pattern when the template is parsed, so a bad reference is reported at configuration time rather than
+ * on the first token.
+ */
+final class ReplacementTemplate {
+
+    // Each segment is a literal, an Integer group index or a GroupName.
+    private final Object[] segments;
+
+    private ReplacementTemplate(final Object[] segments) {
+        this.segments = segments;
+    }
+
+    static ReplacementTemplate parse(final String replacement, final CompiledRegex regex) {
+        final int groupCount = regex.groupCount();
+        final List<Object> segments = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i);
+            if (c == '\\') {
+                i++;
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                }
+                literal.append(replacement.charAt(i));
+                i++;
+            } else if (c == '$') {
+                i++;
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("Illegal group reference: group index is missing");
+                }
+                final Object group;
+                if (replacement.charAt(i) == '{') {
+                    i++;
+                    final int start = i;
+                    while (i < replacement.length() && replacement.charAt(i) != '}') {
+                        i++;
+                    }
+                    if (i == replacement.length()) {
+                        throw new IllegalArgumentException("named capturing group is missing trailing '}'");
+                    }
+                    final String name = replacement.substring(start, i);
+                    if (!regex.hasGroup(name)) {
+                        throw new IllegalArgumentException("No group with name {" + name + "}");
+                    }
+                    group = new GroupName(name);
+                    i++;
+                } else {
+                    // Same greedy rule as java.util.regex: keep consuming digits while the reference stays valid.
+                    int digit = replacement.charAt(i) - '0';
+                    if (digit < 0 || digit > 9) {
+                        throw new IllegalArgumentException("Illegal group reference");
+                    }
+                    int number = digit;
+                    i++;
+                    while (i < replacement.length()) {
+                        digit = replacement.charAt(i) - '0';
+                        if (digit < 0 || digit > 9) {
+                            break;
+                        }
+                        int next = number * 10 + digit;
+                        if (next > groupCount) {
+                            break;
+                        }
+                        number = next;
+                        i++;
+                    }
+                    if (number > groupCount) {
+                        throw new IndexOutOfBoundsException("No group " + number);
+                    }
+                    group = number;
+                }
+                if (literal.length() > 0) {
+                    segments.add(literal.toString());
+                    literal.setLength(0);
+                }
+                segments.add(group);
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        if (literal.length() > 0) {
+            segments.add(literal.toString());
+        }
+        return new ReplacementTemplate(segments.toArray());
+    }
+
+    void appendTo(final StringBuilder target, final RegexMatcher matcher) {
+        for (Object segment : segments) {
+            if (segment instanceof String) {
+                target.append((String) segment);
+            } else {
+                final String group = segment instanceof Integer
+                        ? matcher.group((Integer) segment)
+                        : matcher.group(((GroupName) segment).name);
+                if (group != null) {
+                    target.append(group);
+                }
+            }
+        }
+    }
+
+    private static final class GroupName {
+        private final String name;
+
+        private GroupName(final String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers what the mappers computed for one token request in an attribute of its client session context, so that
+ * the access token, the ID token and the userinfo response of the request are mapped with a single evaluation.
+ * <p>
+ * A {@link RegexMapper} keeps its values before they are merged with an existing claim and encoded, since those
+ * depend on the token at hand. A {@link RegexReplaceMapper} keeps the replacement of every claim value it rewrote, as
+ * its targeted claims need not be the same in every token. Mappers without an id, such as those being validated, are
+ * not remembered. The context lives for a single request on a single thread.
+ */
+final class RequestMemo {
+
+    static final String ATTRIBUTE = RequestMemo.class.getName();
+
+    /**
+     * Stands for a mapper that was skipped because of its match time budget.
+     */
+    private static final List<String> SKIPPED = Collections.emptyList();
+
+    private final Map<String, List<String>> valuesByMapperId = new HashMap<>();
+    private final Map<String, Map<String, String>> replacementsByMapperId = new HashMap<>();
+
+    private RequestMemo() {
+    }
+
+    /**
+     * @return the memo of the request, created on first use, or null if there is no client session context.
+     */
+    static RequestMemo of(final ClientSessionContext clientSessionContext) {
+        if (clientSessionContext == null) {
+            return null;
+        }
+        var memo = clientSessionContext.getAttribute(ATTRIBUTE, RequestMemo.class);
+        if (memo == null) {
+            memo = new RequestMemo();
+            clientSessionContext.setAttribute(ATTRIBUTE, memo);
+        }
+        return memo;
+    }
+
+    boolean hasValues(final ProtocolMapperModel mapperModel) {
+        return mapperModel.getId() != null && valuesByMapperId.containsKey(mapperModel.getId());
+    }
+
+    /**
+     * @return a modifiable copy of the values of the mapper, or null if it was skipped.
+     */
+    List<String> getValues(final ProtocolMapperModel mapperModel) {
+        final var values = valuesByMapperId.get(mapperModel.getId());
+        return values == SKIPPED ? null : new ArrayList<>(values);
+    }
+
+    /**
+     * @param values the values of the mapper, or null if it was skipped.
+     */
+    void putValues(final ProtocolMapperModel mapperModel, final List<String> values) {
+        if (mapperModel.getId() != null) {
+            valuesByMapperId.put(mapperModel.getId(), values == null ? SKIPPED : new ArrayList<>(values));
+        }
+    }
+
+    /**
+     * @return the replacements of the claim values the mapper rewrote so far, or null if the mapper has no id.
+     */
+    Map<String, String> getReplacements(final ProtocolMapperModel mapperModel) {
+        if (mapperModel.getId() == null) {
+            return null;
+        }
+        return replacementsByMapperId.computeIfAbsent(mapperModel.getId(), id -> new HashMap<>());
+    }
+}
@@ -0,0 +1,204 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Realm scoped cache of role id to the role and every role it is composed of, directly or through other composites.
+ * <p>
+ * Expanding a composite walks the role graph through the model, which is far more expensive than matching a role
+ * name, so each role is expanded once and reused by every token of every user holding it. Every expansion remembers
+ * the name of the role and the ids and names of the roles it is directly composed of, and is only used while the live
+ * role still has them, so renaming a role a user holds or removing a role from it is seen right away, on every node
+ * of a cluster. Changes further down the graph, such as a role removed from a nested composite, are not checked on
+ * every token: an expansion is built again at the latest {@code ttlSeconds} after it was built, by default
+ * {@value #DEFAULT_TTL_SECONDS}. Role changes reported through {@link CacheInvalidationEventListenerFactory} drop
+ * the realm's expansions on the node that saw them before then; a removed role drops every expansion containing it.
+ * <p>
+ * Each realm holds at most {@code maxEntriesPerRealm} expansions.
+ */
+final class RoleExpansionCache {
+
+    static final int DEFAULT_MAX_ENTRIES_PER_REALM = 10_000;
+    static final int DEFAULT_TTL_SECONDS = 60;
+
+    private static final RoleExpansionCache INSTANCE = new RoleExpansionCache(DEFAULT_MAX_ENTRIES_PER_REALM);
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Entry>> realms = new ConcurrentHashMap<>();
+    private volatile int maxEntriesPerRealm;
+    private volatile long ttlNanos = TimeUnit.SECONDS.toNanos(DEFAULT_TTL_SECONDS);
+
+    RoleExpansionCache(final int maxEntriesPerRealm) {
+        this.maxEntriesPerRealm = maxEntriesPerRealm;
+    }
+
+    static RoleExpansionCache getInstance() {
+        return INSTANCE;
+    }
+
+    void setMaxEntriesPerRealm(final int maxEntriesPerRealm) {
+        this.maxEntriesPerRealm = maxEntriesPerRealm;
+    }
+
+    void setTtlSeconds(final int ttlSeconds) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    /**
+     * @return the role itself followed by all roles it is composed of, each once.
+     */
+    Role[] expand(final RealmModel realm, final RoleModel role) {
+        if (!role.isComposite()) {
+            return new Role[]{Role.of(role)};
+        }
+        if (realm == null || role.getId() == null) {
+            return build(role);
+        }
+        final var expansions = realms.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>());
+        final var cached = expansions.get(role.getId());
+        final long now = System.nanoTime();
+        if (cached != null && now - cached.builtAt < ttlNanos && cached.isBuiltFrom(role)) {
+            return cached.roles;
+        }
+        final var entry = new Entry(role, build(role), now);
+        if (cached == null && expansions.size() >= maxEntriesPerRealm) {
+            evict(expansions);
+        }
+        expansions.put(role.getId(), entry);
+        return entry.roles;
+    }
+
+    void invalidateRealm(final String realmId) {
+        realms.remove(realmId);
+    }
+
+    /**
+     * Drops every expansion that contains the role, in any realm.
+     */
+    void invalidateRole(final String roleId) {
+        for (var expansions : realms.values()) {
+            expansions.values().removeIf(entry -> contains(entry.roles, roleId));
+        }
+    }
+
+    int size(final String realmId) {
+        final var expansions = realms.get(realmId);
+        return expansions == null ? 0 : expansions.size();
+    }
+
+    private static Role[] build(final RoleModel role) {
+        // Composites may form cycles, so this is a plain graph walk rather than a recursion over cached expansions.
+        final Map<String, Role> roles = new LinkedHashMap<>();
+        final Deque<RoleModel> pending = new ArrayDeque<>();
+        pending.add(role);
+        while (!pending.isEmpty()) {
+            final var next = pending.poll();
+            final var key = next.getId() == null ? next.getName() : next.getId();
+            if (roles.containsKey(key)) {
+                continue;
+            }
+            roles.put(key, Role.of(next));
+            if (next.isComposite()) {
+                pending.addAll(next.getComposites());
+            }
+        }
+        return roles.values().toArray(new Role[0]);
+    }
+
+    private static boolean contains(final Role[] expansion, final String roleId) {
+        for (Role role : expansion) {
+            if (roleId.equals(role.id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void evict(final ConcurrentMap<String, Entry> expansions) {
+        // Same policy as GroupPathCache: drop an arbitrary tenth of the realm's entries.
+        var toRemove = Math.max(1, maxEntriesPerRealm / 10);
+        final Iterator<String> keys = expansions.keySet().iterator();
+        while (toRemove-- > 0 && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    private static final class Entry {
+        private final String name;
+        /**
+         * The id and name, as {@code id/name}, of every role the role is directly composed of.
+         */
+        private final Set<String> composites;
+        private final Role[] roles;
+        private final long builtAt;
+
+        private Entry(final RoleModel role, final Role[] roles, final long builtAt) {
+            this.name = role.getName();
+            this.composites = composites(role);
+            this.roles = roles;
+            this.builtAt = builtAt;
+        }
+
+        private boolean isBuiltFrom(final RoleModel role) {
+            return Objects.equals(name, role.getName()) && composites.equals(composites(role));
+        }
+
+        private static Set<String> composites(final RoleModel role) {
+            final Set<String> composites = new HashSet<>();
+            for (RoleModel composite : role.getComposites()) {
+                composites.add(composite.getId() + "/" + composite.getName());
+            }
+            return composites;
+        }
+    }
+
+    /**
+     * What the mappers need of a role, detached from the model.
+     */
+    static final class Role {
+        final String id;
+        final String name;
+        /**
+         * The internal id of the client for client roles, otherwise null.
+         */
+        final String clientInternalId;
+        /**
+         * The client id as shown to admins for client roles, otherwise null.
+         */
+        final String clientId;
+
+        private Role(final String id, final String name, final String clientInternalId, final String clientId) {
+            this.id = id;
+            this.name = name;
+            this.clientInternalId = clientInternalId;
+            this.clientId = clientId;
+        }
+
+        static Role of(final RoleModel role) {
+            if (!role.isClientRole()) {
+                return new Role(role.getId(), role.getName(), null, null);
+            }
+            final var container = role.getContainer();
+            final String clientId = container instanceof ClientModel ? ((ClientModel) container).getClientId() : null;
+            return new Role(role.getId(), role.getName(), role.getContainerId(), clientId);
+        }
+
+        boolean isClientRole() {
+            return clientInternalId != null;
+        }
+    }
+}
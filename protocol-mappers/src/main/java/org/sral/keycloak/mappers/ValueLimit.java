@@ -0,0 +1,241 @@
+package org.sral.keycloak.mappers;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderConfigurationBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The order in which a {@link RegexMapper} looks at the inputs of a user, and how many values it emits at most.
+ * <p>
+ * With a limit the inputs are matched one after the other in that order, and matching stops as soon as there are
+ * enough values, so a mapper that only needs the first of a user's many groups matches a handful of them. In
+ * membership order the groups are taken as Keycloak returns them, without reading anything else; sorting by path
+ * builds the (cached) paths of all groups, and sorting by priority reads an attribute of every group, but neither
+ * matches more groups than needed. Other targets than groups are sorted by name or value for both.
+ * <p>
+ * A limited mapper does not take part in {@link CompositeEvaluation} or {@link ParallelMatching}, both of which
+ * match every input.
+ */
+final class ValueLimit {
+
+    static final String MAX_VALUES_PROPERTY = "max.values";
+    static final String ORDER_PROPERTY = "value.order";
+    static final String PRIORITY_ATTRIBUTE_PROPERTY = "priority.attribute";
+
+    static final String DEFAULT_PRIORITY_ATTRIBUTE = "priority";
+
+    static final ValueLimit NONE = new ValueLimit(0, Order.MEMBERSHIP, null);
+
+    enum Order {
+        MEMBERSHIP("membership"),
+        /**
+         * By full group path, or by name or value for other targets.
+         */
+        PATH("path"),
+        /**
+         * By the number in a group attribute, lowest first; groups without one come last. Ties are ordered by path.
+         */
+        PRIORITY("priority");
+
+        private final String configValue;
+
+        Order(final String configValue) {
+            this.configValue = configValue;
+        }
+
+        String getConfigValue() {
+            return configValue;
+        }
+
+        static Order fromConfig(final String configValue) {
+            if (configValue == null || configValue.isEmpty()) {
+                return MEMBERSHIP;
+            }
+            for (Order order : values()) {
+                if (order.configValue.equals(configValue)) {
+                    return order;
+                }
+            }
+            throw new IllegalArgumentException("Unknown value order: " + configValue);
+        }
+    }
+
+    private final int maxValues;
+    private final Order order;
+    private final String priorityAttribute;
+
+    private ValueLimit(final int maxValues, final Order order, final String priorityAttribute) {
+        this.maxValues = maxValues;
+        this.order = order;
+        this.priorityAttribute = priorityAttribute;
+    }
+
+    /**
+     * Adds the limit and order settings to the configuration properties of a mapper.
+     */
+    static void addConfigProperties(final List<ProviderConfigProperty> configProperties) {
+        configProperties.addAll(
+                ProviderConfigurationBuilder.create()
+                .property()
+                .name(MAX_VALUES_PROPERTY)
+                .label("Maximum values")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Stop matching once the claim has this many values, i.e. 1 for the first match only. 0 for no limit")
+                .defaultValue("0")
+                .add()
+
+                .property()
+                .name(ORDER_PROPERTY)
+                .label("Value order")
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .helpText("Order in which the inputs are matched and the values emitted. membership: as Keycloak returns them. path: by group path, role name or attribute value. priority: groups only, by the number in the priority attribute of the group, lowest first")
+                .options(Arrays.asList(Order.MEMBERSHIP.getConfigValue(), Order.PATH.getConfigValue(), Order.PRIORITY.getConfigValue()))
+                .defaultValue(Order.MEMBERSHIP.getConfigValue())
+                .add()
+
+                .property()
+                .name(PRIORITY_ATTRIBUTE_PROPERTY)
+                .label("Priority attribute")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("Group attribute holding the priority of a group for the priority order")
+                .defaultValue(DEFAULT_PRIORITY_ATTRIBUTE)
+                .add()
+
+                .build());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the maximum is not a non-negative number or the order is unknown.
+     */
+    static ValueLimit fromConfig(final Map<String, String> config) {
+        final var order = Order.fromConfig(config.get(ORDER_PROPERTY));
+        final var value = config.get(MAX_VALUES_PROPERTY);
+        int maxValues = 0;
+        if (value != null && !value.trim().isEmpty()) {
+            try {
+                maxValues = Integer.parseInt(value.trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(MAX_VALUES_PROPERTY + " is not a number: " + value, ex);
+            }
+            if (maxValues < 0) {
+                throw new IllegalArgumentException(MAX_VALUES_PROPERTY + " must not be negative: " + value);
+            }
+        }
+        if (maxValues == 0 && order == Order.MEMBERSHIP) {
+            return NONE;
+        }
+        var priorityAttribute = config.get(PRIORITY_ATTRIBUTE_PROPERTY);
+        if (priorityAttribute == null || priorityAttribute.trim().isEmpty()) {
+            priorityAttribute = DEFAULT_PRIORITY_ATTRIBUTE;
+        }
+        return new ValueLimit(maxValues, order, priorityAttribute.trim());
+    }
+
+    /**
+     * @return true if the inputs have to be matched one by one in this order, rather than all of them in any way.
+     */
+    boolean isActive() {
+        return this != NONE;
+    }
+
+    /**
+     * @return the maximum number of values, 0 for no limit.
+     */
+    int getMaxValues() {
+        return maxValues;
+    }
+
+    Order getOrder() {
+        return order;
+    }
+
+    /**
+     * @return true if matching can stop.
+     */
+    boolean isFilled(final Collection<String> values) {
+        return maxValues > 0 && values.size() >= maxValues;
+    }
+
+    /**
+     * @return the values, without those beyond the maximum that the last match added on top.
+     */
+    List<String> truncate(final List<String> values) {
+        return maxValues > 0 && values.size() > maxValues ? new ArrayList<>(values.subList(0, maxValues)) : values;
+    }
+
+    /**
+     * @return the groups within the subtree, if there is one, in this order.
+     */
+    List<GroupModel> orderGroups(final RealmModel realm,
+                                 final Collection<GroupModel> groups,
+                                 final GroupSubtreeCache.Subtree subtree) {
+        final List<GroupModel> ordered = new ArrayList<>(groups.size());
+        for (var group : groups) {
+            if (subtree == null || subtree.contains(group)) {
+                ordered.add(group);
+            }
+        }
+        if (order == Order.MEMBERSHIP) {
+            return ordered;
+        }
+
+        final var groupPaths = GroupPathCache.getInstance();
+        final var keys = new ArrayList<SortKey>(ordered.size());
+        for (var group : ordered) {
+            final int priority = order == Order.PRIORITY ? priority(group) : 0;
+            keys.add(new SortKey(group, priority, groupPaths.getPath(realm, group)));
+        }
+        keys.sort(Comparator.<SortKey>comparingInt(key -> key.priority).thenComparing(key -> key.path));
+        ordered.clear();
+        for (var key : keys) {
+            ordered.add(key.group);
+        }
+        return ordered;
+    }
+
+    /**
+     * @return the inputs in this order; other targets than groups have no priority, so it falls back to the path order.
+     */
+    List<String> orderInputs(final Collection<String> inputs) {
+        final List<String> ordered = new ArrayList<>(inputs);
+        if (order != Order.MEMBERSHIP) {
+            ordered.sort(Comparator.naturalOrder());
+        }
+        return ordered;
+    }
+
+    /**
+     * @return the priority of the group, {@link Integer#MAX_VALUE} if it has none.
+     */
+    int priority(final GroupModel group) {
+        final var value = group.getFirstAttribute(priorityAttribute);
+        if (value == null) {
+            return Integer.MAX_VALUE;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static final class SortKey {
+        private final GroupModel group;
+        private final int priority;
+        private final String path;
+
+        private SortKey(final GroupModel group, final int priority, final String path) {
+            this.group = group;
+            this.priority = priority;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.sral.keycloak.mappers;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Insertion ordered set of claim values, used to deduplicate the values of one mapper invocation.
+ * <p>
+ * A plain open-addressing table with linear probing next to an array of the values in insertion order, so that
+ * adding a value allocates nothing once the arrays are large enough. Each thread keeps one instance that is
+ * {@link #acquire() acquired} and {@link #release() released} around an invocation; only the final
+ * {@link #toList() list} is new.
+ */
+final class ValueSet extends AbstractCollection<String> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Arrays that grew beyond this for an exceptionally large user are not kept around for the next invocation.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 4096;
+
+    private static final ThreadLocal<ValueSet> POOL = ThreadLocal.withInitial(ValueSet::new);
+
+    private String[] table = new String[INITIAL_CAPACITY * 2];
+    private String[] values = new String[INITIAL_CAPACITY];
+    private int size;
+    private boolean containsNull;
+    private boolean inUse;
+
+    /**
+     * @return the set of the current thread, or a new one if that is already in use.
+     */
+    static ValueSet acquire() {
+        final ValueSet pooled = POOL.get();
+        if (pooled.inUse) {
+            return new ValueSet();
+        }
+        pooled.inUse = true;
+        return pooled;
+    }
+
+    /**
+     * Clears the set and hands it back to the pool of the thread.
+     */
+    void release() {
+        clear();
+        inUse = false;
+    }
+
+    @Override
+    public boolean add(final String value) {
+        if (value == null) {
+            if (containsNull) {
+                return false;
+            }
+            containsNull = true;
+            append(null);
+            return true;
+        }
+        final int mask = table.length - 1;
+        int slot = spread(value.hashCode()) & mask;
+        for (String existing = table[slot]; existing != null; existing = table[slot]) {
+            if (existing.equals(value)) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = value;
+        append(value);
+        // Keep the table at most half full.
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(final Object value) {
+        if (value == null) {
+            return containsNull;
+        }
+        final int mask = table.length - 1;
+        int slot = spread(value.hashCode()) & mask;
+        for (String existing = table[slot]; existing != null; existing = table[slot]) {
+            if (existing.equals(value)) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        if (table.length > MAX_RETAINED_CAPACITY * 2) {
+            table = new String[INITIAL_CAPACITY * 2];
+            values = new String[INITIAL_CAPACITY];
+        } else if (size > 0) {
+            Arrays.fill(table, null);
+            Arrays.fill(values, 0, size, null);
+        }
+        size = 0;
+        containsNull = false;
+    }
+
+    /**
+     * @return a new modifiable list of the values in insertion order.
+     */
+    List<String> toList() {
+        final List<String> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(values[i]);
+        }
+        return list;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public String next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return values[next++];
+            }
+        };
+    }
+
+    private void append(final String value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    private void rehash(final int capacity) {
+        final String[] rehashed = new String[capacity];
+        final int mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            final String value = values[i];
+            if (value != null) {
+                int slot = spread(value.hashCode()) & mask;
+                while (rehashed[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                rehashed[slot] = value;
+            }
+        }
+        table = rehashed;
+    }
+
+    private static int spread(final int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
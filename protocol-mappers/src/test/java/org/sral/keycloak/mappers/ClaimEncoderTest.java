@@ -0,0 +1,99 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.representations.AccessToken;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.when;
+
+public class ClaimEncoderTest {
+
+    private static final List<String> VALUES = Arrays.asList("/compartments/b", "/compartments/a", "/other");
+
+    @Test
+    public void shouldPrefixCompressSortedValues() {
+        assertThat(ClaimEncoder.prefixCompressed(VALUES)).containsExactly("0:/compartments/a", "14:b", "1:other");
+    }
+
+    @Test
+    public void shouldEncodeBitsetWithDictionaryVersion() {
+        final RealmModel realm = realm("realm-bitset", "/compartments/a\n/compartments/b\n/unused\n/other");
+        final AccessToken token = new AccessToken();
+
+        final int emitted = encoder(ClaimEncoder.Encoding.BITSET, 0, ClaimEncoder.Overflow.TRUNCATE).put(token, "azc", VALUES, realm, null);
+
+        assertThat(emitted).isEqualTo(3);
+        assertThat(Base64.getUrlDecoder().decode((String) token.getOtherClaims().get("azc"))).containsExactly(0b1011);
+        assertThat(token.getOtherClaims().get("azc" + ClaimEncoder.VERSION_CLAIM_SUFFIX))
+                .isEqualTo(ClaimDictionary.parse("/compartments/a\n/compartments/b\n/unused\n/other").getVersion());
+    }
+
+    @Test
+    public void shouldWriteListWhenValueIsNotInDictionary() {
+        final RealmModel realm = realm("realm-bitset-missing", "/compartments/a");
+        final AccessToken token = new AccessToken();
+
+        encoder(ClaimEncoder.Encoding.BITSET, 0, ClaimEncoder.Overflow.TRUNCATE).put(token, "azc", VALUES, realm, null);
+
+        assertThat(token.getOtherClaims().get("azc")).isEqualTo(VALUES);
+        assertThat(token.getOtherClaims()).doesNotContainKey("azc" + ClaimEncoder.VERSION_CLAIM_SUFFIX);
+    }
+
+    @Test
+    public void shouldTruncateToMaximumSize() {
+        final AccessToken token = new AccessToken();
+        // ["/compartments/b","/compartments/a"] is 37 bytes.
+        final int emitted = encoder(ClaimEncoder.Encoding.LIST, 37, ClaimEncoder.Overflow.TRUNCATE).put(token, "azc", VALUES, null, null);
+
+        assertThat(emitted).isEqualTo(2);
+        assertThat(token.getOtherClaims().get("azc")).isEqualTo(VALUES.subList(0, 2));
+        assertThat(ClaimEncoder.jsonSize(VALUES.subList(0, 2))).isEqualTo(37);
+    }
+
+    @Test
+    public void shouldOmitOrFallBackOnOverflow() {
+        final AccessToken omitted = new AccessToken();
+        encoder(ClaimEncoder.Encoding.PREFIX, 10, ClaimEncoder.Overflow.OMIT).put(omitted, "azc", VALUES, null, "too-many");
+        final AccessToken fallback = new AccessToken();
+        encoder(ClaimEncoder.Encoding.PREFIX, 10, ClaimEncoder.Overflow.FALLBACK).put(fallback, "azc", VALUES, null, "too-many");
+
+        assertThat(omitted.getOtherClaims()).doesNotContainKey("azc");
+        assertThat(fallback.getOtherClaims().get("azc")).isEqualTo(Collections.singletonList("too-many"));
+    }
+
+    @Test
+    public void shouldCountEscapesAndMultiByteCharacters() {
+        assertThat(ClaimEncoder.jsonSize("a\"b")).isEqualTo(6);
+        assertThat(ClaimEncoder.jsonSize("æ中😀")).isEqualTo(2 + 2 + 3 + 4);
+    }
+
+    @Test
+    public void shouldRequireDictionaryForBitset() {
+        final Map<String, String> config = new HashMap<>();
+        config.put(ClaimEncoder.ENCODING_PROPERTY, "bitset");
+
+        assertThatThrownBy(() -> ClaimEncoder.fromConfig(config)).isInstanceOf(IllegalArgumentException.class);
+        assertThat(ClaimEncoder.fromConfig(new HashMap<>())).isSameAs(ClaimEncoder.PLAIN);
+    }
+
+    private static ClaimEncoder encoder(final ClaimEncoder.Encoding encoding, final int maxBytes, final ClaimEncoder.Overflow overflow) {
+        return new ClaimEncoder(encoding, "groups", maxBytes, overflow);
+    }
+
+    private static RealmModel realm(final String id, final String dictionary) {
+        final RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getId()).thenReturn(id);
+        when(realm.getAttribute(ClaimDictionary.ATTRIBUTE_PREFIX + "groups")).thenReturn(dictionary);
+        return realm;
+    }
+}
@@ -0,0 +1,124 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.representations.AccessToken;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ClaimPathTest {
+
+    private static final UnaryOperator<String> UPPER_CASE = String::toUpperCase;
+
+    @Test
+    public void shouldRewriteNestedClaim() {
+        final AccessToken token = new AccessToken();
+        final Map<String, Object> ext = new HashMap<>();
+        ext.put("tenant", "a");
+        ext.put("other", "b");
+        token.getOtherClaims().put("ext", ext);
+
+        apply("ext.tenant", token);
+
+        assertThat(ext).containsEntry("tenant", "A").containsEntry("other", "b");
+    }
+
+    @Test
+    public void shouldRewriteEveryElementOfList() {
+        final AccessToken token = new AccessToken();
+        final Map<String, Object> first = new HashMap<>(Collections.singletonMap("name", "a"));
+        final Map<String, Object> second = new HashMap<>(Collections.singletonMap("name", "b"));
+        token.getOtherClaims().put("tenants", Arrays.asList(first, second));
+        token.getOtherClaims().put("groups", Arrays.asList("x", "y"));
+
+        apply("tenants[*].name", token);
+        apply("groups[*]", token);
+
+        assertThat(first).containsEntry("name", "A");
+        assertThat(second).containsEntry("name", "B");
+        assertThat(token.getOtherClaims().get("groups")).isEqualTo(Arrays.asList("X", "Y"));
+    }
+
+    @Test
+    public void shouldRewriteTypedRoles() {
+        final AccessToken token = new AccessToken();
+        token.addAccess("account").addRole("manage-account");
+        token.addAccess("broker").addRole("read-token");
+        token.setRealmAccess(new AccessToken.Access().addRole("user"));
+
+        apply("resource_access.account.roles", token);
+        apply("realm_access.roles", token);
+
+        assertThat(token.getResourceAccess("account").getRoles()).containsExactly("MANAGE-ACCOUNT");
+        assertThat(token.getResourceAccess("broker").getRoles()).containsExactly("read-token");
+        assertThat(token.getRealmAccess().getRoles()).containsExactly("USER");
+    }
+
+    @Test
+    public void shouldRewriteEveryEntryOfObject() {
+        final AccessToken token = new AccessToken();
+        token.addAccess("account").addRole("manage-account");
+        token.addAccess("broker").addRole("read-token");
+
+        apply("resource_access.*.roles", token);
+
+        assertThat(token.getResourceAccess("account").getRoles()).containsExactly("MANAGE-ACCOUNT");
+        assertThat(token.getResourceAccess("broker").getRoles()).containsExactly("READ-TOKEN");
+    }
+
+    @Test
+    public void shouldKeepEscapedDotInName() {
+        final AccessToken token = new AccessToken();
+        token.getOtherClaims().put("a.b", "value");
+
+        apply("a\\.b", token);
+
+        assertThat(token.getOtherClaims()).containsEntry("a.b", "VALUE");
+    }
+
+    @Test
+    public void shouldOnlyWriteChangedValues() {
+        final AccessToken token = new AccessToken();
+        token.getOtherClaims().put("azc", Arrays.asList("A", "B"));
+        final List<ClaimPath.Write> writes = new ArrayList<>();
+
+        ClaimPath.compile("azc").collect(token, UPPER_CASE, writes);
+        ClaimPath.compile("missing.path").collect(token, UPPER_CASE, writes);
+
+        assertThat(writes).isEmpty();
+    }
+
+    @Test
+    public void shouldNotWriteEqualValuesOfAnotherInstance() {
+        final AccessToken token = new AccessToken();
+        token.getOtherClaims().put("azc", Arrays.asList("a", "b"));
+        token.getOtherClaims().put("tenant", "a");
+        final List<ClaimPath.Write> writes = new ArrayList<>();
+
+        // As a rewrite does when it takes the replacement from the memo of the request.
+        ClaimPath.compile("azc").collect(token, value -> new String(value), writes);
+        ClaimPath.compile("tenant").collect(token, value -> new String(value), writes);
+
+        assertThat(writes).isEmpty();
+    }
+
+    @Test
+    public void shouldRejectInvalidPaths() {
+        assertThatThrownBy(() -> ClaimPath.compile("a..b")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ClaimPath.compile("a[0]")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static void apply(final String path, final AccessToken token) {
+        final List<ClaimPath.Write> writes = new ArrayList<>();
+        ClaimPath.compile(path).collect(token, UPPER_CASE, writes);
+        writes.forEach(ClaimPath.Write::apply);
+    }
+}
@@ -0,0 +1,64 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompiledConfigCacheTest {
+
+    @Test
+    public void shouldCompileOncePerConfig() {
+        final AtomicInteger compilations = new AtomicInteger();
+        final CompiledConfigCache<Integer> cache = new CompiledConfigCache<>(10, m -> compilations.incrementAndGet());
+        final ProtocolMapperModel mapperModel = mapper("id-1", "(.*)");
+
+        cache.get(mapperModel);
+        cache.get(mapperModel);
+
+        assertThat(compilations.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldRebuildWhenConfigChanges() {
+        final CompiledConfigCache<String> cache = new CompiledConfigCache<>(10, m -> m.getConfig().get("p"));
+        final ProtocolMapperModel mapperModel = mapper("id-1", "(.*)");
+
+        assertThat(cache.get(mapperModel)).isEqualTo("(.*)");
+        mapperModel.getConfig().put("p", "/compartments/(.*)");
+
+        assertThat(cache.get(mapperModel)).isEqualTo("/compartments/(.*)");
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() {
+        final AtomicInteger compilations = new AtomicInteger();
+        final CompiledConfigCache<Integer> cache = new CompiledConfigCache<>(2, m -> compilations.incrementAndGet());
+        final ProtocolMapperModel first = mapper("id-1", "a");
+        final ProtocolMapperModel second = mapper("id-2", "b");
+        final ProtocolMapperModel third = mapper("id-3", "c");
+
+        cache.get(first);
+        cache.get(second);
+        cache.get(first);
+        cache.get(third);
+        cache.get(first);
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(compilations.get()).isEqualTo(3);
+    }
+
+    private static ProtocolMapperModel mapper(final String id, final String pattern) {
+        final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+        mapperModel.setId(id);
+        final Map<String, String> config = new HashMap<>();
+        config.put("p", pattern);
+        mapperModel.setConfig(config);
+        return mapperModel;
+    }
+}
@@ -0,0 +1,78 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class DryRunTest {
+
+    @Test
+    public void shouldProfileRegexMapperForUser() {
+        final RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getId()).thenReturn("realm-dry-run");
+        final GroupModel top = group("1", "compartments", null);
+        final GroupModel a = group("2", "a", top);
+        final GroupModel b = group("3", "b", top);
+        final UserModel user = Mockito.mock(UserModel.class);
+        when(user.getGroups()).thenReturn(new LinkedHashSet<>(Arrays.asList(a, b, top)));
+
+        final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+        final Map<String, String> config = new HashMap<>();
+        config.put(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME, "azc");
+        config.put(RegexMapper.FULL_PATH_PROPERTY, "true");
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "/compartments/(.*)");
+        config.put(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY, "1");
+        mapperModel.setConfig(config);
+
+        final Map<String, Object> result = DryRun.regexMapper(realm, user, mapperModel, null, true, 3);
+
+        assertThat((Map<String, Object>) result.get("claims")).containsEntry("azc", Arrays.asList("a", "b"));
+        assertThat(result).containsEntry("inputs", 3).containsEntry("matched", 2).containsEntry("budgetExceeded", false);
+        final Map<String, Map<String, Object>> stages = (Map<String, Map<String, Object>>) result.get("stages");
+        assertThat(stages).containsOnlyKeys("groupFetch", "pathBuild", "match", "extract", "encode");
+        assertThat(stages.get("match")).containsEntry("calls", 3L);
+        assertThat(stages.get("extract")).containsEntry("calls", 2L);
+    }
+
+    @Test
+    public void shouldProfileRegexReplaceMapperOverClaims() {
+        final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+        final Map<String, String> config = new HashMap<>();
+        config.put(RegexReplaceMapper.TARGET_CLAIMS_PROPERTY, "azc");
+        config.put(RegexReplaceMapper.REPLACEMENT_MAP_PROPERTY, "[{\"key\":\"^/compartments/(.*)\",\"value\":\"$1\"}]");
+        mapperModel.setConfig(config);
+        final Map<String, Object> claims = new HashMap<>();
+        claims.put("azc", Arrays.asList("/compartments/a", "other"));
+
+        final Map<String, Object> result = DryRun.regexReplaceMapper(mapperModel, claims, 1);
+
+        assertThat((Map<String, Object>) result.get("claims")).containsEntry("azc", Arrays.asList("a", "other"));
+        assertThat(result).containsEntry("values", 2).containsEntry("replacements", 1);
+        assertThat((Map<String, Object>) result.get("stages")).containsOnlyKeys("replace");
+        assertThat(claims.get("azc")).isEqualTo(Arrays.asList("/compartments/a", "other"));
+    }
+
+    private static GroupModel group(final String id, final String name, final GroupModel parent) {
+        final GroupModel group = Mockito.mock(GroupModel.class);
+        when(group.getId()).thenReturn(id);
+        when(group.getName()).thenReturn(name);
+        when(group.getParent()).thenReturn(parent);
+        if (parent != null) {
+            final String parentId = parent.getId();
+            when(group.getParentId()).thenReturn(parentId);
+        }
+        return group;
+    }
+}
@@ -0,0 +1,134 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class GroupMatchTableTest {
+
+    @Test
+    public void shouldReuseMatchOfGroup() {
+        final RegexMapperPlan plan = plan("team-(.*)", false);
+        final RealmModel realm = realm("realm-reuse");
+        final GroupModel group = group("1", "team-a", null);
+
+        final RegexMapperPlan.Match first = plan.getGroupMatches().match(plan, realm, group, MatchBudget.Deadline.NONE);
+        final RegexMapperPlan.Match second = plan.getGroupMatches().match(plan, realm, group, MatchBudget.Deadline.NONE);
+
+        assertThat(second).isSameAs(first);
+        assertThat(values(second)).containsExactly("a");
+        assertThat(plan.getGroupMatches().size("realm-reuse")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldMatchRenamedGroupAgain() {
+        final RegexMapperPlan plan = plan("team-(.*)", false);
+        final RealmModel realm = realm("realm-rename");
+        final GroupModel group = group("1", "team-a", null);
+        plan.getGroupMatches().match(plan, realm, group, MatchBudget.Deadline.NONE);
+
+        when(group.getName()).thenReturn("team-b");
+
+        assertThat(values(plan.getGroupMatches().match(plan, realm, group, MatchBudget.Deadline.NONE))).containsExactly("b");
+    }
+
+    @Test
+    public void shouldInvalidateDescendantsOfGroupNamedInAdminEvent() {
+        final RegexMapperPlan plan = plan("/top/(.*)", true);
+        final RealmModel realm = realm("realm-match-event");
+        final GroupModel top = group("20", "top", null);
+        final GroupModel level1 = group("21", "level1", top);
+        final GroupModel other = group("22", "other", null);
+        plan.getGroupMatches().match(plan, realm, level1, MatchBudget.Deadline.NONE);
+        plan.getGroupMatches().match(plan, realm, other, MatchBudget.Deadline.NONE);
+
+        when(top.getName()).thenReturn("renamed");
+        final AdminEvent event = new AdminEvent();
+        event.setRealmId("realm-match-event");
+        event.setResourceType(ResourceType.GROUP);
+        event.setResourcePath("groups/20");
+        CacheInvalidationEventListenerFactory.onAdminEvent(event);
+
+        assertThat(plan.getGroupMatches().size("realm-match-event")).isEqualTo(1);
+        assertThat(values(plan.getGroupMatches().match(plan, realm, level1, MatchBudget.Deadline.NONE))).isEmpty();
+    }
+
+    @Test
+    public void shouldMatchAgainAfterAncestorRenameWithoutInvalidation() {
+        final RegexMapperPlan plan = plan("/top/(.*)", true);
+        final RealmModel realm = realm("realm-match-ancestor");
+        final GroupModel top = group("30", "top", null);
+        final GroupModel level1 = group("31", "level1", top);
+        assertThat(values(plan.getGroupMatches().match(plan, realm, level1, MatchBudget.Deadline.NONE))).containsExactly("level1");
+
+        when(top.getName()).thenReturn("renamed");
+
+        assertThat(values(plan.getGroupMatches().match(plan, realm, level1, MatchBudget.Deadline.NONE))).isEmpty();
+    }
+
+    @Test
+    public void shouldBoundEntriesOfAllTables() {
+        final RealmModel realm = realm("realm-match-bound");
+        final RegexMapperPlan first = plan("team-(.*)", false);
+        final RegexMapperPlan second = plan("(.*)", false);
+        GroupMatchTable.setMaxEntries(10);
+        try {
+            for (int i = 0; i < 50; i++) {
+                final GroupModel group = group("bound-" + i, "team-" + i, null);
+                first.getGroupMatches().match(first, realm, group, MatchBudget.Deadline.NONE);
+                second.getGroupMatches().match(second, realm, group, MatchBudget.Deadline.NONE);
+            }
+
+            assertThat(first.getGroupMatches().size("realm-match-bound") + second.getGroupMatches().size("realm-match-bound"))
+                    .isLessThanOrEqualTo(10);
+        } finally {
+            GroupMatchTable.setMaxEntries(GroupMatchTable.DEFAULT_MAX_ENTRIES);
+        }
+    }
+
+    private static List<String> values(final RegexMapperPlan.Match match) {
+        final List<String> values = new ArrayList<>();
+        match.addTo(values);
+        return values;
+    }
+
+    private static RegexMapperPlan plan(final String pattern, final boolean fullPath) {
+        final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+        final Map<String, String> config = new HashMap<>();
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, pattern);
+        config.put(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY, "1");
+        config.put(RegexMapper.FULL_PATH_PROPERTY, Boolean.toString(fullPath));
+        mapperModel.setConfig(config);
+        return RegexMapperPlan.compile(mapperModel);
+    }
+
+    private static RealmModel realm(final String id) {
+        final RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getId()).thenReturn(id);
+        return realm;
+    }
+
+    private static GroupModel group(final String id, final String name, final GroupModel parent) {
+        final GroupModel group = Mockito.mock(GroupModel.class);
+        when(group.getId()).thenReturn(id);
+        when(group.getName()).thenReturn(name);
+        when(group.getParent()).thenReturn(parent);
+        if (parent != null) {
+            final String parentId = parent.getId();
+            when(group.getParentId()).thenReturn(parentId);
+        }
+        return group;
+    }
+}
@@ -0,0 +1,136 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.mockito.Mockito;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class GroupPathCacheTest {
+
+    private final GroupPathCache cache = new GroupPathCache(100);
+    private final RealmModel realm = realm("realm-1");
+
+    @Test
+    public void shouldBuildFullPath() {
+        final GroupModel top = group("1", "top", null);
+        final GroupModel level1 = group("2", "level1", top);
+        final GroupModel level2 = group("3", "level2", level1);
+
+        assertThat(cache.getPath(realm, level2)).isEqualTo("/top/level1/level2");
+        assertThat(cache.getPath(realm, level1)).isEqualTo("/top/level1");
+    }
+
+    @Test
+    public void shouldReuseCachedPaths() {
+        final GroupModel top = group("1", "top", null);
+        final GroupModel level1 = group("2", "level1", top);
+
+        final String first = cache.getPath(realm, level1);
+        final String second = cache.getPath(realm, level1);
+
+        assertThat(second).isSameAs(first);
+    }
+
+    @Test
+    public void shouldDetectRenamedAncestorWithoutInvalidation() {
+        final GroupModel top = group("1", "top", null);
+        final GroupModel level1 = group("2", "level1", top);
+        final GroupModel level2 = group("3", "level2", level1);
+        cache.getPath(realm, level2);
+
+        when(top.getName()).thenReturn("renamed");
+
+        assertThat(cache.getPath(realm, level2)).isEqualTo("/renamed/level1/level2");
+    }
+
+    @Test
+    public void shouldDetectMovedAncestorWithoutInvalidation() {
+        final GroupModel top = group("1", "top", null);
+        final GroupModel other = group("4", "other", null);
+        final GroupModel level1 = group("2", "level1", top);
+        final GroupModel level2 = group("3", "level2", level1);
+        cache.getPath(realm, level2);
+
+        when(level1.getParent()).thenReturn(other);
+        when(level1.getParentId()).thenReturn("4");
+
+        assertThat(cache.getPath(realm, level2)).isEqualTo("/other/level1/level2");
+    }
+
+    @Test
+    public void shouldDetectRenamedGroup() {
+        final GroupModel top = group("1", "top", null);
+        final GroupModel level1 = group("2", "level1", top);
+        cache.getPath(realm, level1);
+
+        when(level1.getName()).thenReturn("renamed");
+
+        assertThat(cache.getPath(realm, level1)).isEqualTo("/top/renamed");
+    }
+
+    @Test
+    public void shouldInvalidateDescendantsOfChangedAncestor() {
+        final GroupModel top = group("1", "top", null);
+        final GroupModel level1 = group("2", "level1", top);
+        final GroupModel level2 = group("3", "level2", level1);
+        final GroupModel other = group("4", "other", null);
+        cache.getPath(realm, level2);
+        cache.getPath(realm, other);
+
+        when(top.getName()).thenReturn("renamed");
+        cache.invalidate("realm-1", "1");
+
+        assertThat(cache.size("realm-1")).isEqualTo(1);
+        assertThat(cache.getPath(realm, level2)).isEqualTo("/renamed/level1/level2");
+    }
+
+    @Test
+    public void shouldInvalidateGroupNamedInAdminEvent() {
+        final GroupPathCache shared = GroupPathCache.getInstance();
+        final RealmModel eventRealm = realm("realm-admin-event");
+        final GroupModel top = group("10", "top", null);
+        final GroupModel level1 = group("11", "level1", top);
+        shared.getPath(eventRealm, level1);
+
+        final AdminEvent event = new AdminEvent();
+        event.setRealmId("realm-admin-event");
+        event.setResourceType(ResourceType.GROUP);
+        event.setResourcePath("groups/10");
+        CacheInvalidationEventListenerFactory.onAdminEvent(event);
+
+        assertThat(shared.size("realm-admin-event")).isZero();
+    }
+
+    @Test
+    public void shouldStayWithinBounds() {
+        final GroupPathCache small = new GroupPathCache(10);
+        for (int i = 0; i < 100; i++) {
+            small.getPath(realm, group("g" + i, "group" + i, null));
+        }
+
+        assertThat(small.size("realm-1")).isLessThanOrEqualTo(10);
+    }
+
+    private static RealmModel realm(final String id) {
+        final RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getId()).thenReturn(id);
+        return realm;
+    }
+
+    private static GroupModel group(final String id, final String name, final GroupModel parent) {
+        final GroupModel group = Mockito.mock(GroupModel.class);
+        when(group.getId()).thenReturn(id);
+        when(group.getName()).thenReturn(name);
+        when(group.getParent()).thenReturn(parent);
+        if (parent != null) {
+            final String parentId = parent.getId();
+            when(group.getParentId()).thenReturn(parentId);
+        }
+        return group;
+    }
+}
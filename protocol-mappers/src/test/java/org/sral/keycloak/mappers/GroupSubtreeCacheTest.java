@@ -0,0 +1,140 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class GroupSubtreeCacheTest {
+
+    private final GroupSubtreeCache cache = GroupSubtreeCache.getInstance();
+    private final Map<String, GroupModel> groups = new HashMap<>();
+
+    @Test
+    public void shouldContainRootAndDescendants() {
+        final RealmModel realm = realm("realm-subtree");
+        final GroupModel compartments = group("1", "compartments", null);
+        final GroupModel blue = group("2", "blue", compartments);
+        final GroupModel team = group("3", "team", blue);
+        final GroupModel other = group("4", "other", null);
+        subGroups(compartments, blue);
+        subGroups(blue, team);
+        when(realm.getTopLevelGroups()).thenReturn(Arrays.asList(other, compartments));
+
+        final GroupSubtreeCache.Subtree subtree = cache.get(realm, "/compartments");
+
+        assertThat(subtree.contains(compartments)).isTrue();
+        assertThat(subtree.contains(team)).isTrue();
+        assertThat(subtree.contains(other)).isFalse();
+    }
+
+    @Test
+    public void shouldPickUpGroupChainsCreatedBelowCachedSubtree() {
+        final RealmModel realm = realm("realm-subtree-new");
+        final GroupModel compartments = group("1", "compartments", null);
+        when(realm.getTopLevelGroups()).thenReturn(Arrays.asList(compartments));
+        final GroupSubtreeCache.Subtree subtree = cache.get(realm, "/compartments");
+
+        final GroupModel created = group("2", "created", compartments);
+        final GroupModel grandchild = group("3", "grandchild", created);
+        final GroupModel greatGrandchild = group("4", "great-grandchild", grandchild);
+
+        assertThat(subtree.contains(greatGrandchild)).isTrue();
+        assertThat(subtree.contains(grandchild)).isTrue();
+    }
+
+    @Test
+    public void shouldDropGroupsMovedOutOfSubtree() {
+        final RealmModel realm = realm("realm-subtree-moved");
+        final GroupModel compartments = group("1", "compartments", null);
+        final GroupModel blue = group("2", "blue", compartments);
+        final GroupModel team = group("3", "team", blue);
+        final GroupModel other = group("4", "other", null);
+        subGroups(compartments, blue);
+        subGroups(blue, team);
+        when(realm.getTopLevelGroups()).thenReturn(Arrays.asList(other, compartments));
+        final GroupSubtreeCache.Subtree subtree = cache.get(realm, "/compartments");
+        assertThat(subtree.contains(team)).isTrue();
+
+        when(blue.getParent()).thenReturn(other);
+        when(blue.getParentId()).thenReturn("4");
+
+        assertThat(cache.get(realm, "/compartments").contains(blue)).isFalse();
+        assertThat(cache.get(realm, "/compartments").contains(team)).isFalse();
+    }
+
+    @Test
+    public void shouldNotCacheMissingRoot() {
+        final RealmModel realm = realm("realm-subtree-missing");
+        assertThat(cache.get(realm, "/missing").contains(group("1", "missing", null))).isFalse();
+
+        final GroupModel missing = group("1", "missing", null);
+        final GroupModel child = group("2", "child", missing);
+        when(realm.getTopLevelGroups()).thenReturn(Arrays.asList(missing));
+
+        assertThat(cache.get(realm, "/missing").contains(child)).isTrue();
+    }
+
+    @Test
+    public void shouldLookUpRenamedRootAgain() {
+        final RealmModel realm = realm("realm-subtree-renamed");
+        final GroupModel compartments = group("1", "compartments", null);
+        final GroupModel child = group("2", "child", compartments);
+        when(realm.getTopLevelGroups()).thenReturn(Arrays.asList(compartments));
+        assertThat(cache.get(realm, "/compartments").contains(child)).isTrue();
+
+        when(compartments.getName()).thenReturn("renamed");
+
+        assertThat(cache.get(realm, "/compartments").contains(child)).isFalse();
+    }
+
+    @Test
+    public void shouldInvalidateRealmOnGroupAdminEvent() {
+        final RealmModel realm = realm("realm-subtree-event");
+        final GroupModel compartments = group("10", "compartments", null);
+        when(realm.getTopLevelGroups()).thenReturn(Arrays.asList(compartments));
+        cache.get(realm, "/compartments");
+
+        final AdminEvent event = new AdminEvent();
+        event.setRealmId("realm-subtree-event");
+        event.setResourceType(ResourceType.GROUP);
+        event.setResourcePath("groups/11");
+        CacheInvalidationEventListenerFactory.onAdminEvent(event);
+
+        assertThat(cache.size("realm-subtree-event")).isZero();
+    }
+
+    private static void subGroups(final GroupModel group, final GroupModel... subGroups) {
+        when(group.getSubGroups()).thenReturn(new HashSet<>(Arrays.asList(subGroups)));
+    }
+
+    private RealmModel realm(final String id) {
+        final RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getId()).thenReturn(id);
+        when(realm.getGroupById(Mockito.anyString())).thenAnswer(invocation -> groups.get(invocation.<String>getArgument(0)));
+        return realm;
+    }
+
+    private GroupModel group(final String id, final String name, final GroupModel parent) {
+        final GroupModel group = Mockito.mock(GroupModel.class);
+        when(group.getId()).thenReturn(id);
+        when(group.getName()).thenReturn(name);
+        when(group.getParent()).thenReturn(parent);
+        groups.put(id, group);
+        if (parent != null) {
+            final String parentId = parent.getId();
+            when(group.getParentId()).thenReturn(parentId);
+        }
+        return group;
+    }
+}
@@ -0,0 +1,232 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class LinearRegexTest {
+
+    private static final String[] PATTERNS = {
+            "(.*)",
+            "/compartments/(.*)",
+            "^/compartments/([^/]+)/(.*)$",
+            "^team-([a-z0-9]+)$",
+            "(?<tenant>[a-z]+)-(?<env>dev|test|prod)",
+            "(a|ab)(c|bcd)(d*)",
+            "(a+?)(a*)",
+            "x{2,3}(y{0,2}?)",
+            "\\bgroup\\B.?",
+            "[^\\d\\s]+(\\d{1,3})",
+            "(\\w+)\\.(\\w+)",
+            "[-a-c\\]]+",
+            "\\Q(x)\\E+y",
+            "a|b|",
+    };
+
+    private static final String[] INPUTS = {
+            "",
+            "a",
+            "aaa",
+            "abcd",
+            "/compartments/alpha",
+            "/compartments/alpha/beta/gamma",
+            "team-ops42",
+            "team-Ops",
+            "ops-dev web-prod",
+            "xxxyy",
+            "groups group1",
+            "abc123 de45",
+            "first.second.third",
+            "-a]c",
+            "(x)))y",
+            "line\n",
+    };
+
+    private static final String[] ASSERTIONS = {"\\b", "\\B", "^", "$", "\\A", "\\z", "\\Z"};
+
+    private static final String[] ATOMS = {"a", "b", "x", " ", ".", "[ab]", "[^a]", "\\w", "\\W", "\\d", "\\s"};
+
+    private static final String[] QUANTIFIERS = {"", "", "", "?", "*", "+", "??", "*?", "+?", "{1,2}", "{0,2}?"};
+
+    private static final String[] GROUPS = {"(a|b)", "(ab|a)", "(?:a|x )", "(?<n>a+)", "(\\w\\b)", "(?:\\bx)"};
+
+    private static final String[] EMPTY_GROUPS = {"(a*)", "(b?)", "()", "(\\b)", "(?:a|)", "(x*?)"};
+
+    private static final String[] GENERATED_INPUTS = {
+            "",
+            "a",
+            " x",
+            "abc",
+            "ab ab",
+            "my tenant",
+            "xx a1b",
+            "ba_x",
+            "aab\n",
+            "x\r\n",
+            " a b ",
+    };
+
+    @Test
+    public void shouldMatchLikeJavaUtilRegex() {
+        for (String regex : PATTERNS) {
+            final Pattern expected = Pattern.compile(regex);
+            final LinearRegex actual = LinearRegex.compile(regex);
+            assertThat(actual.groupCount()).as(regex).isEqualTo(expected.matcher("").groupCount());
+            for (String input : INPUTS) {
+                final Matcher expectedMatcher = expected.matcher(input);
+                final RegexMatcher actualMatcher = actual.matcher(input);
+                final String description = regex + " on \"" + input + "\"";
+                assertThat(actualMatcher.matches()).as(description).isEqualTo(expectedMatcher.matches());
+                assertThat(groups(actualMatcher)).as(description).isEqualTo(groups(expectedMatcher));
+                assertThat(findAll(actual.matcher(input))).as(description).isEqualTo(findAll(expected.matcher(input)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldMatchGeneratedPatternsLikeJavaUtilRegex() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 2_000; i++) {
+            final String regex = generatePattern(random);
+            final Pattern expected = Pattern.compile(regex);
+            final LinearRegex actual = LinearRegex.compile(regex);
+            for (String input : GENERATED_INPUTS) {
+                final String description = regex + " on \"" + input + "\"";
+                assertThat(actual.matcher(input).matches()).as(description).isEqualTo(expected.matcher(input).matches());
+                assertThat(groups(actual.matcher(input))).as(description).isEqualTo(groups(expected.matcher(input)));
+                assertThat(findAll(actual.matcher(input))).as(description).isEqualTo(findAll(expected.matcher(input)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldFindMatchesStartingWithAnAssertion() {
+        assertThat(LinearRegex.compile("\\bx").matcher(" x").find()).isTrue();
+        assertThat(LinearRegex.compile("$").matcher("abc").find()).isTrue();
+        final RegexMatcher matcher = LinearRegex.compile("\\btenant").matcher("my tenant");
+        assertThat(matcher.find()).isTrue();
+        assertThat(matcher.start()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldResolveNamedGroups() {
+        final RegexMatcher matcher = LinearRegex.compile("(?<tenant>[a-z]+)/(?<team>[a-z]+)").matcher("acme/ops");
+
+        assertThat(matcher.matches()).isTrue();
+        assertThat(matcher.group("tenant")).isEqualTo("acme");
+        assertThat(matcher.group("team")).isEqualTo("ops");
+    }
+
+    @Test
+    public void shouldRejectSyntaxThatNeedsBacktracking() {
+        for (String regex : new String[]{"(a)\\1", "(?=a)", "(?<!a)b", "(?>a)", "a*+", "(?i)a", "\\k<x>", "[a[b]]", "\\p{L}"}) {
+            assertThatThrownBy(() -> LinearRegex.compile(regex)).as(regex).isInstanceOf(PatternSyntaxException.class);
+        }
+    }
+
+    @Test
+    public void shouldRejectInvalidPatterns() {
+        for (String regex : new String[]{"(a", "a)", "[a", "*a", "a{2,1}", "a{"}) {
+            assertThatThrownBy(() -> LinearRegex.compile(regex)).as(regex).isInstanceOf(PatternSyntaxException.class);
+        }
+    }
+
+    @Test(timeout = 5_000)
+    public void shouldMatchCatastrophicPatternsInLinearTime() {
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            input.append('a');
+        }
+        input.append('!');
+
+        assertThat(LinearRegex.compile("(a+)+$").matcher(input).matches()).isFalse();
+        assertThat(LinearRegex.compile("(a|aa)*b").matcher(input).find()).isFalse();
+    }
+
+    /**
+     * A sequence of assertions, character atoms and groups, optionally quantified, sometimes with an alternative.
+     * Groups that can match the empty string are not quantified, which is the one known difference (see
+     * {@link LinearRegex}).
+     */
+    private static String generatePattern(final Random random) {
+        final StringBuilder regex = new StringBuilder(generateSequence(random));
+        if (random.nextInt(4) == 0) {
+            regex.append('|').append(generateSequence(random));
+        }
+        return regex.toString();
+    }
+
+    private static String generateSequence(final Random random) {
+        final StringBuilder sequence = new StringBuilder();
+        final int terms = random.nextInt(4);
+        for (int i = 0; i < terms; i++) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    sequence.append(pick(random, ASSERTIONS));
+                    break;
+                case 1:
+                    sequence.append(pick(random, ATOMS)).append(pick(random, QUANTIFIERS));
+                    break;
+                default:
+                    if (random.nextBoolean()) {
+                        sequence.append(pick(random, GROUPS)).append(pick(random, QUANTIFIERS));
+                    } else {
+                        sequence.append(pick(random, EMPTY_GROUPS));
+                    }
+            }
+        }
+        return sequence.toString();
+    }
+
+    private static String pick(final Random random, final String[] choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+
+    private static List<String> groups(final Matcher matcher) {
+        final List<String> groups = new ArrayList<>();
+        if (matcher.matches()) {
+            for (int i = 0; i <= matcher.groupCount(); i++) {
+                groups.add(matcher.group(i));
+            }
+        }
+        return groups;
+    }
+
+    private static List<String> groups(final RegexMatcher matcher) {
+        final List<String> groups = new ArrayList<>();
+        if (matcher.matches()) {
+            for (int i = 0; i <= matcher.groupCount(); i++) {
+                groups.add(matcher.group(i));
+            }
+        }
+        return groups;
+    }
+
+    private static List<String> findAll(final Matcher matcher) {
+        final List<String> found = new ArrayList<>();
+        while (matcher.find()) {
+            for (int i = 0; i <= matcher.groupCount(); i++) {
+                found.add(matcher.start() + "-" + matcher.end() + ":" + matcher.group(i));
+            }
+        }
+        return found;
+    }
+
+    private static List<String> findAll(final RegexMatcher matcher) {
+        final List<String> found = new ArrayList<>();
+        while (matcher.find()) {
+            for (int i = 0; i <= matcher.groupCount(); i++) {
+                found.add(matcher.start() + "-" + matcher.end() + ":" + matcher.group(i));
+            }
+        }
+        return found;
+    }
+}
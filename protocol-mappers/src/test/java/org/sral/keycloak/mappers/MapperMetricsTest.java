@@ -0,0 +1,107 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessToken;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+public class MapperMetricsTest {
+
+    private static final String REALM_ID = "metrics-realm";
+
+    @Before
+    public void enable() {
+        MapperMetrics.setEnabled(true);
+    }
+
+    @After
+    public void disable() {
+        MapperMetrics.setEnabled(false);
+        MapperMetrics.reset();
+    }
+
+    @Test
+    public void shouldCountInvocationsOfEnabledMappers() {
+        final UserSessionModel session = given("team-a", "team-b", "other");
+        final ProtocolMapperModel mapperModel = mapper("counted", "team-(.*)");
+
+        new RegexMapper().transformAccessToken(new AccessToken(), mapperModel, null, session, null);
+        new RegexMapper().transformAccessToken(new AccessToken(), mapperModel, null, session, null);
+
+        final MapperMetrics.Stats stats = MapperMetrics.forRealm(REALM_ID).get(0);
+        assertThat(stats.getMapperId()).isEqualTo("counted");
+        assertThat(stats.invocations.sum()).isEqualTo(2);
+        assertThat(stats.groupsScanned.sum()).isEqualTo(6);
+        assertThat(stats.groupsMatched.sum()).isEqualTo(4);
+        assertThat(stats.valuesEmitted.sum()).isEqualTo(4);
+        assertThat(stats.getBucketCounts()).hasSize(MapperMetrics.BUCKET_BOUNDS_MICROS.length + 1);
+    }
+
+    @Test
+    public void shouldNotCountWhenDisabled() {
+        MapperMetrics.setEnabled(false);
+
+        new RegexMapper().transformAccessToken(new AccessToken(), mapper("uncounted", "(.*)"), null, given("a"), null);
+
+        assertThat(MapperMetrics.all()).isEmpty();
+    }
+
+    @Test
+    public void shouldRenderPrometheusText() {
+        new RegexMapper().transformAccessToken(new AccessToken(), mapper("rendered", "(.*)"), null, given("a"), null);
+
+        final String text = MapperMetrics.toPrometheusText(MapperMetrics.forRealm(REALM_ID));
+
+        assertThat(text)
+                .contains("# TYPE regex_mapper_invocations_total counter\n")
+                .contains("regex_mapper_invocations_total{mapper_id=\"rendered\",mapper_name=\"\\\"quoted\\\"\",mapper_type=\"oidc-regex-mapper\"} 1\n")
+                .contains("# TYPE regex_mapper_duration_seconds histogram\n")
+                .contains("regex_mapper_duration_seconds_bucket{mapper_id=\"rendered\",mapper_name=\"\\\"quoted\\\"\",mapper_type=\"oidc-regex-mapper\",le=\"+Inf\"} 1\n")
+                .contains("regex_mapper_duration_seconds_count{mapper_id=\"rendered\",mapper_name=\"\\\"quoted\\\"\",mapper_type=\"oidc-regex-mapper\"} 1\n");
+    }
+
+    private ProtocolMapperModel mapper(final String id, final String pattern) {
+        final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+        mapperModel.setId(id);
+        mapperModel.setName("\"quoted\"");
+        mapperModel.setProtocolMapper(RegexMapper.PROVIDER_ID);
+        final Map<String, String> config = new HashMap<>();
+        config.put("access.token.claim", "true");
+        config.put("claim.name", "claim");
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, pattern);
+        config.put(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY, "1");
+        mapperModel.setConfig(config);
+        return mapperModel;
+    }
+
+    private UserSessionModel given(final String... groupNames) {
+        final Set<GroupModel> groups = new LinkedHashSet<>();
+        for (String groupName : groupNames) {
+            final GroupModel group = Mockito.mock(GroupModel.class);
+            when(group.getName()).thenReturn(groupName);
+            groups.add(group);
+        }
+        final UserModel user = Mockito.mock(UserModel.class);
+        when(user.getGroups()).thenReturn(groups);
+        final RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getId()).thenReturn(REALM_ID);
+        final UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+        when(userSession.getUser()).thenReturn(user);
+        when(userSession.getRealm()).thenReturn(realm);
+        return userSession;
+    }
+}
@@ -0,0 +1,75 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MapperWarmUpTest {
+
+    private final RealmModel realm = Mockito.mock(RealmModel.class);
+
+    @Before
+    public void enableMetrics() {
+        MapperMetrics.setEnabled(true);
+    }
+
+    @After
+    public void disableMetrics() {
+        MapperMetrics.setEnabled(false);
+        MapperMetrics.reset();
+    }
+
+    @Test
+    public void shouldCompileRegexMappersAheadOfTokens() {
+        final Map<String, String> regexConfig = new HashMap<>();
+        regexConfig.put(RegexMapper.REGEX_PATTERN_PROPERTY, "team-(.*)");
+        final ProtocolMapperModel regexMapper = mapper("warm-up-regex", RegexMapper.PROVIDER_ID, regexConfig);
+        final Map<String, String> replaceConfig = new HashMap<>();
+        replaceConfig.put(RegexReplaceMapper.TARGET_CLAIMS_PROPERTY, "azc");
+        replaceConfig.put(RegexReplaceMapper.REPLACEMENT_MAP_PROPERTY, "[{\"key\":\"^team-\",\"value\":\"\"}]");
+        final ProtocolMapperModel replaceMapper = mapper("warm-up-replace", RegexReplaceMapper.PROVIDER_ID, replaceConfig);
+        final ProtocolMapperModel otherMapper = mapper("warm-up-other", "oidc-group-membership-mapper", new HashMap<>());
+
+        final int compiled = MapperWarmUp.warmUp(realm, Arrays.asList(regexMapper, otherMapper, replaceMapper));
+
+        assertThat(compiled).isEqualTo(2);
+        final long planMisses = RegexMapper.plans.misses();
+        final long programMisses = RegexReplaceMapper.programs.misses();
+        RegexMapper.plans.get(regexMapper);
+        RegexReplaceMapper.programs.get(replaceMapper);
+        assertThat(RegexMapper.plans.misses()).isEqualTo(planMisses);
+        assertThat(RegexReplaceMapper.programs.misses()).isEqualTo(programMisses);
+    }
+
+    @Test
+    public void shouldSkipMappersThatDoNotCompile() {
+        final Map<String, String> brokenConfig = new HashMap<>();
+        brokenConfig.put(RegexMapper.REGEX_PATTERN_PROPERTY, "team-(");
+        final Map<String, String> validConfig = new HashMap<>();
+        validConfig.put(RegexMapper.REGEX_PATTERN_PROPERTY, "team-(.*)");
+
+        final int compiled = MapperWarmUp.warmUp(realm, Arrays.asList(
+                mapper("warm-up-broken", RegexMapper.PROVIDER_ID, brokenConfig),
+                mapper("warm-up-valid", RegexMapper.PROVIDER_ID, validConfig)));
+
+        assertThat(compiled).isEqualTo(1);
+    }
+
+    private static ProtocolMapperModel mapper(final String id, final String protocolMapper, final Map<String, String> config) {
+        final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+        mapperModel.setId(id);
+        mapperModel.setName(id);
+        mapperModel.setProtocolMapper(protocolMapper);
+        mapperModel.setConfig(config);
+        return mapperModel;
+    }
+}
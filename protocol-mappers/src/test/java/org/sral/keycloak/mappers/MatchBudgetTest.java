@@ -0,0 +1,85 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MatchBudgetTest {
+
+    private static final String CATASTROPHIC_INPUT = "a".repeat(40);
+
+    private final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+
+    @Test(timeout = 5000)
+    public void shouldAbortCatastrophicBacktracking() {
+        final MatchBudget budget = budget("5", "3", "60");
+        final CompiledRegex regex = RegexEngine.JDK.compile("(.*a){8}b");
+
+        assertThatThrownBy(() -> regex.matcher(budget.start().guard(CATASTROPHIC_INPUT)).find())
+                .isInstanceOf(MatchBudget.ExceededException.class);
+    }
+
+    @Test
+    public void shouldNotWrapInputWithoutBudget() {
+        assertThat(MatchBudget.fromConfig(new HashMap<>())).isSameAs(MatchBudget.UNLIMITED);
+        assertThat(MatchBudget.UNLIMITED.start().guard(CATASTROPHIC_INPUT)).isSameAs(CATASTROPHIC_INPUT);
+    }
+
+    @Test
+    public void shouldOpenAfterConsecutiveOverruns() {
+        final MatchBudget budget = budget("5", "2", "60");
+
+        budget.recordOverrun(mapperModel);
+        budget.recordSuccess();
+        budget.recordOverrun(mapperModel);
+        assertThat(budget.isOpen()).isFalse();
+
+        budget.recordOverrun(mapperModel);
+        assertThat(budget.isOpen()).isTrue();
+    }
+
+    @Test
+    public void shouldLetOneInvocationThroughAfterOpenTime() {
+        final MatchBudget budget = budget("5", "1", "0");
+
+        budget.recordOverrun(mapperModel);
+
+        assertThat(budget.isOpen()).isFalse();
+        budget.recordOverrun(mapperModel);
+        assertThat(budget.isOpen()).isFalse();
+    }
+
+    @Test
+    public void shouldLetOnlyOneProbeThroughWhileHalfOpen() throws InterruptedException {
+        final MatchBudget budget = new MatchBudget(TimeUnit.MILLISECONDS.toNanos(5), 1, TimeUnit.MILLISECONDS.toNanos(200));
+        budget.recordOverrun(mapperModel);
+        assertThat(budget.isOpen()).isTrue();
+
+        Thread.sleep(250);
+
+        assertThat(budget.isOpen()).isFalse();
+        assertThat(budget.isOpen()).isTrue();
+        budget.recordSuccess();
+        assertThat(budget.isOpen()).isFalse();
+    }
+
+    @Test
+    public void shouldRejectInvalidSettings() {
+        assertThatThrownBy(() -> budget("-1", "3", "60")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> budget("5", "three", "60")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static MatchBudget budget(final String budgetMillis, final String threshold, final String openSeconds) {
+        final Map<String, String> config = new HashMap<>();
+        config.put(MatchBudget.BUDGET_PROPERTY, budgetMillis);
+        config.put(MatchBudget.BREAKER_THRESHOLD_PROPERTY, threshold);
+        config.put(MatchBudget.BREAKER_OPEN_PROPERTY, openSeconds);
+        return MatchBudget.fromConfig(config);
+    }
+}
@@ -0,0 +1,71 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ParallelMatchingTest {
+
+    @Test
+    public void shouldProduceValuesInSequentialOrder() {
+        final RegexMapperPlan plan = plan("team-(\\d+)-(?:a|b)");
+        final String[] inputs = new String[20_000];
+        for (int i = 0; i < inputs.length; i++) {
+            // Every value appears twice, far apart, so deduplication has to cross chunks.
+            inputs[i] = "team-" + (i % 7_000) + (i % 3 == 0 ? "-a" : "-c");
+        }
+
+        final ValueSet sequential = ValueSet.acquire();
+        final List<String> expected;
+        int expectedMatches = 0;
+        try {
+            for (String input : inputs) {
+                if (plan.collect(input, MatchBudget.Deadline.NONE, sequential)) {
+                    expectedMatches++;
+                }
+            }
+            expected = sequential.toList();
+        } finally {
+            sequential.release();
+        }
+
+        final ValueSet parallel = ValueSet.acquire();
+        try {
+            final int matches = ParallelMatching.collect(plan, inputs, inputs.length, MatchBudget.Deadline.NONE, parallel);
+
+            assertThat(matches).isEqualTo(expectedMatches);
+            assertThat(parallel.toList()).isEqualTo(expected);
+        } finally {
+            parallel.release();
+        }
+    }
+
+    @Test
+    public void shouldStaySequentialBelowThreshold() {
+        assertThat(ParallelMatching.shouldSplit(0, 100_000)).isFalse();
+        assertThat(ParallelMatching.shouldSplit(5_000, 4_999)).isFalse();
+    }
+
+    @Test
+    public void shouldRejectInvalidThreshold() {
+        final Map<String, String> config = new HashMap<>();
+        config.put(ParallelMatching.THRESHOLD_PROPERTY, "-1");
+
+        assertThatThrownBy(() -> ParallelMatching.thresholdFromConfig(config)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static RegexMapperPlan plan(final String pattern) {
+        final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+        final Map<String, String> config = new HashMap<>();
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, pattern);
+        config.put(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY, "1");
+        mapperModel.setConfig(config);
+        return RegexMapperPlan.compile(mapperModel);
+    }
+}
@@ -0,0 +1,76 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.ProtocolMapperConfigException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PatternCostTest {
+
+    private static final String EXPONENTIAL = "(.*a){8}b";
+
+    @Test(timeout = 5000)
+    public void shouldRejectPatternsThatBacktrackCatastrophically() {
+        final ProtocolMapperModel mapperModel = mapper(EXPONENTIAL, RegexEngine.JDK);
+
+        assertThatThrownBy(() -> new RegexMapper().validateConfig(null, null, null, mapperModel))
+                .isInstanceOfSatisfying(ProtocolMapperConfigException.class, ex -> assertThat(ex.getParameters())
+                        .containsExactly("Pattern '" + EXPONENTIAL + "' needs more than 640000 steps for the 64 chars of '"
+                                + "a".repeat(64) + "'"));
+    }
+
+    @Test
+    public void shouldAcceptCommonPatterns() {
+        for (String pattern : new String[]{"(.*)", "team-(.*)", "^/compartments/([^/]+)/(.*)$", "(.*)-(.*)-(.*)",
+                "(\\w+)@(\\w+)\\.com", "(?i)admin-(.*)", "\\Qa.b\\E(.*)"}) {
+            for (boolean wholeInput : new boolean[]{true, false}) {
+                assertThat(PatternCost.DEFAULT.analyze(RegexEngine.JDK.compile(pattern), wholeInput).isExpensive())
+                        .as(pattern)
+                        .isFalse();
+            }
+        }
+    }
+
+    @Test
+    public void shouldFlagNestedQuantifiersAndOverlappingAlternatives() {
+        assertThat(hazards("(a+)+$")).containsExactly("a nested quantifier in '(a+)+'");
+        assertThat(hazards("^(\\w+\\s?)*$")).containsExactly("a nested quantifier in '(\\w+\\s?)*'");
+        assertThat(hazards("(\\d|\\w)+!")).containsExactly("overlapping alternatives in '(\\d|\\w)+'");
+        assertThat(hazards("(a|b)+$")).isEmpty();
+        assertThat(hazards("(a++)+$")).isEmpty();
+        assertThat(hazards("/group[0-9]{1,3}/.*")).isEmpty();
+    }
+
+    @Test(timeout = 5000)
+    public void shouldOnlyWarnWhenConfiguredOrForTheLinearEngine() {
+        final PatternCost warn = new PatternCost(PatternCost.Action.WARN, PatternCost.DEFAULT_MAX_STEPS_PER_CHAR);
+        final ProtocolMapperModel mapperModel = mapper(EXPONENTIAL, RegexEngine.JDK);
+
+        assertThatCode(() -> warn.check(mapperModel, RegexEngine.JDK, RegexEngine.JDK.compile(EXPONENTIAL), true))
+                .doesNotThrowAnyException();
+        assertThatCode(() -> new RegexMapper().validateConfig(null, null, null, mapper(EXPONENTIAL, RegexEngine.LINEAR)))
+                .doesNotThrowAnyException();
+    }
+
+    private static Iterable<String> hazards(final String pattern) {
+        return PatternCost.DEFAULT.analyze(RegexEngine.JDK.compile(pattern), true).hazards;
+    }
+
+    private static ProtocolMapperModel mapper(final String pattern, final RegexEngine engine) {
+        final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+        mapperModel.setName("costly");
+        final Map<String, String> config = new HashMap<>();
+        config.put("claim.name", "claim");
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, pattern);
+        config.put(RegexMapper.REGEX_ENGINE_PROPERTY, engine.getConfigValue());
+        config.put(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY, "1");
+        mapperModel.setConfig(config);
+        return mapperModel;
+    }
+}
@@ -0,0 +1,113 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PatternShapeTest {
+
+    private static final List<String> SHAPED_PATTERNS = Arrays.asList(
+            "/compartments/(.*)",
+            "^/compartments/(.+)$",
+            "^team-([a-z0-9]+)$",
+            "(.*)-admins",
+            "(?<tenant>[^/]+)/admins",
+            "admins",
+            "^(admins)$",
+            "a()b",
+            "team-[a-z]+",
+            "\\d+",
+            "prefix-([\\w.-]*?)",
+            "\\/groups\\/(\\S+)",
+            "");
+
+    private static final List<String> OTHER_PATTERNS = Arrays.asList(
+            "/compartments/([^/]+)/(.*)",
+            "a|b",
+            "(a|b)c",
+            "ab*c",
+            "(.*)x(.*)",
+            "[a-z]{2}",
+            "(?i)admins",
+            "(?:a.*)",
+            ".*+x",
+            "(\\p{L}*)",
+            "([^\\uD800])*",
+            "(.)",
+            "x\\Qy\\E");
+
+    private static final List<String> INPUTS = Arrays.asList(
+            "", "a", "b", "ab", "abc", "admins", "ADMINS", "x-admins", "-admins", "acme/admins", "a/b/admins",
+            "/compartments/", "/compartments/a", "/compartments/a/b", "/compartments/a\nb", "/compartments/a ",
+            "team-", "team-abc1", "team-ABC", "team-a_b", "prefix-", "prefix-a.b-c", "prefix-a b", "123", "12a",
+            "/groups/x", "/groups/", "/groups/a b", "\uD83D\uDE00", "team-\uD83D\uDE00");
+
+    @Test
+    public void shouldRecognizeSimpleShapes() {
+        for (String pattern : SHAPED_PATTERNS) {
+            assertThat(PatternShape.analyze(pattern)).as(pattern).isNotNull();
+        }
+        for (String pattern : OTHER_PATTERNS) {
+            assertThat(PatternShape.analyze(pattern)).as(pattern).isNull();
+        }
+    }
+
+    @Test
+    public void shouldMatchLikeJavaUtilRegex() {
+        for (String pattern : SHAPED_PATTERNS) {
+            final PatternShape shape = PatternShape.analyze(pattern);
+            final Pattern expected = Pattern.compile(pattern);
+            for (String input : INPUTS) {
+                final Matcher matcher = expected.matcher(input);
+                final String description = pattern + " on \"" + input + "\"";
+                final boolean matches = matcher.matches();
+                assertThat(shape.matches(input)).as(description).isEqualTo(matches);
+                if (matches) {
+                    assertThat(shape.group(input, 0)).as(description).isEqualTo(matcher.group(0));
+                    if (matcher.groupCount() == 1) {
+                        assertThat(shape.group(input, 1)).as(description).isEqualTo(matcher.group(1));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldOnlyServeGroupsOfTheShape() {
+        assertThat(PatternShape.analyze("(?<tenant>.*)").supportsGroup(-1, "tenant")).isTrue();
+        assertThat(PatternShape.analyze("(?<tenant>.*)").supportsGroup(-1, "other")).isFalse();
+        assertThat(PatternShape.analyze("(.*)").supportsGroup(1, "")).isTrue();
+        assertThat(PatternShape.analyze("(.*)").supportsGroup(2, "")).isFalse();
+        assertThat(PatternShape.analyze("admins").supportsGroup(0, "")).isTrue();
+        assertThat(PatternShape.analyze("admins").supportsGroup(1, "")).isFalse();
+    }
+
+    @Test
+    public void shouldFindLiteralPrefix() {
+        assertThat(PatternShape.literalPrefix("/compartments/([^/]+)/(.*)")).isEqualTo("/compartments/");
+        assertThat(PatternShape.literalPrefix("^team\\-(a|b)")).isEqualTo("team-");
+        assertThat(PatternShape.literalPrefix("abc*")).isEqualTo("ab");
+        assertThat(PatternShape.literalPrefix("ab{2}")).isEqualTo("a");
+        assertThat(PatternShape.literalPrefix("abc|abd")).isEmpty();
+        assertThat(PatternShape.literalPrefix("(?i)abc")).isEmpty();
+        assertThat(PatternShape.literalPrefix("\\Qabc\\E")).isEmpty();
+    }
+
+    @Test
+    public void shouldOnlyRejectNamesThatCannotMatch() {
+        for (String pattern : OTHER_PATTERNS) {
+            final String prefix = PatternShape.literalPrefix(pattern);
+            final Pattern expected = Pattern.compile(pattern);
+            for (String input : INPUTS) {
+                if (expected.matcher(input).matches()) {
+                    assertThat(input).as(pattern).startsWith(prefix);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RegexMapperBatchTest {
+
+    private final RealmModel realm = realm();
+
+    @Test
+    public void shouldEvaluateUsersInOrder() {
+        final GroupModel top = group("batch-1", "compartments", null);
+        final GroupModel a = group("batch-2", "a", top);
+        final GroupModel b = group("batch-3", "b", top);
+        final List<UserModel> users = Arrays.asList(user(a, b), user(top), user(b), user(a, top));
+        final Map<String, String> config = new HashMap<>();
+        config.put(RegexMapper.FULL_PATH_PROPERTY, "true");
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "/compartments/(.*)");
+
+        final List<RegexMapperBatch.Result> results = new ArrayList<>();
+        new RegexMapperBatch(mapper(config), 3).evaluate(realm, users, results::add);
+
+        assertThat(results).extracting(RegexMapperBatch.Result::getUser).containsExactlyElementsOf(users);
+        assertThat(results).extracting(RegexMapperBatch.Result::getValues).containsExactly(
+                Arrays.asList("a", "b"), Collections.emptyList(), Collections.singletonList("b"), Collections.singletonList("a"));
+    }
+
+    @Test
+    public void shouldReadUsersOfStreamChunkByChunk() {
+        final GroupModel group = group("batch-10", "team-x", null);
+        final UserModel first = user(group);
+        final UserModel second = user(group);
+        final UserModel third = user(group);
+        final Map<String, String> config = new HashMap<>();
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "team-(.*)");
+
+        final RegexMapperBatch.Result result = new RegexMapperBatch(mapper(config), 2)
+                .evaluate(realm, Stream.of(first, second, third))
+                .findFirst()
+                .orElseThrow();
+
+        assertThat(result.getValues()).containsExactly("x");
+        verify(third, never()).getGroups();
+    }
+
+    @Test
+    public void shouldMatchManyDistinctInputsInParallel() {
+        final List<UserModel> users = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            final UserModel user = Mockito.mock(UserModel.class);
+            when(user.getAttribute("office")).thenReturn(Arrays.asList("office-" + i, "office-" + (i % 7)));
+            users.add(user);
+        }
+        final Map<String, String> config = new HashMap<>();
+        config.put(RegexMapper.TARGET_PROPERTY, MatchTarget.USER_ATTRIBUTE.getConfigValue());
+        config.put(RegexMapper.TARGET_ATTRIBUTE_PROPERTY, "office");
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "office-(\\d*5)");
+
+        final List<List<String>> values = new RegexMapperBatch(mapper(config))
+                .evaluate(realm, users.stream())
+                .map(RegexMapperBatch.Result::getValues)
+                .collect(Collectors.toList());
+
+        assertThat(values).hasSize(2_000);
+        assertThat(values.get(5)).containsExactly("5");
+        assertThat(values.get(12)).containsExactly("5");
+        assertThat(values.get(16)).isEmpty();
+        assertThat(values.get(1_995)).containsExactly("1995");
+    }
+
+    private static ProtocolMapperModel mapper(final Map<String, String> config) {
+        config.put(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME, "azc");
+        config.put(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY, "1");
+        final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+        mapperModel.setConfig(config);
+        return mapperModel;
+    }
+
+    private static RealmModel realm() {
+        final RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getId()).thenReturn("realm-batch");
+        return realm;
+    }
+
+    private static UserModel user(final GroupModel... groups) {
+        final UserModel user = Mockito.mock(UserModel.class);
+        when(user.getGroups()).thenReturn(new LinkedHashSet<>(Arrays.asList(groups)));
+        return user;
+    }
+
+    private static GroupModel group(final String id, final String name, final GroupModel parent) {
+        final GroupModel group = Mockito.mock(GroupModel.class);
+        when(group.getId()).thenReturn(id);
+        when(group.getName()).thenReturn(name);
+        when(group.getParent()).thenReturn(parent);
+        if (parent != null) {
+            final String parentId = parent.getId();
+            when(group.getParentId()).thenReturn(parentId);
+        }
+        return group;
+    }
+}
@@ -1,20 +1,28 @@
 package org.sral.keycloak.mappers;
 
 import org.junit.Test;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientSessionContext;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapperConfigException;
 import org.keycloak.protocol.oidc.mappers.FullNameMapper;
 import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
 import org.mockito.Mockito;
 
 import java.util.*;
 import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Mockito.when;
 
 public class RegexMapperTest {
@@ -53,11 +61,30 @@ public class RegexMapperTest {
                 .containsExactly(
                         OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME,
                         RegexMapper.TARGET_PROPERTY,
+                        RegexMapper.TARGET_CLIENT_PROPERTY,
+                        RegexMapper.TARGET_ATTRIBUTE_PROPERTY,
+                        RegexMapper.EXPAND_COMPOSITES_PROPERTY,
+                        RegexMapper.ROOT_GROUP_PROPERTY,
                         RegexMapper.FULL_PATH_PROPERTY,
                         RegexMapper.REGEX_PATTERN_PROPERTY,
+                        RegexMapper.REGEX_ENGINE_PROPERTY,
                         RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY,
                         RegexMapper.MULTI_VALUE_PROPERTY,
                         RegexMapper.MERGE_CLAIMS_PROPERTY,
+                        RegexMapper.COMPOSITE_EVALUATION_PROPERTY,
+                        RegexMapper.SESSION_MEMO_PROPERTY,
+                        RegexMapper.MAX_VALUES_PROPERTY,
+                        RegexMapper.VALUE_ORDER_PROPERTY,
+                        RegexMapper.PRIORITY_ATTRIBUTE_PROPERTY,
+                        RegexMapper.PARALLEL_THRESHOLD_PROPERTY,
+                        RegexMapper.MATCH_BUDGET_PROPERTY,
+                        RegexMapper.BREAKER_THRESHOLD_PROPERTY,
+                        RegexMapper.BREAKER_OPEN_PROPERTY,
+                        RegexMapper.FALLBACK_VALUE_PROPERTY,
+                        RegexMapper.CLAIM_ENCODING_PROPERTY,
+                        RegexMapper.CLAIM_DICTIONARY_PROPERTY,
+                        RegexMapper.CLAIM_MAX_BYTES_PROPERTY,
+                        RegexMapper.CLAIM_OVERFLOW_PROPERTY,
                         OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN,
                         OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN,
                         OIDCAttributeMapperHelper.INCLUDE_IN_USERINFO);
@@ -75,12 +102,332 @@ public class RegexMapperTest {
         assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(vals);
     }
 
+    @Test
+    public void shouldEmitAllMatchingGroupsWhenMultiValued() {
+        final UserSessionModel session = given("team-a-admin", "team-b-user", "team-a-user", "other", "team-c");
+
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        final Map<String, String> config = createConfig();
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "team-(\\w)(?:-(\\w+))?");
+        config.put(RegexMapper.MULTI_VALUE_PROPERTY, "true");
+        config.remove(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY);
+        mappingModel.setConfig(config);
+
+        assertThat(transformAccessToken(session, mappingModel).getOtherClaims().get(CLAIM_NAME))
+                .isEqualTo(Arrays.asList("a", "admin", "b", "user", "c"));
+    }
+
+    @Test
+    public void shouldMatchClientRolesOfOneClientWithoutReadingGroups() {
+        final UserSessionModel session = given();
+        final RealmModel realm = Mockito.mock(RealmModel.class);
+        final ClientModel account = Mockito.mock(ClientModel.class);
+        when(account.getId()).thenReturn("account-id");
+        when(account.getClientId()).thenReturn("account");
+        when(realm.getClientByClientId("account")).thenReturn(account);
+        when(session.getRealm()).thenReturn(realm);
+        final RoleModel manage = Mockito.mock(RoleModel.class);
+        when(manage.getName()).thenReturn("manage-account");
+        when(manage.isClientRole()).thenReturn(true);
+        when(manage.getContainer()).thenReturn(account);
+        when(session.getUser().getClientRoleMappings(account)).thenReturn(Collections.singleton(manage));
+
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        final Map<String, String> config = createConfig();
+        config.put(RegexMapper.TARGET_PROPERTY, MatchTarget.CLIENT_ROLES.getConfigValue());
+        config.put(RegexMapper.TARGET_CLIENT_PROPERTY, "account");
+        config.put(RegexMapper.FULL_PATH_PROPERTY, "true");
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "account/manage-(.*)");
+        mappingModel.setConfig(config);
+
+        assertThat(transformAccessToken(session, mappingModel).getOtherClaims().get(CLAIM_NAME))
+                .isEqualTo(Collections.singletonList("account"));
+        Mockito.verify(session.getUser(), Mockito.never()).getGroups();
+        Mockito.verify(session.getUser(), Mockito.never()).getRoleMappings();
+    }
+
+    @Test
+    public void shouldOnlyMatchGroupsBelowRootGroup() {
+        final UserSessionModel session = given("blue", "other");
+        final RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getId()).thenReturn("realm-root-group");
+        final GroupModel compartments = Mockito.mock(GroupModel.class);
+        when(compartments.getId()).thenReturn("compartments-id");
+        when(compartments.getName()).thenReturn("compartments");
+        when(realm.getTopLevelGroups()).thenReturn(Collections.singletonList(compartments));
+        when(session.getRealm()).thenReturn(realm);
+        final Iterator<GroupModel> groups = session.getUser().getGroups().iterator();
+        final GroupModel blue = groups.next();
+        when(blue.getId()).thenReturn("blue-id");
+        when(blue.getParentId()).thenReturn("compartments-id");
+        final GroupModel other = groups.next();
+        when(other.getId()).thenReturn("other-id");
+
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        final Map<String, String> config = createConfig();
+        config.put(RegexMapper.ROOT_GROUP_PROPERTY, "compartments/");
+        mappingModel.setConfig(config);
+
+        assertThat(transformAccessToken(session, mappingModel).getOtherClaims().get(CLAIM_NAME))
+                .isEqualTo(Collections.singletonList("blue"));
+        Mockito.verify(other, Mockito.never()).getName();
+    }
+
+    @Test
+    public void shouldMatchUserAttributeValues() {
+        final UserSessionModel session = given();
+        when(session.getUser().getAttribute("tenants")).thenReturn(Arrays.asList("tenant-a", "other", "tenant-b"));
+
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        final Map<String, String> config = createConfig();
+        config.put(RegexMapper.TARGET_PROPERTY, MatchTarget.USER_ATTRIBUTE.getConfigValue());
+        config.put(RegexMapper.TARGET_ATTRIBUTE_PROPERTY, "tenants");
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "tenant-(.*)");
+        mappingModel.setConfig(config);
+
+        assertThat(transformAccessToken(session, mappingModel).getOtherClaims().get(CLAIM_NAME))
+                .isEqualTo(Arrays.asList("a", "b"));
+    }
+
+    @Test
+    public void shouldMergeIntoExistingClaimWithoutDuplicates() {
+        final UserSessionModel session = given("a", "b");
+
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        final Map<String, String> config = createConfig();
+        config.put(RegexMapper.MERGE_CLAIMS_PROPERTY, "true");
+        mappingModel.setConfig(config);
+
+        final AccessToken token = new AccessToken();
+        token.getOtherClaims().put(CLAIM_NAME, Arrays.asList("b", "c", "c"));
+        new RegexMapper().transformAccessToken(token, mappingModel, null, session, null);
+
+        assertThat(token.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("a", "b", "c"));
+    }
+
+    @Test
+    public void shouldMergeNonStringValuesAndKeepObjectClaims() {
+        final UserSessionModel session = given("1", "b");
+
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        final Map<String, String> config = createConfig();
+        config.put(RegexMapper.MERGE_CLAIMS_PROPERTY, "true");
+        mappingModel.setConfig(config);
+
+        final AccessToken token = new AccessToken();
+        token.getOtherClaims().put(CLAIM_NAME, new LinkedHashSet<>(Arrays.asList(1, true)));
+        new RegexMapper().transformAccessToken(token, mappingModel, null, session, null);
+        assertThat(token.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("1", "b", "true"));
+
+        final Map<String, Object> object = Collections.singletonMap("nested", "value");
+        token.getOtherClaims().put(CLAIM_NAME, object);
+        new RegexMapper().transformAccessToken(token, mappingModel, null, session, null);
+        assertThat(token.getOtherClaims().get(CLAIM_NAME)).isSameAs(object);
+    }
+
+    @Test
+    public void shouldRejectUnknownMatchGroupName() {
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        final Map<String, String> config = createConfig();
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "(?x)(?<tenant>.*) #(?<team>.*)");
+        config.put(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY, "team");
+        mappingModel.setConfig(config);
+
+        assertThatThrownBy(() -> new RegexMapper().validateConfig(null, null, null, mappingModel))
+                .isInstanceOf(ProtocolMapperConfigException.class);
+
+        config.put(RegexMapper.MATCH_GROUP_NUMBER_OR_NAME_PROPERTY, "tenant");
+        assertThatCode(() -> new RegexMapper().validateConfig(null, null, null, mappingModel)).doesNotThrowAnyException();
+    }
+
+    @Test
+    public void shouldReuseValuesRememberedInUserSession() {
+        final UserSessionModel session = given();
+        final Map<String, String> notes = new HashMap<>();
+        Mockito.doAnswer(invocation -> notes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(session).setNote(Mockito.anyString(), Mockito.anyString());
+        when(session.getNote(Mockito.anyString())).thenAnswer(invocation -> notes.get(invocation.<String>getArgument(0)));
+
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        mappingModel.setId("memoized");
+        final Map<String, String> config = createConfig();
+        config.put(RegexMapper.SESSION_MEMO_PROPERTY, "true");
+        mappingModel.setConfig(config);
+
+        transformAccessToken(session, mappingModel);
+        final String noteName = ClaimValuesMemo.NOTE_PREFIX + "memoized";
+        assertThat(notes.get(noteName)).endsWith(":[\"myGroup\"]");
+
+        // A tampered note with the right fingerprint proves that the values are taken from the session.
+        notes.put(noteName, notes.get(noteName).replace("myGroup", "remembered"));
+        assertThat(transformAccessToken(session, mappingModel).getOtherClaims().get(CLAIM_NAME))
+                .isEqualTo(Collections.singletonList("remembered"));
+
+        final GroupModel group = session.getUser().getGroups().iterator().next();
+        when(group.getName()).thenReturn("renamedGroup");
+        assertThat(transformAccessToken(session, mappingModel).getOtherClaims().get(CLAIM_NAME))
+                .isEqualTo(Collections.singletonList("renamedGroup"));
+    }
+
+    @Test(timeout = 5000)
+    public void shouldEmitFallbackValueWhenMatchBudgetIsExceeded() {
+        final UserSessionModel session = given("a".repeat(40));
+
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        mappingModel.setId("budgeted");
+        final Map<String, String> config = createConfig();
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "(.*a){8}b");
+        config.put(RegexMapper.MATCH_BUDGET_PROPERTY, "1");
+        config.put(RegexMapper.BREAKER_THRESHOLD_PROPERTY, "1");
+        config.put(RegexMapper.FALLBACK_VALUE_PROPERTY, "unavailable");
+        mappingModel.setConfig(config);
+
+        final AccessToken first = new RegexMapper().transformAccessToken(new AccessToken(), mappingModel, null, session, null);
+        final AccessToken second = new RegexMapper().transformAccessToken(new AccessToken(), mappingModel, null, session, null);
+
+        assertThat(first.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Collections.singletonList("unavailable"));
+        assertThat(second.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Collections.singletonList("unavailable"));
+        // The breaker opened after the first token, so the groups are not even looked at for the second one.
+        Mockito.verify(session.getUser(), Mockito.times(1)).getGroups();
+    }
+
+    @Test
+    public void shouldEvaluateCompositeMappersInOnePass() {
+        final UserSessionModel session = given();
+        final ProtocolMapperModel first = compositeMapper("composite-1", "first", "(.*)");
+        final ProtocolMapperModel second = compositeMapper("composite-2", "second", "my(.*)");
+
+        final ClientSessionContext context = context(first, second);
+
+        final AccessToken accessToken = new AccessToken();
+        new RegexMapper().transformAccessToken(accessToken, first, null, session, context);
+        new RegexMapper().transformAccessToken(accessToken, second, null, session, context);
+
+        assertThat(accessToken.getOtherClaims().get("first")).isEqualTo(Collections.singletonList("myGroup"));
+        assertThat(accessToken.getOtherClaims().get("second")).isEqualTo(Collections.singletonList("Group"));
+        Mockito.verify(session.getUser(), Mockito.times(1)).getGroups();
+    }
+
+    @Test
+    public void shouldLeaveCompositeMapperThatDoesNotCompileOutOfThePass() {
+        final UserSessionModel session = given();
+        final ProtocolMapperModel valid = compositeMapper("composite-valid", "first", "(.*)");
+        final ProtocolMapperModel broken = compositeMapper("composite-broken", "second", "my(.*");
+
+        final AccessToken accessToken = new AccessToken();
+        new RegexMapper().transformAccessToken(accessToken, valid, null, session, context(valid, broken));
+
+        assertThat(accessToken.getOtherClaims().get("first")).isEqualTo(Collections.singletonList("myGroup"));
+        assertThat(accessToken.getOtherClaims()).doesNotContainKey("second");
+    }
+
+    @Test
+    public void shouldEvaluateOncePerRequest() {
+        final UserSessionModel session = given("team-a", "team-b");
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        mappingModel.setId("per-request");
+        final Map<String, String> config = createConfig();
+        config.put("id.token.claim", "true");
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "team-(.*)");
+        mappingModel.setConfig(config);
+        final ClientSessionContext context = context(mappingModel);
+
+        final AccessToken accessToken = new AccessToken();
+        final IDToken idToken = new IDToken();
+        new RegexMapper().transformAccessToken(accessToken, mappingModel, null, session, context);
+        new RegexMapper().transformIDToken(idToken, mappingModel, null, session, context);
+
+        assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("a", "b"));
+        assertThat(idToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("a", "b"));
+        assertThat(idToken.getOtherClaims().get(CLAIM_NAME)).isNotSameAs(accessToken.getOtherClaims().get(CLAIM_NAME));
+        Mockito.verify(session.getUser(), Mockito.times(1)).getGroups();
+    }
+
+    @Test
+    public void shouldStopAtFirstMatch() {
+        final UserSessionModel session = given("other", "team-a", "team-b");
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        final Map<String, String> config = createConfig();
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "team-(.*)");
+        config.put(RegexMapper.MAX_VALUES_PROPERTY, "1");
+        mappingModel.setConfig(config);
+
+        final AccessToken accessToken = transformAccessToken(session, mappingModel);
+
+        assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Collections.singletonList("a"));
+        final List<GroupModel> groups = new ArrayList<>(session.getUser().getGroups());
+        Mockito.verify(groups.get(2), Mockito.never()).getName();
+    }
+
+    @Test
+    public void shouldTakeGroupsInPriorityOrder() {
+        final RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getId()).thenReturn("realm-priority");
+        final GroupModel low = prioritizedGroup("priority-1", "team-low", "5");
+        final GroupModel high = prioritizedGroup("priority-2", "team-high", "1");
+        final GroupModel none = prioritizedGroup("priority-3", "team-none", null);
+        final UserModel user = Mockito.mock(UserModel.class);
+        when(user.getGroups()).thenReturn(new LinkedHashSet<>(Arrays.asList(none, low, high)));
+        final UserSessionModel session = Mockito.mock(UserSessionModel.class);
+        when(session.getUser()).thenReturn(user);
+        when(session.getRealm()).thenReturn(realm);
+
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        final Map<String, String> config = createConfig();
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, "team-(.*)");
+        config.put(RegexMapper.VALUE_ORDER_PROPERTY, "priority");
+        config.put(RegexMapper.PRIORITY_ATTRIBUTE_PROPERTY, "rank");
+        config.put(RegexMapper.MAX_VALUES_PROPERTY, "2");
+        mappingModel.setConfig(config);
+
+        final AccessToken accessToken = transformAccessToken(session, mappingModel);
+
+        assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("high", "low"));
+    }
+
+    private static GroupModel prioritizedGroup(final String id, final String name, final String priority) {
+        final GroupModel group = Mockito.mock(GroupModel.class);
+        when(group.getId()).thenReturn(id);
+        when(group.getName()).thenReturn(name);
+        when(group.getFirstAttribute("rank")).thenReturn(priority);
+        return group;
+    }
+
+    private static ClientSessionContext context(final ProtocolMapperModel... mappers) {
+        final Map<String, Object> attributes = new HashMap<>();
+        final ClientSessionContext context = Mockito.mock(ClientSessionContext.class);
+        when(context.getProtocolMappers()).thenReturn(new HashSet<>(Arrays.asList(mappers)));
+        Mockito.doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(context).setAttribute(Mockito.anyString(), Mockito.any());
+        when(context.getAttribute(Mockito.anyString(), Mockito.any()))
+                .thenAnswer(invocation -> attributes.get(invocation.<String>getArgument(0)));
+        return context;
+    }
+
+    private ProtocolMapperModel compositeMapper(final String id, final String claimName, final String pattern) {
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        mappingModel.setId(id);
+        mappingModel.setProtocolMapper(RegexMapper.PROVIDER_ID);
+        final Map<String, String> config = createConfig();
+        config.put("claim.name", claimName);
+        config.put(RegexMapper.REGEX_PATTERN_PROPERTY, pattern);
+        config.put(RegexMapper.COMPOSITE_EVALUATION_PROPERTY, "true");
+        mappingModel.setConfig(config);
+        return mappingModel;
+    }
+
     private UserSessionModel given() {
+        return given("myGroup");
+    }
+
+    private UserSessionModel given(final String... groupNames) {
         var userSession = Mockito.mock(UserSessionModel.class);
-        var group1 = Mockito.mock(GroupModel.class);
-        when(group1.getName()).thenReturn("myGroup");
-        Set<GroupModel> groups = new HashSet<>();
-        groups.add(group1);
+        Set<GroupModel> groups = new LinkedHashSet<>();
+        for (String groupName : groupNames) {
+            var group = Mockito.mock(GroupModel.class);
+            when(group.getName()).thenReturn(groupName);
+            groups.add(group);
+        }
         UserModel user = Mockito.mock(UserModel.class);
         when(user.getGroups()).thenReturn(groups);
         when(userSession.getUser()).thenReturn(user);
@@ -93,6 +440,10 @@ public class RegexMapperTest {
         return new RegexMapper().transformAccessToken(new AccessToken(), mappingModel, null, userSessionModel, null);
     }
 
+    private AccessToken transformAccessToken(final UserSessionModel userSessionModel, final ProtocolMapperModel mappingModel) {
+        return new RegexMapper().transformAccessToken(new AccessToken(), mappingModel, null, userSessionModel, null);
+    }
+
     private Map<String, String> createConfig() {
         final Map<String, String> result = new HashMap<>();
         result.put("access.token.claim", "true");
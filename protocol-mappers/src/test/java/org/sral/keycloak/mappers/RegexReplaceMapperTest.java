@@ -1,6 +1,7 @@
 package org.sral.keycloak.mappers;
 
 import org.junit.Test;
+import org.keycloak.models.ClientSessionContext;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.models.UserModel;
@@ -9,6 +10,7 @@ import org.keycloak.protocol.oidc.mappers.FullNameMapper;
 import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
 import org.mockito.Mockito;
 
 import java.util.*;
@@ -55,6 +57,10 @@ public class RegexReplaceMapperTest {
                 .containsExactly(
                         RegexReplaceMapper.TARGET_CLAIMS_PROPERTY,
                         RegexReplaceMapper.REPLACEMENT_MAP_PROPERTY,
+                        RegexReplaceMapper.REGEX_ENGINE_PROPERTY,
+                        RegexReplaceMapper.MATCH_BUDGET_PROPERTY,
+                        RegexReplaceMapper.BREAKER_THRESHOLD_PROPERTY,
+                        RegexReplaceMapper.BREAKER_OPEN_PROPERTY,
                         OIDCAttributeMapperHelper.INCLUDE_IN_ID_TOKEN,
                         OIDCAttributeMapperHelper.INCLUDE_IN_ACCESS_TOKEN,
                         OIDCAttributeMapperHelper.INCLUDE_IN_USERINFO);
@@ -66,6 +72,78 @@ public class RegexReplaceMapperTest {
 
     }
 
+    @Test
+    public void shouldReplaceTargetClaimValues() {
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        final Map<String, String> config = new HashMap<>();
+        config.put("access.token.claim", "true");
+        config.put(RegexReplaceMapper.TARGET_CLAIMS_PROPERTY, CLAIM_NAME);
+        config.put(RegexReplaceMapper.REPLACEMENT_MAP_PROPERTY, "[{\"key\":\"^/compartments/(.*)\",\"value\":\"$1\"}]");
+        mappingModel.setConfig(config);
+
+        final AccessToken token = new AccessToken();
+        token.getOtherClaims().put(CLAIM_NAME, Arrays.asList("/compartments/a", "/other/b"));
+        token.getOtherClaims().put("untouched", "/compartments/c");
+
+        new RegexReplaceMapper().transformAccessToken(token, mappingModel, null, given(), null);
+
+        assertThat(token.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("a", "/other/b"));
+        assertThat(token.getOtherClaims().get("untouched")).isEqualTo("/compartments/c");
+    }
+
+    @Test
+    public void shouldReplaceValuesOfNestedTargetClaims() {
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        final Map<String, String> config = new HashMap<>();
+        config.put("access.token.claim", "true");
+        config.put(RegexReplaceMapper.TARGET_CLAIMS_PROPERTY, "resource_access.account.roles, ext.tenants[*]");
+        config.put(RegexReplaceMapper.REPLACEMENT_MAP_PROPERTY, "[{\"key\":\"-\",\"value\":\"_\"}]");
+        mappingModel.setConfig(config);
+
+        final AccessToken token = new AccessToken();
+        token.addAccess("account").addRole("manage-account");
+        final Map<String, Object> ext = new HashMap<>();
+        ext.put("tenants", Arrays.asList("tenant-a", "tenant-b"));
+        ext.put("untouched", "tenant-c");
+        token.getOtherClaims().put("ext", ext);
+
+        new RegexReplaceMapper().transformAccessToken(token, mappingModel, null, given(), null);
+
+        assertThat(token.getResourceAccess("account").getRoles()).containsExactly("manage_account");
+        assertThat(ext.get("tenants")).isEqualTo(Arrays.asList("tenant_a", "tenant_b"));
+        assertThat(ext.get("untouched")).isEqualTo("tenant-c");
+    }
+
+    @Test
+    public void shouldReplaceIDTokenClaimValuesOncePerRequest() {
+        final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+        mappingModel.setId("replace-per-request");
+        final Map<String, String> config = new HashMap<>();
+        config.put("access.token.claim", "true");
+        config.put("id.token.claim", "true");
+        config.put(RegexReplaceMapper.TARGET_CLAIMS_PROPERTY, CLAIM_NAME);
+        config.put(RegexReplaceMapper.REPLACEMENT_MAP_PROPERTY, "[{\"key\":\"^/compartments/(.*)\",\"value\":\"$1\"}]");
+        mappingModel.setConfig(config);
+        final Map<String, Object> attributes = new HashMap<>();
+        final ClientSessionContext context = Mockito.mock(ClientSessionContext.class);
+        Mockito.doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(context).setAttribute(Mockito.anyString(), Mockito.any());
+        when(context.getAttribute(Mockito.anyString(), Mockito.any()))
+                .thenAnswer(invocation -> attributes.get(invocation.<String>getArgument(0)));
+
+        final AccessToken accessToken = new AccessToken();
+        accessToken.getOtherClaims().put(CLAIM_NAME, Arrays.asList("/compartments/a", "/other/b"));
+        final IDToken idToken = new IDToken();
+        idToken.getOtherClaims().put(CLAIM_NAME, Arrays.asList("/compartments/a", "/compartments/c"));
+        new RegexReplaceMapper().transformAccessToken(accessToken, mappingModel, null, given(), context);
+        new RegexReplaceMapper().transformIDToken(idToken, mappingModel, null, given(), context);
+
+        assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("a", "/other/b"));
+        assertThat(idToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("a", "c"));
+        assertThat(RequestMemo.of(context).getReplacements(mappingModel))
+                .containsOnlyKeys("/compartments/a", "/other/b", "/compartments/c");
+    }
+
     private UserSessionModel given() {
         var userSession = Mockito.mock(UserSessionModel.class);
         var group1 = Mockito.mock(GroupModel.class);
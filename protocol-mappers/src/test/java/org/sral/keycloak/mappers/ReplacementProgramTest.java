@@ -0,0 +1,74 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ReplacementProgramTest {
+
+    @Test
+    public void shouldBehaveLikeReplaceAll() {
+        assertSameAsReplaceAll("/compartments/(.*)", "$1", "/compartments/alpha");
+        assertSameAsReplaceAll("a*", "-", "baaac");
+        assertSameAsReplaceAll("(?<team>[a-z]+)-(\\d+)", "${team}#$2", "ops-12 dev-3");
+        assertSameAsReplaceAll("(x)", "$10", "xyx");
+        assertSameAsReplaceAll("\\.", "\\$", "a.b.c");
+        assertSameAsReplaceAll("(a)|(b)", "[$2]", "ab");
+    }
+
+    @Test
+    public void shouldApplyReplacementsInConfiguredOrder() {
+        final ReplacementProgram program = ReplacementProgram.compile(mapper("azc",
+                "[{\"key\":\"^/compartments/\",\"value\":\"\"},{\"key\":\"/\",\"value\":\".\"}]"));
+
+        assertThat(program.apply("/compartments/a/b")).isEqualTo("a.b");
+    }
+
+    @Test
+    public void shouldParseTargetClaims() {
+        final ReplacementProgram program = ReplacementProgram.compile(mapper("azc, groups,,roles ", "[]"));
+
+        assertThat(program.getTargetClaims()).containsExactlyInAnyOrder("azc", "groups", "roles");
+    }
+
+    @Test
+    public void shouldRejectUnknownGroupReferences() {
+        assertThatThrownBy(() -> ReplacementProgram.compile(mapper("azc", "[{\"key\":\"(a)\",\"value\":\"$2\"}]")))
+                .isInstanceOf(IndexOutOfBoundsException.class);
+        assertThatThrownBy(() -> ReplacementProgram.compile(mapper("azc", "[{\"key\":\"(a)\",\"value\":\"${b}\"}]")))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void shouldRejectNamesOnlyQuotedOrCommentedInPattern() {
+        // An unterminated \Q and a comment run to the end of the pattern, swallowing anything appended to it.
+        assertThatThrownBy(() -> ReplacementProgram.compile(mapper("azc", "[{\"key\":\"a\\\\Q(?<b>\",\"value\":\"${b}\"}]")))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ReplacementProgram.compile(mapper("azc", "[{\"key\":\"(?x)a #(?<b>c)\",\"value\":\"${b}\"}]")))
+                .isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(ReplacementProgram.compile(mapper("azc", "[{\"key\":\"(?x)(?<b>a) #c\",\"value\":\"${b}\"}]")))
+                .isNotNull();
+    }
+
+    private static void assertSameAsReplaceAll(final String regex, final String replacement, final String input) {
+        final ReplacementProgram program = ReplacementProgram.compile(mapper("azc",
+                "[{\"key\":\"" + regex.replace("\\", "\\\\") + "\",\"value\":\"" + replacement.replace("\\", "\\\\") + "\"}]"));
+
+        assertThat(program.apply(input)).isEqualTo(input.replaceAll(regex, replacement));
+    }
+
+    private static ProtocolMapperModel mapper(final String targetClaims, final String replacements) {
+        final ProtocolMapperModel mapperModel = new ProtocolMapperModel();
+        final Map<String, String> config = new HashMap<>();
+        config.put(RegexReplaceMapper.TARGET_CLAIMS_PROPERTY, targetClaims);
+        config.put(RegexReplaceMapper.REPLACEMENT_MAP_PROPERTY, replacements);
+        mapperModel.setConfig(config);
+        return mapperModel;
+    }
+}
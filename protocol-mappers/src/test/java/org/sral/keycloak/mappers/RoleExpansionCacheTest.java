@@ -0,0 +1,157 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RoleExpansionCacheTest {
+
+    private final RoleExpansionCache cache = new RoleExpansionCache(100);
+    private final RealmModel realm = realm("realm-1");
+
+    @Test
+    public void shouldExpandNestedAndCyclicComposites() {
+        final RoleModel admin = role("1", "admin", null);
+        final RoleModel user = role("2", "user", null);
+        final RoleModel manage = role("3", "manage-account", client("c1", "account"));
+        composites(admin, user, manage);
+        composites(user, admin);
+
+        assertThat(names(cache.expand(realm, admin))).containsExactlyInAnyOrder("admin", "user", "account/manage-account");
+    }
+
+    @Test
+    public void shouldReuseCachedExpansions() {
+        final RoleModel admin = role("1", "admin", null);
+        final RoleModel user = role("2", "user", null);
+        composites(admin, user);
+        composites(user, role("3", "viewer", null));
+
+        cache.expand(realm, admin);
+        cache.expand(realm, admin);
+
+        verify(user, times(1)).getComposites();
+    }
+
+    @Test
+    public void shouldExpandAgainWhenDirectCompositeRemovedWithoutInvalidation() {
+        final RoleModel admin = role("1", "admin", null);
+        final RoleModel user = role("2", "user", null);
+        final RoleModel manage = role("3", "manage-account", client("c1", "account"));
+        composites(admin, user, manage);
+        cache.expand(realm, admin);
+
+        // As on another node of a cluster, which hears of no event.
+        composites(admin, user);
+
+        assertThat(names(cache.expand(realm, admin))).containsExactlyInAnyOrder("admin", "user");
+    }
+
+    @Test
+    public void shouldExpandAgainWhenRoleRenamedWithoutInvalidation() {
+        final RoleModel admin = role("1", "admin", null);
+        final RoleModel user = role("2", "user", null);
+        composites(admin, user);
+        cache.expand(realm, admin);
+
+        when(admin.getName()).thenReturn("administrator");
+        when(user.getName()).thenReturn("member");
+
+        assertThat(names(cache.expand(realm, admin))).containsExactlyInAnyOrder("administrator", "member");
+    }
+
+    @Test
+    public void shouldExpandAgainAfterTtl() {
+        final RoleModel admin = role("1", "admin", null);
+        final RoleModel user = role("2", "user", null);
+        composites(admin, user);
+        composites(user, role("3", "viewer", null));
+        cache.expand(realm, admin);
+
+        cache.setTtlSeconds(0);
+        composites(user);
+
+        assertThat(names(cache.expand(realm, admin))).containsExactlyInAnyOrder("admin", "user");
+    }
+
+    @Test
+    public void shouldDropExpansionsContainingRemovedRole() {
+        final RoleModel admin = role("1", "admin", null);
+        final RoleModel other = role("3", "other", null);
+        composites(admin, role("2", "user", null));
+        composites(other, role("4", "viewer", null));
+        cache.expand(realm, admin);
+        cache.expand(realm, other);
+
+        cache.invalidateRole("2");
+
+        assertThat(cache.size("realm-1")).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldInvalidateRealmOnRoleAdminEvent() {
+        final RoleExpansionCache shared = RoleExpansionCache.getInstance();
+        final RoleModel admin = role("10", "admin", null);
+        composites(admin, role("11", "user", null));
+        shared.expand(realm("realm-role-event"), admin);
+
+        final AdminEvent event = new AdminEvent();
+        event.setRealmId("realm-role-event");
+        event.setResourceType(ResourceType.REALM_ROLE);
+        event.setResourcePath("roles-by-id/10/composites");
+        CacheInvalidationEventListenerFactory.onAdminEvent(event);
+
+        assertThat(shared.size("realm-role-event")).isZero();
+    }
+
+    private static String[] names(final RoleExpansionCache.Role[] roles) {
+        return Arrays.stream(roles)
+                .map(role -> role.isClientRole() ? role.clientId + "/" + role.name : role.name)
+                .toArray(String[]::new);
+    }
+
+    private static void composites(final RoleModel role, final RoleModel... composites) {
+        when(role.isComposite()).thenReturn(true);
+        when(role.getComposites()).thenReturn(Stream.of(composites).collect(Collectors.toCollection(HashSet::new)));
+    }
+
+    private static RealmModel realm(final String id) {
+        final RealmModel realm = Mockito.mock(RealmModel.class);
+        when(realm.getId()).thenReturn(id);
+        return realm;
+    }
+
+    private static ClientModel client(final String id, final String clientId) {
+        final ClientModel client = Mockito.mock(ClientModel.class);
+        when(client.getId()).thenReturn(id);
+        when(client.getClientId()).thenReturn(clientId);
+        return client;
+    }
+
+    private static RoleModel role(final String id, final String name, final ClientModel client) {
+        final RoleModel role = Mockito.mock(RoleModel.class);
+        when(role.getId()).thenReturn(id);
+        when(role.getName()).thenReturn(name);
+        if (client != null) {
+            final String clientInternalId = client.getId();
+            when(role.isClientRole()).thenReturn(true);
+            when(role.getContainerId()).thenReturn(clientInternalId);
+            when(role.getContainer()).thenReturn(client);
+        }
+        return role;
+    }
+}
@@ -0,0 +1,55 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ValueLimitTest {
+
+    @Test
+    public void shouldBeInactiveByDefault() {
+        assertThat(ValueLimit.fromConfig(Collections.emptyMap())).isSameAs(ValueLimit.NONE);
+        assertThat(ValueLimit.NONE.isActive()).isFalse();
+    }
+
+    @Test
+    public void shouldOrderInputsWithoutLimit() {
+        final Map<String, String> config = new HashMap<>();
+        config.put(ValueLimit.ORDER_PROPERTY, "path");
+
+        final ValueLimit limit = ValueLimit.fromConfig(config);
+
+        assertThat(limit.isActive()).isTrue();
+        assertThat(limit.orderInputs(Arrays.asList("b", "c", "a"))).containsExactly("a", "b", "c");
+        assertThat(limit.isFilled(Arrays.asList("a", "b", "c"))).isFalse();
+    }
+
+    @Test
+    public void shouldCutValuesBeyondMaximum() {
+        final Map<String, String> config = new HashMap<>();
+        config.put(ValueLimit.MAX_VALUES_PROPERTY, "2");
+
+        final ValueLimit limit = ValueLimit.fromConfig(config);
+
+        assertThat(limit.isFilled(Collections.singletonList("a"))).isFalse();
+        assertThat(limit.isFilled(Arrays.asList("a", "b"))).isTrue();
+        assertThat(limit.truncate(Arrays.asList("a", "b", "c"))).containsExactly("a", "b");
+    }
+
+    @Test
+    public void shouldRejectInvalidSettings() {
+        final Map<String, String> config = new HashMap<>();
+        config.put(ValueLimit.MAX_VALUES_PROPERTY, "-1");
+        assertThatThrownBy(() -> ValueLimit.fromConfig(config)).isInstanceOf(IllegalArgumentException.class);
+
+        config.put(ValueLimit.MAX_VALUES_PROPERTY, "1");
+        config.put(ValueLimit.ORDER_PROPERTY, "random");
+        assertThatThrownBy(() -> ValueLimit.fromConfig(config)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,58 @@
+package org.sral.keycloak.mappers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ValueSetTest {
+
+    @Test
+    public void shouldKeepFirstOccurrenceInInsertionOrder() {
+        final ValueSet values = new ValueSet();
+
+        assertThat(values.add("b")).isTrue();
+        assertThat(values.add("a")).isTrue();
+        assertThat(values.add("b")).isFalse();
+        assertThat(values.add(null)).isTrue();
+        assertThat(values.add(null)).isFalse();
+        values.add("c");
+
+        assertThat(values.toList()).containsExactly("b", "a", null, "c");
+        assertThat(values.contains("a")).isTrue();
+        assertThat(values.contains("d")).isFalse();
+    }
+
+    @Test
+    public void shouldBehaveLikeLinkedHashSetWhenGrowing() {
+        final ValueSet values = new ValueSet();
+        final Set<String> expected = new LinkedHashSet<>();
+        for (int i = 0; i < 10_000; i++) {
+            final String value = "group-" + (i * 7919 % 3000);
+            assertThat(values.add(value)).isEqualTo(expected.add(value));
+        }
+
+        assertThat(values.toList()).isEqualTo(new ArrayList<>(expected));
+    }
+
+    @Test
+    public void shouldReusePooledSetPerThread() {
+        final ValueSet first = ValueSet.acquire();
+        first.add("a");
+        final ValueSet nested = ValueSet.acquire();
+        first.release();
+        nested.release();
+
+        final ValueSet second = ValueSet.acquire();
+        final List<String> values = second.toList();
+        second.release();
+
+        assertThat(nested).isNotSameAs(first);
+        assertThat(second).isSameAs(first);
+        assertThat(values).isEmpty();
+    }
+}